@@ -50,6 +50,10 @@ public class MockConnection implements ObaConnection {
     public void disconnect() {
     }
 
+    @Override
+    public void abort() {
+    }
+
     @Override
     public Reader get() throws IOException {
         Log.d(TAG, "Get URI: " + mUri);
@@ -15,15 +15,25 @@
  */
 package com.joulespersecond.oba.provider.test;
 
+import com.joulespersecond.oba.elements.ObaRoute;
+import com.joulespersecond.oba.elements.ObaStop;
+import com.joulespersecond.oba.elements.ObaStopElement;
 import com.joulespersecond.oba.provider.ObaContract;
 import com.joulespersecond.oba.provider.ObaProvider;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.test.ProviderTestCase2;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
 public class ProviderTest extends ProviderTestCase2<ObaProvider> {
 
     public ProviderTest() {
@@ -147,4 +157,200 @@ public class ProviderTest extends ProviderTestCase2<ObaProvider> {
         c.close();
     }
 
+    public void testBulkInsert() {
+        ContentResolver cr = getMockContentResolver();
+        ContentValues[] values = new ContentValues[3];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = new ContentValues();
+            values[i].put(ObaContract.StopRouteFilters.STOP_ID, "1_29261");
+            values[i].put(ObaContract.StopRouteFilters.ROUTE_ID, "1_10" + i);
+        }
+        assertEquals(3, cr.bulkInsert(ObaContract.StopRouteFilters.CONTENT_URI, values));
+
+        Cursor c = cr.query(ObaContract.StopRouteFilters.CONTENT_URI,
+                new String[]{ObaContract.StopRouteFilters.ROUTE_ID},
+                null, null, null);
+        assertNotNull(c);
+        assertEquals(3, c.getCount());
+        c.close();
+    }
+
+    public void testApplyBatch() throws Exception {
+        ContentResolver cr = getMockContentResolver();
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ops.add(ContentProviderOperation.newInsert(ObaContract.TripAlerts.CONTENT_URI)
+                .withValue(ObaContract.TripAlerts.TRIP_ID, "1_12345")
+                .withValue(ObaContract.TripAlerts.STOP_ID, "1_29261")
+                .withValue(ObaContract.TripAlerts.START_TIME, 1000)
+                .build());
+        ops.add(ContentProviderOperation.newInsert(ObaContract.TripAlerts.CONTENT_URI)
+                .withValue(ObaContract.TripAlerts.TRIP_ID, "1_12346")
+                .withValue(ObaContract.TripAlerts.STOP_ID, "1_29261")
+                .withValue(ObaContract.TripAlerts.START_TIME, 2000)
+                .build());
+        ContentProviderResult[] results = cr.applyBatch(ObaContract.AUTHORITY, ops);
+        assertEquals(2, results.length);
+        assertNotNull(results[0].uri);
+        assertNotNull(results[1].uri);
+
+        // A failing operation rolls back the whole batch.
+        ops.clear();
+        ops.add(ContentProviderOperation.newDelete(results[0].uri).build());
+        ops.add(ContentProviderOperation.newDelete(results[0].uri)
+                .withExpectedCount(1)
+                .build());
+        try {
+            cr.applyBatch(ObaContract.AUTHORITY, ops);
+            fail("Expected the batch to fail");
+        } catch (OperationApplicationException e) {
+            // Expected
+        }
+        Cursor c = cr.query(ObaContract.TripAlerts.CONTENT_URI,
+                new String[]{ObaContract.TripAlerts._ID},
+                null, null, null);
+        assertNotNull(c);
+        assertEquals(2, c.getCount());
+        c.close();
+    }
+
+    public void testStopUpsert() {
+        ContentResolver cr = getMockContentResolver();
+        final String stopId = "1_11060-TEST";
+        final Uri uri = Uri.withAppendedPath(ObaContract.Stops.CONTENT_URI, stopId);
+        ContentValues values = new ContentValues();
+        values.put(ObaContract.Stops.CODE, "11060");
+        values.put(ObaContract.Stops.NAME, "Broadway & E Denny Way");
+        values.put(ObaContract.Stops.DIRECTION, "S");
+        values.put(ObaContract.Stops.LATITUDE, 47.617676);
+        values.put(ObaContract.Stops.LONGITUDE, -122.314523);
+
+        final Uri usedUri = uri.buildUpon()
+                .appendQueryParameter(ObaContract.MARK_USED, "true")
+                .build();
+        assertEquals(uri, cr.insert(usedUri, values));
+        assertEquals(uri, cr.insert(usedUri, values));
+        // Updating without marking as used keeps the count.
+        values.put(ObaContract.Stops.NAME, "Broadway & Denny");
+        assertEquals(uri, cr.insert(uri, values));
+
+        Cursor c = cr.query(uri,
+                new String[]{ObaContract.Stops.USE_COUNT, ObaContract.Stops.NAME},
+                null, null, null);
+        assertNotNull(c);
+        assertEquals(1, c.getCount());
+        c.moveToNext();
+        assertEquals(2, c.getInt(0));
+        assertEquals("Broadway & Denny", c.getString(1));
+        c.close();
+    }
+
+    public void testStopLocations() {
+        ArrayList<ObaStop> stops = new ArrayList<ObaStop>();
+        stops.add(new ObaStopElement("1_11060", 47.617676, -122.314523, "S",
+                "Broadway & E Denny Way", "11060", new String[]{"1_10", "1_49"}));
+        stops.add(new ObaStopElement("1_29261", 47.661, -122.317, "N",
+                "15th Ave NE & NE 45th St", "29261", ObaStopElement.EMPTY_ROUTES));
+        ObaContract.StopLocations.insert(getMockContext(), 1L, stops);
+        // Seeing a stop again replaces it
+        ObaContract.StopLocations.insert(getMockContext(), 1L, stops.subList(0, 1));
+
+        List<ObaStop> result = ObaContract.StopLocations.getStops(getMockContext(), 1L,
+                47.61, 47.62, -122.32, -122.31);
+        assertEquals(1, result.size());
+        ObaStop stop = result.get(0);
+        assertEquals("1_11060", stop.getId());
+        assertEquals("11060", stop.getStopCode());
+        assertEquals(47.617676, stop.getLatitude(), 0.000001);
+        assertEquals(2, stop.getRouteIds().length);
+        assertEquals("1_49", stop.getRouteIds()[1]);
+
+        // Other regions don't see it
+        result = ObaContract.StopLocations.getStops(getMockContext(), 2L,
+                47.61, 47.62, -122.32, -122.31);
+        assertEquals(0, result.size());
+    }
+
+    public void testSearch() {
+        assertEquals("e* denny*", ObaContract.getMatchQuery("  E. Denny "));
+        assertNull(ObaContract.getMatchQuery("-- &"));
+
+        ContentResolver cr = getMockContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(ObaContract.Stops.CODE, "11060");
+        values.put(ObaContract.Stops.NAME, "Broadway & E Denny Way");
+        values.put(ObaContract.Stops.DIRECTION, "S");
+        values.put(ObaContract.Stops.LATITUDE, 47.617676);
+        values.put(ObaContract.Stops.LONGITUDE, -122.314523);
+        values.put(ObaContract.Stops.REGION_ID, 1);
+        ObaContract.Stops.insertOrUpdate(getMockContext(), "1_11060", values, true);
+
+        ArrayList<ObaStop> stops = new ArrayList<ObaStop>();
+        stops.add(new ObaStopElement("1_11060", 47.617676, -122.314523, "S",
+                "Broadway & E Denny Way", "11060", ObaStopElement.EMPTY_ROUTES));
+        stops.add(new ObaStopElement("1_11120", 47.620, -122.320, "N",
+                "Broadway & E Olive Way", "11120", ObaStopElement.EMPTY_ROUTES));
+        ObaContract.StopLocations.insert(getMockContext(), 1L, stops);
+        // Replacing a stop doesn't leave its old name searchable.
+        ObaContract.StopLocations.insert(getMockContext(), 1L, stops.subList(1, 2));
+
+        // The used stop comes first, and isn't repeated.
+        List<ObaStop> result = ObaContract.Stops.search(getMockContext(), 1L, "broad", 10);
+        assertEquals(2, result.size());
+        assertEquals("1_11060", result.get(0).getId());
+        assertEquals("1_11120", result.get(1).getId());
+
+        result = ObaContract.Stops.search(getMockContext(), 1L, "olive b", 10);
+        assertEquals(1, result.size());
+        assertEquals("1_11120", result.get(0).getId());
+
+        result = ObaContract.Stops.search(getMockContext(), 1L, "11060", 10);
+        assertEquals(1, result.size());
+
+        // Renaming a stop renames it in the index.
+        ContentValues rename = new ContentValues();
+        rename.put(ObaContract.Stops.USER_NAME, "Capitol Hill Station");
+        cr.update(Uri.withAppendedPath(ObaContract.Stops.CONTENT_URI, "1_11060"),
+                rename, null, null);
+        result = ObaContract.Stops.search(getMockContext(), 1L, "capitol", 10);
+        assertEquals(1, result.size());
+        assertEquals("Capitol Hill Station", result.get(0).getName());
+
+        // Deleting a stop takes it out of the index.
+        cr.delete(ObaContract.StopLocations.CONTENT_URI, null, null);
+        result = ObaContract.Stops.search(getMockContext(), 1L, "olive", 10);
+        assertEquals(0, result.size());
+
+        values = new ContentValues();
+        values.put(ObaContract.Routes.SHORTNAME, "49");
+        values.put(ObaContract.Routes.LONGNAME, "University District - Capitol Hill");
+        values.put(ObaContract.Routes.REGION_ID, 1);
+        ObaContract.Routes.insertOrUpdate(getMockContext(), "1_49", values, true);
+        List<ObaRoute> routes = ObaContract.Routes.search(getMockContext(), 1L, "49", 10);
+        assertEquals(1, routes.size());
+        assertEquals("1_49", routes.get(0).getId());
+        routes = ObaContract.Routes.search(getMockContext(), 1L, "univ", 10);
+        assertEquals(1, routes.size());
+        routes = ObaContract.Routes.search(getMockContext(), 2L, "univ", 10);
+        assertEquals(0, routes.size());
+    }
+
+    public void testGetIds() {
+        ArrayList<ObaStop> stops = new ArrayList<ObaStop>();
+        stops.add(new ObaStopElement("1_11060", 47.617676, -122.314523, "S",
+                "Broadway & E Denny Way", "11060", ObaStopElement.EMPTY_ROUTES));
+        ObaContract.StopLocations.insert(getMockContext(), 1L, stops);
+
+        HashSet<String> ids = ObaContract.StopLocations.getIds(getMockContext(), 1L);
+        assertEquals(1, ids.size());
+        assertTrue(ids.contains("1_11060"));
+
+        ContentValues values = new ContentValues();
+        values.put(ObaContract.Routes.SHORTNAME, "49");
+        values.put(ObaContract.Routes.REGION_ID, 1);
+        // Catalog routes aren't marked as used.
+        ObaContract.Routes.insertOrUpdate(getMockContext(), "1_49", values, false);
+        ids = ObaContract.Routes.getIds(getMockContext(), 1L);
+        assertEquals(1, ids.size());
+        assertEquals(0, ObaContract.Routes.getIds(getMockContext(), 2L).size());
+    }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.provider.test;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Measures how long a recent-stops style query takes while another thread
+ * keeps writing, with the default rollback journal and with write-ahead logging.
+ * The results are logged; the test only fails if the reader can't make progress.
+ */
+public class WalBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = "WalBenchmarkTest";
+
+    private static final String DB_NAME = "wal_benchmark.db";
+
+    private static final int ROWS = 2000;
+
+    private static final int READS = 200;
+
+    private static final int WRITE_BATCH = 50;
+
+    private static final class Result {
+
+        double avgMs;
+
+        double maxMs;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(DB_NAME);
+        super.tearDown();
+    }
+
+    public void testReaderLatency() throws Exception {
+        Result journal = run(false);
+        Log.i(TAG, String.format("Rollback journal: avg=%.2fms max=%.2fms",
+                journal.avgMs, journal.maxMs));
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            Result wal = run(true);
+            Log.i(TAG, String.format("Write-ahead log:  avg=%.2fms max=%.2fms",
+                    wal.avgMs, wal.maxMs));
+        }
+    }
+
+    private Result run(boolean wal) throws Exception {
+        getContext().deleteDatabase(DB_NAME);
+        final SQLiteDatabase db = getContext().openOrCreateDatabase(DB_NAME,
+                Context.MODE_PRIVATE, null);
+        try {
+            if (wal) {
+                assertTrue(db.enableWriteAheadLogging());
+            }
+            db.execSQL("CREATE TABLE stops (_id VARCHAR PRIMARY KEY, name VARCHAR NOT NULL, " +
+                    "use_count INTEGER NOT NULL, access_time INTEGER)");
+            db.execSQL("CREATE INDEX stops_use_count ON stops (use_count)");
+            db.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                for (int i = 0; i < ROWS; ++i) {
+                    values.put("_id", "1_" + i);
+                    values.put("name", "Stop " + i);
+                    values.put("use_count", i % 10);
+                    values.put("access_time", i);
+                    db.insert("stops", null, values);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            final boolean[] done = {false};
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    int i = 0;
+                    while (!isDone(done)) {
+                        db.beginTransaction();
+                        try {
+                            for (int j = 0; j < WRITE_BATCH; ++j, ++i) {
+                                db.execSQL("UPDATE stops SET use_count=use_count+1, " +
+                                        "access_time=? WHERE _id=?",
+                                        new Object[]{System.currentTimeMillis(),
+                                                "1_" + (i % ROWS)});
+                            }
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
+                        }
+                    }
+                }
+            };
+            writer.start();
+
+            double total = 0;
+            double max = 0;
+            for (int i = 0; i < READS; ++i) {
+                final long start = SystemClock.elapsedRealtime();
+                Cursor c = db.rawQuery("SELECT _id, name FROM stops WHERE use_count > 0 " +
+                        "ORDER BY use_count DESC LIMIT 20", null);
+                assertTrue(c.getCount() > 0);
+                c.close();
+                final double ms = SystemClock.elapsedRealtime() - start;
+                total += ms;
+                max = Math.max(max, ms);
+            }
+
+            synchronized (done) {
+                done[0] = true;
+            }
+            writer.join();
+
+            Result result = new Result();
+            result.avgMs = total / READS;
+            result.maxMs = max;
+            return result;
+        } finally {
+            db.close();
+        }
+    }
+
+    private static boolean isDone(boolean[] done) {
+        synchronized (done) {
+            return done[0];
+        }
+    }
+}
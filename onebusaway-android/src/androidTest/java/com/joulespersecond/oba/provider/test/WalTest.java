@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.provider.test;
+
+import com.joulespersecond.oba.elements.ObaStop;
+import com.joulespersecond.oba.elements.ObaStopElement;
+import com.joulespersecond.oba.provider.ObaContract;
+import com.joulespersecond.oba.provider.ObaContract.StopLocations;
+import com.joulespersecond.oba.provider.ObaProvider;
+import com.joulespersecond.seattlebusbot.Application;
+import com.joulespersecond.seattlebusbot.R;
+
+import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.ProviderTestCase2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs ObaProvider with the write-ahead logging preference on. Large
+ * writes checkpoint after they commit, and a reader doesn't wait for
+ * a write transaction on another connection.
+ */
+public class WalTest extends ProviderTestCase2<ObaProvider> {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    // Enough rows for a write to checkpoint, and too few.
+    private static final int LARGE = 100;
+
+    private static final int SMALL = 10;
+
+    private String mKey;
+
+    private Boolean mOldWal;
+
+    public WalTest() {
+        super(ObaProvider.class, ObaContract.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mKey = getContext().getString(R.string.preference_key_db_wal);
+        SharedPreferences prefs = Application.getPrefs();
+        mOldWal = prefs.contains(mKey) ? prefs.getBoolean(mKey, false) : null;
+        setWal(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getProvider().closeDB();
+        SharedPreferences.Editor edit = Application.getPrefs().edit();
+        if (mOldWal != null) {
+            edit.putBoolean(mKey, mOldWal);
+        } else {
+            edit.remove(mKey);
+        }
+        edit.commit();
+        super.tearDown();
+    }
+
+    private void setWal(boolean enabled) {
+        Application.getPrefs().edit().putBoolean(mKey, enabled).commit();
+        // It's read when the database is opened.
+        getProvider().closeDB();
+    }
+
+    private void insertStops(int count, String name) {
+        List<ObaStop> stops = new ArrayList<ObaStop>(count);
+        for (int i = 0; i < count; ++i) {
+            stops.add(new ObaStopElement("1_WalTest" + i, 47.6 + i * 0.001, -122.3, "N",
+                    name, String.valueOf(i), new String[0]));
+        }
+        StopLocations.insert(getMockContext(), null, stops);
+    }
+
+    private String getName(String id) {
+        Cursor c = getMockContentResolver().query(StopLocations.CONTENT_URI,
+                new String[]{StopLocations.NAME},
+                StopLocations._ID + "=?", new String[]{id}, null);
+        assertNotNull(c);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testEnabled() {
+        assertEquals(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB,
+                ObaProvider.isWriteAheadLoggingEnabled(getMockContext()));
+        setWal(false);
+        assertFalse(ObaProvider.isWriteAheadLoggingEnabled(getMockContext()));
+    }
+
+    public void testCheckpoint() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        final ObaProvider provider = getProvider();
+        insertStops(SMALL, "Stop");
+        assertEquals(0, provider.getCheckpointCount());
+
+        insertStops(LARGE, "Stop");
+        assertEquals(1, provider.getCheckpointCount());
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < LARGE; ++i) {
+            ContentValues values = new ContentValues();
+            values.put(StopLocations.NAME, "Renamed");
+            ops.add(ContentProviderOperation.newUpdate(StopLocations.CONTENT_URI)
+                    .withSelection(StopLocations._ID + "=?", new String[]{"1_WalTest" + i})
+                    .withValues(values)
+                    .build());
+        }
+        assertNotNull(ObaContract.applyBatch(getMockContentResolver(), ops));
+        assertEquals(2, provider.getCheckpointCount());
+    }
+
+    public void testNoCheckpointWithoutWal() {
+        setWal(false);
+        insertStops(LARGE, "Stop");
+        assertEquals(0, getProvider().getCheckpointCount());
+    }
+
+    // Opening the writer's connection in WAL mode needs API 16.
+    @TargetApi(16)
+    public void testReaderDoesntWaitForWriter() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        insertStops(1, "Old");
+
+        final SQLiteDatabase db = SQLiteDatabase.openDatabase(
+                ObaProvider.getDatabasePath(getMockContext()).getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+        try {
+            final CountDownLatch written = new CountDownLatch(1);
+            final CountDownLatch commit = new CountDownLatch(1);
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    db.beginTransaction();
+                    try {
+                        db.execSQL("UPDATE " + StopLocations.PATH + " SET "
+                                + StopLocations.NAME + "='New'");
+                        written.countDown();
+                        // Without WAL the provider's read would wait here until the timeout.
+                        commit.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                        db.setTransactionSuccessful();
+                    } catch (InterruptedException e) {
+                        // Roll back
+                    } finally {
+                        db.endTransaction();
+                    }
+                }
+            };
+            writer.start();
+            assertTrue(written.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+            // The write is still open: the provider reads the old value, right away.
+            final long start = System.currentTimeMillis();
+            assertEquals("Old", getName("1_WalTest0"));
+            assertTrue(System.currentTimeMillis() - start < TIMEOUT_MS / 2);
+
+            commit.countDown();
+            writer.join();
+            assertEquals("New", getName("1_WalTest0"));
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.joulespersecond.oba.request.test;
 
+import com.joulespersecond.oba.ObaApi;
 import com.joulespersecond.oba.elements.ObaAgency;
 import com.joulespersecond.oba.elements.ObaArrivalInfo;
 import com.joulespersecond.oba.elements.ObaRegion;
@@ -27,6 +28,8 @@ import com.joulespersecond.oba.request.ObaArrivalInfoResponse;
 import com.joulespersecond.seattlebusbot.Application;
 import com.joulespersecond.seattlebusbot.test.UriAssert;
 
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.List;
 
@@ -224,6 +227,31 @@ public class ArrivalInfoRequestTest extends ObaTestCase {
         //assertEquals("diversion", consequences[0].getCondition());
     }
 
+    public void testWriteResponse() throws Exception {
+        ObaArrivalInfoResponse response =
+                new ObaArrivalInfoRequest.Builder(getContext(), "1_29261").build().call();
+        assertOK(response);
+
+        // What's written reads back the same as the response, like ArrivalsCache does.
+        StringWriter writer = new StringWriter();
+        ObaApi.getSerializer(ObaArrivalInfoResponse.class).write(response, writer);
+        ObaArrivalInfoResponse again = ObaApi.getSerializer(ObaArrivalInfoResponse.class)
+                .deserialize(new StringReader(writer.toString()), ObaArrivalInfoResponse.class);
+        assertOK(again);
+        assertEquals(response.getStop().getId(), again.getStop().getId());
+        assertEquals(response.getNearbyStops().size(), again.getNearbyStops().size());
+        ObaArrivalInfo[] arrivals = response.getArrivalInfo();
+        ObaArrivalInfo[] arrivalsAgain = again.getArrivalInfo();
+        assertEquals(arrivals.length, arrivalsAgain.length);
+        for (int i = 0; i < arrivals.length; ++i) {
+            assertEquals(arrivals[i].getTripId(), arrivalsAgain[i].getTripId());
+            assertEquals(arrivals[i].getPredictedArrivalTime(),
+                    arrivalsAgain[i].getPredictedArrivalTime());
+            assertEquals(arrivals[i].getScheduledArrivalTime(),
+                    arrivalsAgain[i].getScheduledArrivalTime());
+        }
+    }
+
     // TODO: get/create situation response
     /*
     public void testTripSituation() throws Exception {
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.request.test;
+
+import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.ObaConnection;
+import com.joulespersecond.oba.ObaConnectionFactory;
+import com.joulespersecond.oba.ObaPooledConnectionFactory;
+import com.joulespersecond.oba.request.ObaStopRequest;
+import com.joulespersecond.oba.request.ObaStopResponse;
+import com.joulespersecond.oba.request.RequestBase;
+import com.joulespersecond.oba.request.RequestExecutor;
+import com.joulespersecond.oba.request.RequestFuture;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class CancelTest extends ObaTestCase {
+
+    private static final String STOP_ID = "1_29261";
+
+    private final Semaphore mOpened = new Semaphore(0);
+
+    private HangingConnection mConnection;
+
+    @Override
+    protected void setUp() {
+        super.setUp();
+        RequestBase.resetStats();
+        // ObaMock puts back the original factory when we're done.
+        mConnection = new HangingConnection(mOpened);
+        ObaApi.getDefaultContext().setConnectionFactory(new ObaConnectionFactory() {
+            @Override
+            public ObaConnection newConnection(Uri uri) throws IOException {
+                return mConnection;
+            }
+        });
+    }
+
+    public void testCancelBeforeCall() {
+        ObaStopRequest request = ObaStopRequest.newRequest(getContext(), STOP_ID);
+        request.cancel();
+        assertTrue(request.isCancelled());
+        assertEquals(ObaApi.OBA_IO_EXCEPTION, request.call().getCode());
+        assertEquals(0, RequestBase.getFetchCount());
+    }
+
+    public void testCancelClosesConnection() throws Exception {
+        final ObaStopRequest request = ObaStopRequest.newRequest(getContext(), STOP_ID);
+        final ObaStopResponse[] response = new ObaStopResponse[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                response[0] = request.call();
+            }
+        };
+        thread.start();
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        request.cancel();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertTrue(mConnection.isDisconnected());
+        assertEquals(ObaApi.OBA_IO_EXCEPTION, response[0].getCode());
+    }
+
+    public void testCancelWaiterKeepsFetch() throws Exception {
+        final ObaStopRequest owner = ObaStopRequest.newRequest(getContext(), STOP_ID);
+        final ObaStopRequest waiter = ObaStopRequest.newRequest(getContext(), STOP_ID);
+        final ObaStopResponse[] responses = new ObaStopResponse[2];
+        Thread ownerThread = new Thread() {
+            @Override
+            public void run() {
+                responses[0] = owner.call();
+            }
+        };
+        Thread waiterThread = new Thread() {
+            @Override
+            public void run() {
+                responses[1] = waiter.call();
+            }
+        };
+        ownerThread.start();
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        waiterThread.start();
+        for (int i = 0; i < 500 && RequestBase.getSharedCount() < 1; ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, RequestBase.getSharedCount());
+
+        // The waiter stops waiting, but the owner is still on the network.
+        waiter.cancel();
+        waiterThread.join(5000);
+        assertFalse(waiterThread.isAlive());
+        assertEquals(ObaApi.OBA_IO_EXCEPTION, responses[1].getCode());
+        assertFalse(mConnection.isDisconnected());
+        assertTrue(ownerThread.isAlive());
+
+        owner.cancel();
+        ownerThread.join(5000);
+        assertFalse(ownerThread.isAlive());
+        assertTrue(mConnection.isDisconnected());
+    }
+
+    public void testCancelOwnerKeepsFetchForWaiter() throws Exception {
+        final ObaStopRequest owner = ObaStopRequest.newRequest(getContext(), STOP_ID);
+        final ObaStopRequest waiter = ObaStopRequest.newRequest(getContext(), STOP_ID);
+        Thread ownerThread = new Thread() {
+            @Override
+            public void run() {
+                owner.call();
+            }
+        };
+        Thread waiterThread = new Thread() {
+            @Override
+            public void run() {
+                waiter.call();
+            }
+        };
+        ownerThread.start();
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        waiterThread.start();
+        for (int i = 0; i < 500 && RequestBase.getSharedCount() < 1; ++i) {
+            Thread.sleep(10);
+        }
+
+        // Someone still wants the response, so the connection stays open.
+        owner.cancel();
+        Thread.sleep(100);
+        assertFalse(mConnection.isDisconnected());
+
+        waiter.cancel();
+        ownerThread.join(5000);
+        waiterThread.join(5000);
+        assertFalse(ownerThread.isAlive());
+        assertFalse(waiterThread.isAlive());
+        assertTrue(mConnection.isDisconnected());
+    }
+
+    public void testCancelFuture() throws Exception {
+        RequestFuture<ObaStopResponse> future = RequestExecutor.execute(
+                ObaStopRequest.newRequest(getContext(), STOP_ID),
+                RequestExecutor.PRIORITY_HIGH);
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        assertTrue(future.cancel(false));
+        assertNull(future.getResponse());
+        assertTrue(mConnection.awaitDisconnected(5, TimeUnit.SECONDS));
+    }
+
+    public void testCancelPooledConnectionOnMainThread() throws Exception {
+        // A server that accepts the connection and never answers.
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final CountDownLatch accepted = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    accepted.countDown();
+                    InputStream in = socket.getInputStream();
+                    byte[] buffer = new byte[1024];
+                    while (in.read(buffer) != -1) {
+                        // Discard the request
+                    }
+                    socket.close();
+                    closed.countDown();
+                } catch (IOException e) {
+                    // The test fails on the latches.
+                }
+            }
+        };
+        serverThread.start();
+        final Uri uri = Uri.parse("http://127.0.0.1:" + server.getLocalPort() + "/");
+        ObaApi.getDefaultContext().setConnectionFactory(new ObaConnectionFactory() {
+            @Override
+            public ObaConnection newConnection(Uri ignored) throws IOException {
+                return ObaPooledConnectionFactory.getInstance().newConnection(uri);
+            }
+        });
+
+        try {
+            final ObaStopRequest request = ObaStopRequest.newRequest(getContext(), STOP_ID);
+            final ObaStopResponse[] response = new ObaStopResponse[1];
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    response[0] = request.call();
+                }
+            };
+            thread.start();
+            assertTrue(accepted.await(5, TimeUnit.SECONDS));
+
+            // The loaders cancel on the main thread, where reading would throw.
+            final Throwable[] error = new Throwable[1];
+            final CountDownLatch cancelled = new CountDownLatch(1);
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        request.cancel();
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    }
+                    cancelled.countDown();
+                }
+            });
+            assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+            assertNull(error[0]);
+
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+            assertEquals(ObaApi.OBA_IO_EXCEPTION, response[0].getCode());
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.request.test;
+
+import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.ObaConnection;
+import com.joulespersecond.oba.ObaConnectionFactory;
+import com.joulespersecond.oba.request.ObaStopRequest;
+import com.joulespersecond.oba.request.ObaStopResponse;
+import com.joulespersecond.oba.request.RequestBase;
+
+import android.net.Uri;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+public class CoalesceTest extends ObaTestCase {
+
+    private static final int THREADS = 4;
+
+    @Override
+    protected void setUp() {
+        super.setUp();
+        RequestBase.resetStats();
+    }
+
+    public void testConcurrentRequestsShareOneFetch() throws Exception {
+        // Hold the first request until all the others are waiting on it.
+        // ObaMock puts back the original factory when we're done.
+        final CountDownLatch release = new CountDownLatch(1);
+        final ObaConnectionFactory mock = ObaApi.getDefaultContext().getConnectionFactory();
+        ObaApi.getDefaultContext().setConnectionFactory(new ObaConnectionFactory() {
+            @Override
+            public ObaConnection newConnection(Uri uri) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                return mock.newConnection(uri);
+            }
+        });
+
+        final ObaStopResponse[] responses = new ObaStopResponse[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; ++i) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    responses[index] = ObaStopRequest.newRequest(getContext(), "1_29261").call();
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < 500 && RequestBase.getSharedCount() < THREADS - 1; ++i) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, RequestBase.getFetchCount());
+        assertEquals(THREADS - 1, RequestBase.getSharedCount());
+        assertOK(responses[0]);
+        for (ObaStopResponse response : responses) {
+            assertSame(responses[0], response);
+        }
+    }
+
+    public void testSequentialRequestsAreNotShared() {
+        assertOK(ObaStopRequest.newRequest(getContext(), "1_29261").call());
+        assertOK(ObaStopRequest.newRequest(getContext(), "1_29261").call());
+        assertEquals(2, RequestBase.getFetchCount());
+        assertEquals(0, RequestBase.getSharedCount());
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.request.test;
+
+import com.joulespersecond.oba.ObaConnection;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection that never gets a response, until it's disconnected.
+ * It releases a permit on the given semaphore when the request reaches it.
+ */
+public final class HangingConnection implements ObaConnection {
+
+    private final Semaphore mOpened;
+
+    private final CountDownLatch mDisconnected = new CountDownLatch(1);
+
+    public HangingConnection(Semaphore opened) {
+        mOpened = opened;
+    }
+
+    public boolean isDisconnected() {
+        return mDisconnected.getCount() == 0;
+    }
+
+    public boolean awaitDisconnected(long timeout, TimeUnit unit) throws InterruptedException {
+        return mDisconnected.await(timeout, unit);
+    }
+
+    @Override
+    public void disconnect() {
+        mDisconnected.countDown();
+    }
+
+    @Override
+    public void abort() {
+        mDisconnected.countDown();
+    }
+
+    @Override
+    public Reader get() throws IOException {
+        return hang();
+    }
+
+    @Override
+    public Reader post(String string) throws IOException {
+        return hang();
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        hang();
+        return 0;
+    }
+
+    private Reader hang() throws IOException {
+        mOpened.release();
+        try {
+            mDisconnected.await();
+        } catch (InterruptedException e) {
+            // Like a socket, ignore it.
+        }
+        throw new IOException("Disconnected");
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.request.test;
+
+import com.joulespersecond.oba.ObaConnection;
+import com.joulespersecond.oba.ObaPooledConnectionFactory;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PooledConnectionTest extends AndroidTestCase {
+
+    private static final String RESPONSE = "HTTP/1.1 200 OK\r\n"
+            + "Content-Type: application/json\r\n"
+            + "Content-Length: 2\r\n"
+            + "\r\n"
+            + "{}";
+
+    private ServerSocket mServer;
+
+    // How many sockets the server has accepted.
+    private final AtomicInteger mAccepted = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // A keep-alive server that answers every request on a socket with RESPONSE.
+        mServer = new ServerSocket(0, 4, InetAddress.getByName("127.0.0.1"));
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (; ; ) {
+                        serve(mServer.accept());
+                    }
+                } catch (IOException e) {
+                    // Closed by tearDown()
+                }
+            }
+        }.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    private void serve(final Socket socket) {
+        mAccepted.incrementAndGet();
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    BufferedReader in = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream()));
+                    OutputStream out = socket.getOutputStream();
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        if (line.length() == 0) {
+                            out.write(RESPONSE.getBytes());
+                            out.flush();
+                        }
+                    }
+                    socket.close();
+                } catch (IOException e) {
+                    // The client went away.
+                }
+            }
+        }.start();
+    }
+
+    private void fetch(ObaPooledConnectionFactory factory) throws IOException {
+        ObaConnection conn = factory.newConnection(
+                Uri.parse("http://127.0.0.1:" + mServer.getLocalPort() + "/"));
+        try {
+            assertEquals(200, conn.getResponseCode());
+            Reader reader = conn.get();
+            char[] buffer = new char[16];
+            assertEquals(2, reader.read(buffer));
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    public void testReuse() throws Exception {
+        ObaPooledConnectionFactory factory = ObaPooledConnectionFactory.getInstance();
+        factory.resetCounters();
+        fetch(factory);
+        fetch(factory);
+        fetch(factory);
+        assertEquals(3, factory.getOpenedCount());
+        assertEquals(3, factory.getReleasedCount());
+        assertEquals(0, factory.getClosedCount());
+        // All three went out on the same socket.
+        assertEquals(1, mAccepted.get());
+    }
+
+    public void testPolicyIsFixedOnceUsed() throws Exception {
+        ObaPooledConnectionFactory factory = ObaPooledConnectionFactory.getInstance();
+        fetch(factory);
+        try {
+            factory.setPolicy(2, 1000);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.request.test;
+
+import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.ObaConnection;
+import com.joulespersecond.oba.ObaConnectionFactory;
+import com.joulespersecond.oba.request.ObaStopRequest;
+import com.joulespersecond.oba.request.RequestExecutor;
+
+import android.net.Uri;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class SchedulerTest extends ObaTestCase {
+
+    // This one has a mock response, the others hang.
+    private static final String STOP_ID = "1_29261";
+
+    private final Semaphore mOpened = new Semaphore(0);
+
+    @Override
+    protected void setUp() {
+        super.setUp();
+        // ObaMock puts back the original factory when we're done.
+        final ObaConnectionFactory mock = ObaApi.getDefaultContext().getConnectionFactory();
+        ObaApi.getDefaultContext().setConnectionFactory(new ObaConnectionFactory() {
+            @Override
+            public ObaConnection newConnection(Uri uri) throws IOException {
+                if (uri.getPath().contains(STOP_ID)) {
+                    return mock.newConnection(uri);
+                }
+                return new HangingConnection(mOpened);
+            }
+        });
+        // As if an activity is showing.
+        RequestExecutor.setActivityResumed(true);
+    }
+
+    @Override
+    protected void tearDown() {
+        RequestExecutor.setActivityResumed(false);
+        super.tearDown();
+    }
+
+    private static Thread start(final ObaStopRequest request) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                request.call();
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    public void testLowPriorityWaits() throws Exception {
+        // In the foreground, so only one low priority request at a time.
+        ObaStopRequest high = ObaStopRequest.newRequest(getContext(), STOP_ID);
+        high.setPriority(RequestExecutor.PRIORITY_HIGH);
+        assertOK(high.call());
+
+        ObaStopRequest low1 = ObaStopRequest.newRequest(getContext(), "1_10020");
+        low1.setPriority(RequestExecutor.PRIORITY_LOW);
+        ObaStopRequest low2 = ObaStopRequest.newRequest(getContext(), "1_10030");
+        low2.setPriority(RequestExecutor.PRIORITY_LOW);
+        Thread thread1 = start(low1);
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        Thread thread2 = start(low2);
+        assertFalse(mOpened.tryAcquire(200, TimeUnit.MILLISECONDS));
+
+        // The low priority requests don't hold up the high priority ones.
+        high = ObaStopRequest.newRequest(getContext(), STOP_ID);
+        high.setPriority(RequestExecutor.PRIORITY_HIGH);
+        assertOK(high.call());
+
+        // When the first one is done, the second one goes.
+        low1.cancel();
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        low2.cancel();
+        thread1.join(5000);
+        thread2.join(5000);
+        assertFalse(thread1.isAlive());
+        assertFalse(thread2.isAlive());
+    }
+
+    public void testLowPriorityInBackground() throws Exception {
+        RequestExecutor.setActivityResumed(false);
+        // Nothing is showing, so two low priority requests can go,
+        // however recently there was a high priority one.
+        ObaStopRequest high = ObaStopRequest.newRequest(getContext(), STOP_ID);
+        high.setPriority(RequestExecutor.PRIORITY_HIGH);
+        assertOK(high.call());
+
+        ObaStopRequest low1 = ObaStopRequest.newRequest(getContext(), "1_10020");
+        low1.setPriority(RequestExecutor.PRIORITY_LOW);
+        ObaStopRequest low2 = ObaStopRequest.newRequest(getContext(), "1_10030");
+        low2.setPriority(RequestExecutor.PRIORITY_LOW);
+        ObaStopRequest low3 = ObaStopRequest.newRequest(getContext(), "1_10040");
+        low3.setPriority(RequestExecutor.PRIORITY_LOW);
+        Thread thread1 = start(low1);
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        Thread thread2 = start(low2);
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        Thread thread3 = start(low3);
+        assertFalse(mOpened.tryAcquire(200, TimeUnit.MILLISECONDS));
+
+        // Back in the foreground, the third waits for both to finish.
+        RequestExecutor.setActivityResumed(true);
+        low1.cancel();
+        assertFalse(mOpened.tryAcquire(200, TimeUnit.MILLISECONDS));
+        low2.cancel();
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        low3.cancel();
+        thread1.join(5000);
+        thread2.join(5000);
+        thread3.join(5000);
+        assertFalse(thread1.isAlive());
+        assertFalse(thread2.isAlive());
+        assertFalse(thread3.isAlive());
+    }
+
+    public void testHighPriorityHasRoom() throws Exception {
+        ObaStopRequest high = ObaStopRequest.newRequest(getContext(), STOP_ID);
+        high.setPriority(RequestExecutor.PRIORITY_HIGH);
+        assertOK(high.call());
+
+        // One low and two normal requests fill every slot but the last.
+        ObaStopRequest low = ObaStopRequest.newRequest(getContext(), "1_10020");
+        low.setPriority(RequestExecutor.PRIORITY_LOW);
+        ObaStopRequest normal1 = ObaStopRequest.newRequest(getContext(), "1_10030");
+        ObaStopRequest normal2 = ObaStopRequest.newRequest(getContext(), "1_10040");
+        ObaStopRequest normal3 = ObaStopRequest.newRequest(getContext(), "1_10050");
+        Thread thread1 = start(low);
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        Thread thread2 = start(normal1);
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        Thread thread3 = start(normal2);
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        Thread thread4 = start(normal3);
+        assertFalse(mOpened.tryAcquire(200, TimeUnit.MILLISECONDS));
+
+        high = ObaStopRequest.newRequest(getContext(), STOP_ID);
+        high.setPriority(RequestExecutor.PRIORITY_HIGH);
+        assertOK(high.call());
+
+        normal3.cancel();
+        normal2.cancel();
+        normal1.cancel();
+        low.cancel();
+        thread1.join(5000);
+        thread2.join(5000);
+        thread3.join(5000);
+        thread4.join(5000);
+        assertFalse(thread1.isAlive());
+        assertFalse(thread2.isAlive());
+        assertFalse(thread3.isAlive());
+        assertFalse(thread4.isAlive());
+    }
+
+    public void testCancelWhileWaiting() throws Exception {
+        ObaStopRequest high = ObaStopRequest.newRequest(getContext(), STOP_ID);
+        assertOK(high.call());
+
+        ObaStopRequest low1 = ObaStopRequest.newRequest(getContext(), "1_10020");
+        low1.setPriority(RequestExecutor.PRIORITY_LOW);
+        ObaStopRequest low2 = ObaStopRequest.newRequest(getContext(), "1_10030");
+        low2.setPriority(RequestExecutor.PRIORITY_LOW);
+        Thread thread1 = start(low1);
+        assertTrue(mOpened.tryAcquire(5, TimeUnit.SECONDS));
+        Thread thread2 = start(low2);
+        Thread.sleep(100);
+
+        // It stops waiting for its turn, and never goes to the network.
+        low2.cancel();
+        thread2.join(5000);
+        assertFalse(thread2.isAlive());
+        low1.cancel();
+        thread1.join(5000);
+        assertFalse(thread1.isAlive());
+        assertFalse(mOpened.tryAcquire(200, TimeUnit.MILLISECONDS));
+    }
+
+    public void testInvalidPriority() {
+        try {
+            ObaStopRequest.newRequest(getContext(), STOP_ID).setPriority(3);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.joulespersecond.oba.request.test;
 
+import com.joulespersecond.oba.elements.ObaPolyline;
 import com.joulespersecond.oba.request.ObaShapeRequest;
 import com.joulespersecond.oba.request.ObaShapeResponse;
 
@@ -33,6 +34,10 @@ public class ShapeRequestTest extends ObaTestCase {
         assertTrue(response.getLength() > 0);
         final List<Location> points = response.getPoints();
         assertTrue(points.size() > 0);
+        final ObaPolyline polyline = response.getPolyline();
+        assertEquals(points.size(), polyline.size());
+        assertEquals((int) Math.round(points.get(0).getLatitude() * 1E6),
+                polyline.getLatitudeE6(0));
     }
 
     public void testNewRequest() {
@@ -15,6 +15,7 @@
  */
 package com.joulespersecond.oba.request.test;
 
+import com.joulespersecond.oba.elements.ObaPolyline;
 import com.joulespersecond.oba.elements.ObaShapeElement;
 
 import android.location.Location;
@@ -66,4 +67,46 @@ public class ShapeTest extends AndroidTestCase {
         assertEquals(3, (int) list.get(2));
         assertEquals(3, (int) list.get(3));
     }
+
+    public void testDecodePolyline() {
+        ObaPolyline line = ObaPolyline.decode("_p~iF~ps|U_ulLnnqC_mqNvxq`@", null, 3);
+        assertNotNull(line);
+        assertEquals(3, line.size());
+        assertFalse(line.hasLevels());
+        assertEquals(38500000, line.getLatitudeE6(0));
+        assertEquals(-120200000, line.getLongitudeE6(0));
+        assertEquals(40700000, line.getLatitudeE6(1));
+        assertEquals(-120950000, line.getLongitudeE6(1));
+        assertEquals(43252000, line.getLatitudeE6(2));
+        assertEquals(-126453000, line.getLongitudeE6(2));
+
+        // A bad hint shouldn't matter
+        line = ObaPolyline.decode("_p~iF~ps|U_ulLnnqC_mqNvxq`@", "BBB", 0);
+        assertEquals(3, line.size());
+        assertTrue(line.hasLevels());
+        assertEquals(3, line.getLevel(2));
+
+        // The same encoded string should give back the cached line
+        assertSame(ObaPolyline.get("_p~iF~ps|U_ulLnnqC", "", 2),
+                ObaPolyline.get("_p~iF~ps|U_ulLnnqC", "", 2));
+
+        // But not if one of them has levels and the other doesn't
+        ObaPolyline plain = ObaPolyline.get("_p~iF~ps|U", "", 1);
+        ObaPolyline withLevels = ObaPolyline.get("_p~iF~ps|U", "B", 1);
+        assertFalse(plain.hasLevels());
+        assertTrue(withLevels.hasLevels());
+        assertFalse(ObaPolyline.get("_p~iF~ps|U", null, 1).hasLevels());
+    }
+
+    public void testDecodeLevelsArray() {
+        int[] levels = ObaPolyline.decodeLevels("mD", 1);
+        assertEquals(1, levels.length);
+        assertEquals(174, levels[0]);
+
+        levels = ObaPolyline.decodeLevels("BBBB", 1);
+        assertEquals(4, levels.length);
+        for (int level : levels) {
+            assertEquals(3, level);
+        }
+    }
 }
@@ -26,6 +26,7 @@ import com.joulespersecond.oba.serialization.JacksonSerializer;
 import android.util.Log;
 
 import java.io.Reader;
+import java.io.StringReader;
 
 public class JacksonTest extends ObaTestCase {
 
@@ -71,6 +72,41 @@ public class JacksonTest extends ObaTestCase {
         assertNotNull(response);
     }
 
+    public void testErrorFallback() throws Exception {
+        JacksonSerializer serializer = (JacksonSerializer) JacksonSerializer.getInstance();
+        serializer.setProfiling(true);
+        try {
+            serializer.resetStats();
+            ObaStopsForLocationResponse response = serializer.deserialize(
+                    new StringReader("{\"code\":404,\"version\":\"2\",\"text\":\"Not found\"}"),
+                    ObaStopsForLocationResponse.class);
+            assertEquals(404, response.getCode());
+            assertEquals("Not found", response.getText());
+
+            response = serializer.deserialize(Resources.read(getContext(),
+                    Resources.getTestUri("stops_for_location_downtown_seattle")),
+                    ObaStopsForLocationResponse.class);
+            assertOK(response);
+
+            // Only the error went through the tree.
+            JacksonSerializer.ParseStats stats =
+                    serializer.getStats().get(ObaStopsForLocationResponse.class);
+            assertNotNull(stats);
+            assertEquals(2, stats.getCount());
+            assertEquals(1, stats.getFallbackCount());
+        } finally {
+            serializer.setProfiling(false);
+        }
+    }
+
+    public void testBadJson() {
+        ObaStopsForLocationResponse response = ObaApi
+                .getSerializer(ObaStopsForLocationResponse.class)
+                .deserialize(new StringReader("{\"code\":200,"),
+                        ObaStopsForLocationResponse.class);
+        assertEquals(ObaApi.OBA_INTERNAL_ERROR, response.getCode());
+    }
+
     @JsonPropertyOrder(value = {"code", "version", "text"})
     public class MockResponse {
 
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot.test;
+
+import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.elements.ObaArrivalInfo;
+import com.joulespersecond.seattlebusbot.ArrivalsRefreshPolicy;
+import com.joulespersecond.seattlebusbot.util.ServerClock;
+
+import android.test.AndroidTestCase;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+public class ArrivalsRefreshPolicyTest extends AndroidTestCase {
+
+    private static final long MINUTE = 60 * 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // So the ETAs are from the device clock.
+        ServerClock.reset();
+    }
+
+    // The times are from now, with 0 for no prediction.
+    private static ObaArrivalInfo arrival(String routeId, int stopSequence,
+            long predictedArrival, long predictedDeparture, long scheduled) {
+        final long now = System.currentTimeMillis();
+        final String json = "{\"routeId\":\"" + routeId + "\""
+                + ",\"stopSequence\":" + stopSequence
+                + ",\"predictedArrivalTime\":"
+                + (predictedArrival != 0 ? now + predictedArrival : 0)
+                + ",\"scheduledArrivalTime\":" + (now + scheduled)
+                + ",\"predictedDepartureTime\":"
+                + (predictedDeparture != 0 ? now + predictedDeparture : 0)
+                + ",\"scheduledDepartureTime\":" + (now + scheduled) + "}";
+        return ObaApi.getSerializer(ObaArrivalInfo.class)
+                .deserialize(new StringReader(json), ObaArrivalInfo.class);
+    }
+
+    private static ObaArrivalInfo predicted(String routeId, long eta) {
+        return arrival(routeId, 5, eta, eta, eta);
+    }
+
+    private static ObaArrivalInfo scheduled(String routeId, long eta) {
+        return arrival(routeId, 5, 0, 0, eta);
+    }
+
+    private static long getPeriod(List<String> filter, ObaArrivalInfo... arrivals) {
+        return ArrivalsRefreshPolicy.getPeriod(arrivals, filter);
+    }
+
+    public void testNoArrivals() {
+        assertEquals(ArrivalsRefreshPolicy.DEFAULT_PERIOD,
+                ArrivalsRefreshPolicy.getPeriod(null, null));
+        assertEquals(ArrivalsRefreshPolicy.SLOW_PERIOD, getPeriod(null));
+    }
+
+    public void testPredicted() {
+        assertEquals(ArrivalsRefreshPolicy.IMMINENT_PERIOD,
+                getPeriod(null, predicted("1_10", 2 * MINUTE)));
+        assertEquals(ArrivalsRefreshPolicy.SOON_PERIOD,
+                getPeriod(null, predicted("1_10", 5 * MINUTE)));
+        assertEquals(ArrivalsRefreshPolicy.DEFAULT_PERIOD,
+                getPeriod(null, predicted("1_10", 20 * MINUTE)));
+        assertEquals(ArrivalsRefreshPolicy.SLOW_PERIOD,
+                getPeriod(null, predicted("1_10", 45 * MINUTE)));
+        // Already gone
+        assertEquals(ArrivalsRefreshPolicy.SLOW_PERIOD,
+                getPeriod(null, predicted("1_10", -MINUTE)));
+    }
+
+    public void testScheduled() {
+        assertEquals(ArrivalsRefreshPolicy.DEFAULT_PERIOD,
+                getPeriod(null, scheduled("1_10", 5 * MINUTE)));
+        assertEquals(ArrivalsRefreshPolicy.SLOW_PERIOD,
+                getPeriod(null, scheduled("1_10", 20 * MINUTE)));
+    }
+
+    public void testSoonestWins() {
+        assertEquals(ArrivalsRefreshPolicy.SOON_PERIOD, getPeriod(null,
+                predicted("1_10", 45 * MINUTE),
+                scheduled("1_10", 5 * MINUTE),
+                predicted("1_10", 5 * MINUTE),
+                predicted("1_10", 20 * MINUTE)));
+    }
+
+    public void testFirstStopUsesDeparture() {
+        // Only the departure is predicted at the first stop.
+        assertEquals(ArrivalsRefreshPolicy.IMMINENT_PERIOD,
+                getPeriod(null, arrival("1_10", 0, 0, 2 * MINUTE, 20 * MINUTE)));
+        assertEquals(ArrivalsRefreshPolicy.SLOW_PERIOD,
+                getPeriod(null, arrival("1_10", 5, 0, 2 * MINUTE, 20 * MINUTE)));
+    }
+
+    public void testFilter() {
+        final ObaArrivalInfo[] arrivals = new ObaArrivalInfo[]{
+                predicted("1_10", 2 * MINUTE),
+                predicted("1_43", 20 * MINUTE)
+        };
+        assertEquals(ArrivalsRefreshPolicy.IMMINENT_PERIOD,
+                ArrivalsRefreshPolicy.getPeriod(arrivals, Arrays.<String>asList()));
+        assertEquals(ArrivalsRefreshPolicy.DEFAULT_PERIOD,
+                ArrivalsRefreshPolicy.getPeriod(arrivals, Arrays.asList("1_43")));
+    }
+}
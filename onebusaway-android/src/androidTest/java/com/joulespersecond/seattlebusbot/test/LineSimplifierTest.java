@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot.test;
+
+import com.joulespersecond.oba.elements.ObaPolyline;
+import com.joulespersecond.seattlebusbot.map.googlemapsv1.LineSimplifier;
+
+import android.test.AndroidTestCase;
+
+public class LineSimplifierTest extends AndroidTestCase {
+
+    private static final String POINTS = "_p~iF~ps|U_ulLnnqC_mqNvxq`@";
+
+    // A straight line, so the points only matter when there are levels.
+    private static final double[] XS = new double[]{0, 0.5, 1};
+
+    private static final double[] YS = new double[]{0, 0, 0};
+
+    public void testFromLevels() {
+        // Levels 3, 0, 3
+        ObaPolyline line = ObaPolyline.decode(POINTS, "B?B", 3);
+        byte[] zooms = LineSimplifier.getMinZoomLevels(line, XS, YS);
+        assertEquals(LineSimplifier.MIN_ZOOM, zooms[0]);
+        assertEquals(LineSimplifier.MIN_ZOOM + 12, zooms[1]);
+        assertEquals(LineSimplifier.MIN_ZOOM, zooms[2]);
+
+        // Level 1 of 3
+        line = ObaPolyline.decode(POINTS, "B@B", 3);
+        zooms = LineSimplifier.getMinZoomLevels(line, XS, YS);
+        assertEquals(LineSimplifier.MIN_ZOOM + 8, zooms[1]);
+    }
+
+    public void testFromLevelsShowsEveryPointAtStreetZooms() {
+        // Level 0 of 7 would be zoom 29 at four zooms per level.
+        ObaPolyline line = ObaPolyline.decode(POINTS, "F?F", 3);
+        byte[] zooms = LineSimplifier.getMinZoomLevels(line, XS, YS);
+        assertTrue(zooms[1] <= 16);
+    }
+
+    public void testSameLevelsFallBackToDistances() {
+        // All the same level, so the middle point is ranked by how far it is off the line:
+        // it's on it, so it's only needed at the highest zoom.
+        ObaPolyline line = ObaPolyline.decode(POINTS, "BBB", 3);
+        byte[] zooms = LineSimplifier.getMinZoomLevels(line, XS, YS);
+        assertEquals(LineSimplifier.MAX_ZOOM, zooms[1]);
+    }
+
+    public void testDouglasPeucker() {
+        ObaPolyline line = ObaPolyline.decode(POINTS, null, 3);
+
+        // A corner a quarter of the world away is needed at every zoom.
+        byte[] zooms = LineSimplifier.getMinZoomLevels(line,
+                new double[]{0, 0.5, 1}, new double[]{0, 0.25, 0});
+        assertEquals(LineSimplifier.MIN_ZOOM, zooms[1]);
+
+        // One that's a millionth of the world off the line moves it by a pixel
+        // at zoom 13, where the world is 128 * 2^13 pixels across.
+        zooms = LineSimplifier.getMinZoomLevels(line,
+                new double[]{0, 0.5, 1}, new double[]{0, 0.000001, 0});
+        assertEquals(13, zooms[1]);
+
+        // The end points are always drawn.
+        assertEquals(LineSimplifier.MIN_ZOOM, zooms[0]);
+        assertEquals(LineSimplifier.MIN_ZOOM, zooms[2]);
+    }
+
+    public void testDouglasPeuckerKeepsTheFarthestPointFirst() {
+        ObaPolyline line = ObaPolyline.decode(POINTS + POINTS, null, 6);
+        double[] x = new double[]{0, 0.1, 0.2, 0.3, 0.4, 0.5};
+        double[] y = new double[]{0, 0.00000002, 0.000001, 0.00000002, 0.000000001, 0};
+        byte[] zooms = LineSimplifier.getMinZoomLevels(line, x, y);
+        // The corner comes in first, then the points next to it.
+        assertTrue(zooms[2] < zooms[1]);
+        assertTrue(zooms[2] < zooms[3]);
+        assertTrue(zooms[3] < zooms[4]);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot.test;
+
+import com.joulespersecond.oba.provider.ObaContract.TripAlerts;
+import com.joulespersecond.oba.request.test.ObaTestCase;
+import com.joulespersecond.seattlebusbot.AlarmReceiver;
+import com.joulespersecond.seattlebusbot.TripService;
+import com.joulespersecond.seattlebusbot.tripservice.PollerTask;
+import com.joulespersecond.seattlebusbot.tripservice.TaskContext;
+import com.joulespersecond.seattlebusbot.util.UIHelp;
+
+import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+
+import java.util.ArrayList;
+
+/**
+ * Runs the poller against the mock server. The trip IDs aren't in the
+ * mock arrivals, so no reminders are shown.
+ */
+public class PollerTaskTest extends ObaTestCase {
+
+    private static final String STOP1 = "1_29261";
+
+    private static final String STOP2 = "1_75403";
+
+    private static final long MINUTE = 60 * 1000;
+
+    private final ArrayList<Uri> mAlerts = new ArrayList<Uri>();
+
+    private static final class Task implements TaskContext {
+
+        boolean mComplete = false;
+
+        @Override
+        public void setNotification(int id, Notification notification) {
+            fail("Nothing should be notified");
+        }
+
+        @Override
+        public void cancelNotification(int id) {
+        }
+
+        @Override
+        public Notification getNotification(int id) {
+            return null;
+        }
+
+        @Override
+        public void taskComplete() {
+            mComplete = true;
+        }
+    }
+
+    @Override
+    protected void setUp() {
+        super.setUp();
+        PollerTask.resetStats();
+    }
+
+    @Override
+    protected void tearDown() {
+        for (Uri uri : mAlerts) {
+            getContext().getContentResolver().delete(uri, null, null);
+        }
+        PendingIntent alarm = getAlarm(TripAlerts.CONTENT_URI);
+        if (alarm != null) {
+            AlarmManager am = (AlarmManager) getContext().getSystemService(Context.ALARM_SERVICE);
+            am.cancel(alarm);
+            alarm.cancel();
+        }
+        super.tearDown();
+    }
+
+    private Uri insertAlert(String tripId, String stopId, int state) {
+        Uri uri = TripAlerts.insertIfNotExists(getContext(), tripId, stopId,
+                System.currentTimeMillis());
+        assertNotNull(uri);
+        mAlerts.add(uri);
+        if (state != TripAlerts.STATE_SCHEDULED) {
+            TripAlerts.setState(getContext(), uri, state);
+        }
+        return uri;
+    }
+
+    private void poll(Uri uri) {
+        Task task = new Task();
+        new PollerTask(getContext(), task, uri).run();
+        assertTrue(task.mComplete);
+    }
+
+    // The same PendingIntent that TripService.pollTrip() sets, if it's set.
+    private PendingIntent getAlarm(Uri uri) {
+        Intent intent = new Intent(TripService.ACTION_POLL, uri,
+                getContext(), AlarmReceiver.class);
+        return PendingIntent.getBroadcast(getContext(), 0, intent,
+                PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_NO_CREATE);
+    }
+
+    private int getState(Uri uri) {
+        return UIHelp.intForQuery(getContext(), uri, TripAlerts.STATE);
+    }
+
+    public void testOneRequestPerStop() {
+        final Uri a1 = insertAlert("1_PollerTest1", STOP1, TripAlerts.STATE_POLLING);
+        final Uri a2 = insertAlert("1_PollerTest2", STOP1, TripAlerts.STATE_POLLING);
+        final Uri a3 = insertAlert("1_PollerTest3", STOP2, TripAlerts.STATE_POLLING);
+
+        poll(TripAlerts.CONTENT_URI);
+
+        // Three alerts at two stops are one cycle of two requests.
+        assertEquals(1, PollerTask.getCycleCount());
+        assertEquals(2, PollerTask.getTotalRequests());
+        // Each alert counts the request for its stop.
+        assertEquals(1, PollerTask.getRequestCount(getContext(), a1));
+        assertEquals(1, PollerTask.getRequestCount(getContext(), a2));
+        assertEquals(1, PollerTask.getRequestCount(getContext(), a3));
+
+        poll(TripAlerts.CONTENT_URI);
+        assertEquals(2, PollerTask.getCycleCount());
+        assertEquals(4, PollerTask.getTotalRequests());
+        assertEquals(2, PollerTask.getRequestCount(getContext(), a1));
+    }
+
+    public void testOneAlarm() {
+        final Uri a1 = insertAlert("1_PollerTest1", STOP1, TripAlerts.STATE_POLLING);
+        final Uri a2 = insertAlert("1_PollerTest2", STOP2, TripAlerts.STATE_POLLING);
+
+        poll(TripAlerts.CONTENT_URI);
+
+        // The next cycle is driven by the directory, not by each alert.
+        assertNotNull(getAlarm(TripAlerts.CONTENT_URI));
+        assertNull(getAlarm(a1));
+        assertNull(getAlarm(a2));
+    }
+
+    public void testStartAlarmJoinsCycle() {
+        final Uri polling = insertAlert("1_PollerTest1", STOP1, TripAlerts.STATE_POLLING);
+        final Uri started = insertAlert("1_PollerTest2", STOP1, TripAlerts.STATE_SCHEDULED);
+        final Uri other = insertAlert("1_PollerTest3", STOP2, TripAlerts.STATE_SCHEDULED);
+
+        // The start alarm of one alert moves it into polling...
+        poll(started);
+        assertEquals(TripAlerts.STATE_POLLING, getState(started));
+        assertEquals(TripAlerts.STATE_SCHEDULED, getState(other));
+
+        // ...and it's polled along with the alert that already was.
+        assertEquals(1, PollerTask.getTotalRequests());
+        assertEquals(1, PollerTask.getRequestCount(getContext(), polling));
+        assertEquals(1, PollerTask.getRequestCount(getContext(), started));
+        assertEquals(0, PollerTask.getRequestCount(getContext(), other));
+        assertNotNull(getAlarm(TripAlerts.CONTENT_URI));
+    }
+
+    public void testNothingPolling() {
+        insertAlert("1_PollerTest1", STOP1, TripAlerts.STATE_SCHEDULED);
+
+        poll(TripAlerts.CONTENT_URI);
+
+        assertEquals(0, PollerTask.getCycleCount());
+        assertEquals(0, PollerTask.getTotalRequests());
+        assertNull(getAlarm(TripAlerts.CONTENT_URI));
+    }
+
+    // The delay for a departure this far from now, with a ten minute reminder.
+    private static long getPollDelay(long departIn) {
+        return PollerTask.getPollDelay(System.currentTimeMillis() + departIn, 10 * MINUTE, 0);
+    }
+
+    private static void assertAbout(long expected, long actual) {
+        assertTrue("expected about " + expected + " was " + actual,
+                Math.abs(expected - actual) < 1000);
+    }
+
+    public void testPollDelayFar() {
+        // Far from the threshold it's capped...
+        assertEquals(PollerTask.MAX_POLL_DELAY_MS, getPollDelay(60 * MINUTE));
+        // ...then halfway to it...
+        assertAbout(2 * MINUTE, getPollDelay(14 * MINUTE));
+        // ...but never less than the minimum.
+        assertEquals(PollerTask.MIN_POLL_DELAY_MS, getPollDelay(10 * MINUTE + 20 * 1000));
+    }
+
+    public void testPollDelayNotifying() {
+        // Past the threshold, the reminder is kept up to date every minute.
+        assertEquals(MINUTE, getPollDelay(5 * MINUTE));
+        assertEquals(MINUTE, getPollDelay(0));
+        assertEquals(MINUTE, getPollDelay(-MINUTE));
+    }
+
+    public void testPollDelayUnknown() {
+        // The trip isn't in the arrivals yet.
+        assertEquals(MINUTE, PollerTask.getPollDelay(null, 10 * MINUTE, 0));
+    }
+
+    public void testPollDelayBackoff() {
+        assertEquals(MINUTE, PollerTask.getPollDelay(null, 0, 1));
+        assertEquals(2 * MINUTE, PollerTask.getPollDelay(null, 0, 2));
+        assertEquals(4 * MINUTE, PollerTask.getPollDelay(null, 0, 3));
+        assertEquals(PollerTask.MAX_POLL_DELAY_MS, PollerTask.getPollDelay(null, 0, 4));
+        // Doesn't overflow however long it keeps failing.
+        assertEquals(PollerTask.MAX_POLL_DELAY_MS, PollerTask.getPollDelay(null, 0, 1000));
+        // The failures win over a departure that's about to need a reminder.
+        assertEquals(2 * MINUTE, PollerTask.getPollDelay(
+                System.currentTimeMillis() + 5 * MINUTE, 10 * MINUTE, 2));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot.test;
+
+import com.joulespersecond.oba.provider.ObaContract.TripAlerts;
+import com.joulespersecond.oba.provider.ObaContract.Trips;
+import com.joulespersecond.seattlebusbot.AlarmReceiver;
+import com.joulespersecond.seattlebusbot.TripService;
+import com.joulespersecond.seattlebusbot.tripservice.SchedulerTask;
+import com.joulespersecond.seattlebusbot.tripservice.TaskContext;
+
+import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+
+import java.util.ArrayList;
+
+public class SchedulerTaskTest extends AndroidTestCase {
+
+    private static final String STOP_ID = "1_SchedulerTest";
+
+    private static final long MINUTE = 60 * 1000;
+
+    // 10:00, with a 10 minute reminder.
+    private static final int DEPARTURE = 10 * 60;
+
+    private static final int REMINDER = 10;
+
+    private final ArrayList<String> mTrips = new ArrayList<String>();
+
+    private static final class Task implements TaskContext {
+
+        boolean mComplete = false;
+
+        @Override
+        public void setNotification(int id, Notification notification) {
+        }
+
+        @Override
+        public void cancelNotification(int id) {
+        }
+
+        @Override
+        public Notification getNotification(int id) {
+            return null;
+        }
+
+        @Override
+        public void taskComplete() {
+            mComplete = true;
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ContentResolver cr = getContext().getContentResolver();
+        AlarmManager am = (AlarmManager) getContext().getSystemService(Context.ALARM_SERVICE);
+        for (String tripId : mTrips) {
+            for (Uri uri : getAlerts(tripId)) {
+                PendingIntent alarm = getAlarm(uri);
+                if (alarm != null) {
+                    am.cancel(alarm);
+                    alarm.cancel();
+                }
+                cr.delete(uri, null, null);
+            }
+            cr.delete(Trips.buildUri(tripId, STOP_ID), null, null);
+        }
+        super.tearDown();
+    }
+
+    private Uri insertTrip(String tripId, int reminder, int days) {
+        ContentValues values = new ContentValues();
+        values.put(Trips._ID, tripId);
+        values.put(Trips.STOP_ID, STOP_ID);
+        values.put(Trips.ROUTE_ID, "1_10");
+        values.put(Trips.DEPARTURE, DEPARTURE);
+        values.put(Trips.HEADSIGN, "Test");
+        values.put(Trips.NAME, tripId);
+        values.put(Trips.REMINDER, reminder);
+        values.put(Trips.DAYS, days);
+        getContext().getContentResolver().insert(Trips.CONTENT_URI, values);
+        mTrips.add(tripId);
+        return Trips.buildUri(tripId, STOP_ID);
+    }
+
+    private void schedule(Uri uri) {
+        Task task = new Task();
+        new SchedulerTask(getContext(), task, uri).run();
+        assertTrue(task.mComplete);
+    }
+
+    private ArrayList<Uri> getAlerts(String tripId) {
+        ArrayList<Uri> result = new ArrayList<Uri>();
+        Cursor c = getContext().getContentResolver().query(TripAlerts.CONTENT_URI,
+                new String[]{TripAlerts._ID},
+                TripAlerts.TRIP_ID + "=? AND " + TripAlerts.STOP_ID + "=?",
+                new String[]{tripId, STOP_ID}, null);
+        assertNotNull(c);
+        try {
+            while (c.moveToNext()) {
+                result.add(TripAlerts.buildUri(c.getInt(0)));
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    private Uri getAlert(String tripId) {
+        ArrayList<Uri> alerts = getAlerts(tripId);
+        assertEquals(1, alerts.size());
+        return alerts.get(0);
+    }
+
+    private long getStartTime(Uri alertUri) {
+        Cursor c = getContext().getContentResolver().query(alertUri,
+                new String[]{TripAlerts.START_TIME}, null, null, null);
+        assertNotNull(c);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    // The same PendingIntent that TripService.pollTrip() sets, if it's set.
+    private PendingIntent getAlarm(Uri uri) {
+        Intent intent = new Intent(TripService.ACTION_POLL, uri,
+                getContext(), AlarmReceiver.class);
+        return PendingIntent.getBroadcast(getContext(), 0, intent,
+                PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_NO_CREATE);
+    }
+
+    // Polling starts five minutes before the reminder.
+    private static long getStartTime(int daysFromNow) {
+        Time now = new Time();
+        now.setToNow();
+        Time t = new Time();
+        t.set(0, DEPARTURE, 0, now.monthDay + daysFromNow, now.month, now.year);
+        t.normalize(false);
+        return t.toMillis(false) - REMINDER * MINUTE - 5 * MINUTE;
+    }
+
+    // Only tomorrow, so the alarms are never in the past.
+    private static int getTomorrow() {
+        Time now = new Time();
+        now.setToNow();
+        return Trips.getDayBit((now.weekDay + 1) % 7);
+    }
+
+    public void testBatch() {
+        insertTrip("1_SchedulerTest1", REMINDER, getTomorrow());
+        insertTrip("1_SchedulerTest2", REMINDER, getTomorrow());
+        insertTrip("1_SchedulerTest3", REMINDER, getTomorrow());
+
+        // All the trips at once, so the new alerts go in one batch.
+        schedule(Trips.CONTENT_URI);
+
+        final long start = getStartTime(1);
+        Uri[] alerts = new Uri[mTrips.size()];
+        for (int i = 0; i < alerts.length; ++i) {
+            alerts[i] = getAlert(mTrips.get(i));
+            assertEquals(start, getStartTime(alerts[i]));
+            // Each alarm is set from the batch's result.
+            assertNotNull(getAlarm(alerts[i]));
+        }
+
+        // Scheduling again finds the existing alerts, rather than adding more.
+        schedule(Trips.CONTENT_URI);
+        for (int i = 0; i < alerts.length; ++i) {
+            assertEquals(alerts[i], getAlert(mTrips.get(i)));
+            assertNotNull(getAlarm(alerts[i]));
+        }
+    }
+
+    public void testSingle() {
+        final Uri trip = insertTrip("1_SchedulerTest1", REMINDER, getTomorrow());
+        insertTrip("1_SchedulerTest2", REMINDER, getTomorrow());
+
+        schedule(trip);
+
+        assertEquals(getStartTime(1), getStartTime(getAlert("1_SchedulerTest1")));
+        assertTrue(getAlerts("1_SchedulerTest2").isEmpty());
+    }
+
+    public void testCancelledOneOff() {
+        // A one-off trip is for today, whose alert the user has already cancelled.
+        final Uri trip = insertTrip("1_SchedulerTest1", REMINDER, 0);
+        final Uri alert = TripAlerts.insertIfNotExists(getContext(), "1_SchedulerTest1",
+                STOP_ID, getStartTime(0));
+        TripAlerts.setState(getContext(), alert, TripAlerts.STATE_CANCELLED);
+
+        // The cancelled alert is found in the index, so it isn't added again,
+        // and the one-off trip is deleted.
+        schedule(trip);
+        assertEquals(alert, getAlert("1_SchedulerTest1"));
+        assertNull(getAlarm(alert));
+        Cursor c = getContext().getContentResolver().query(trip,
+                new String[]{Trips._ID}, null, null, null);
+        assertNotNull(c);
+        assertEquals(0, c.getCount());
+        c.close();
+    }
+
+    public void testNoReminder() {
+        final Uri trip = insertTrip("1_SchedulerTest1", 0, Trips.DAY_ALL);
+
+        schedule(trip);
+
+        assertTrue(getAlerts("1_SchedulerTest1").isEmpty());
+    }
+}
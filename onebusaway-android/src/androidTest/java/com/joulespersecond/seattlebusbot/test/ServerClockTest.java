@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot.test;
+
+import com.joulespersecond.oba.request.ObaCurrentTimeRequest;
+import com.joulespersecond.oba.request.ObaCurrentTimeResponse;
+import com.joulespersecond.oba.request.test.ObaTestCase;
+import com.joulespersecond.seattlebusbot.util.ServerClock;
+
+public class ServerClockTest extends ObaTestCase {
+
+    @Override
+    protected void tearDown() {
+        ServerClock.reset();
+        super.tearDown();
+    }
+
+    public void testSync() {
+        ObaCurrentTimeResponse response = ObaCurrentTimeRequest.newRequest(getContext()).call();
+        assertOK(response);
+
+        assertTrue(ServerClock.sync(getContext()));
+        // The mock server's clock has stopped, so we're now at its time.
+        assertTrue(Math.abs(ServerClock.now() - response.getTime()) < 15 * 1000);
+        assertEquals(ServerClock.now() - System.currentTimeMillis(),
+                ServerClock.getOffset(), 1000);
+
+        ServerClock.reset();
+        assertEquals(0, ServerClock.getOffset());
+    }
+}
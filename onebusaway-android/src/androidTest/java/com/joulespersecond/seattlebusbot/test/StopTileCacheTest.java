@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot.test;
+
+import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.elements.ObaStop;
+import com.joulespersecond.oba.elements.ObaStopElement;
+import com.joulespersecond.oba.request.ObaStopsForLocationResponse;
+import com.joulespersecond.seattlebusbot.map.StopTileCache;
+
+import android.test.AndroidTestCase;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+public class StopTileCacheTest extends AndroidTestCase {
+
+    private static final double LAT = 47.6097;
+
+    private static final double LON = -122.3331;
+
+    private StopTileCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = StopTileCache.getInstance();
+        mCache.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.clear();
+        super.tearDown();
+    }
+
+    private static ObaStopsForLocationResponse response(double lat, double lon,
+            boolean limitExceeded) {
+        final String json = "{\"code\":200,\"version\":2,\"text\":\"OK\",\"data\":{"
+                + "\"limitExceeded\":" + limitExceeded
+                + ",\"outOfRange\":false"
+                + ",\"list\":[{\"id\":\"1_100\",\"lat\":" + lat + ",\"lon\":" + lon
+                + ",\"routeIds\":[]}]"
+                + ",\"references\":{}}}";
+        return ObaApi.getSerializer(ObaStopsForLocationResponse.class)
+                .deserialize(new StringReader(json), ObaStopsForLocationResponse.class);
+    }
+
+    private static List<Long> list(long key) {
+        List<Long> result = new ArrayList<Long>();
+        result.add(key);
+        return result;
+    }
+
+    public void testTileCenter() {
+        final long key = StopTileCache.getTileKey(LAT, LON);
+        final double lat = StopTileCache.getTileCenterLat(key);
+        final double lon = StopTileCache.getTileCenterLon(key);
+        // The center is in the same tile, and the point is within half a tile of it.
+        assertEquals(key, StopTileCache.getTileKey(lat, lon));
+        assertTrue(Math.abs(lat - LAT) <= StopTileCache.getTileLatSpan(key) / 2);
+        assertTrue(Math.abs(lon - LON) <= StopTileCache.getTileLonSpan() / 2);
+    }
+
+    public void testTileSpans() {
+        final long key = StopTileCache.getTileKey(LAT, LON);
+        final double latSpan = StopTileCache.getTileLatSpan(key);
+        final double lonSpan = StopTileCache.getTileLonSpan();
+        assertEquals(360.0 / (1 << StopTileCache.TILE_ZOOM), lonSpan, 1e-12);
+        // Mercator tiles are shorter in latitude away from the equator.
+        assertTrue(latSpan > 0 && latSpan < lonSpan);
+
+        // Stepping a whole span moves to the neighbouring tile.
+        final double lat = StopTileCache.getTileCenterLat(key);
+        final double lon = StopTileCache.getTileCenterLon(key);
+        assertFalse(key == StopTileCache.getTileKey(lat, lon + lonSpan));
+        assertFalse(key == StopTileCache.getTileKey(lat + latSpan, lon));
+        assertEquals(key, StopTileCache.getTileKey(lat + latSpan / 4, lon - lonSpan / 4));
+    }
+
+    public void testTileClamped() {
+        // Past the poles and the antimeridian are still valid tiles.
+        assertEquals(StopTileCache.getTileKey(85.06, 179.99),
+                StopTileCache.getTileKey(89.9, 180.0));
+        assertEquals(StopTileCache.getTileKey(-85.06, -180.0),
+                StopTileCache.getTileKey(-89.9, -180.1));
+    }
+
+    public void testPut() {
+        final long key = StopTileCache.getTileKey(LAT, LON);
+        assertEquals(list(key), mCache.getMissingTiles(new long[]{key}));
+
+        mCache.put(key, response(LAT, LON, false));
+        assertTrue(mCache.contains(key));
+        assertTrue(mCache.getMissingTiles(new long[]{key}).isEmpty());
+    }
+
+    public void testStaleIsMissing() {
+        final long key = StopTileCache.getTileKey(LAT, LON);
+        mCache.putStale(key, response(LAT, LON, true));
+        // Kept, so it can be shown, but fetched again.
+        assertTrue(mCache.contains(key));
+        assertEquals(list(key), mCache.getMissingTiles(new long[]{key}));
+
+        mCache.clear();
+        List<ObaStop> stops = new ArrayList<ObaStop>();
+        stops.add(new ObaStopElement("1_100", LAT, LON, "N", "Stop", "100", new String[0]));
+        mCache.putStale(key, stops);
+        assertTrue(mCache.contains(key));
+        assertEquals(list(key), mCache.getMissingTiles(new long[]{key}));
+    }
+
+    public void testEviction() {
+        final List<ObaStop> empty = new ArrayList<ObaStop>();
+        final long first = StopTileCache.getTileKey(LAT, LON);
+        long[] keys = new long[StopTileCache.MAX_TILES + 1];
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = StopTileCache.getTileKey(LAT,
+                    LON + i * StopTileCache.getTileLonSpan());
+        }
+        assertEquals(first, keys[0]);
+
+        for (int i = 0; i < StopTileCache.MAX_TILES; ++i) {
+            mCache.putStale(keys[i], empty);
+        }
+        // Touch the first tile, so the second is now the least recently used.
+        mCache.getMissingTiles(new long[]{first});
+        mCache.putStale(keys[StopTileCache.MAX_TILES], empty);
+
+        assertTrue(mCache.contains(first));
+        assertFalse(mCache.contains(keys[1]));
+        assertTrue(mCache.contains(keys[2]));
+        assertTrue(mCache.contains(keys[StopTileCache.MAX_TILES]));
+    }
+}
@@ -17,7 +17,9 @@ package com.joulespersecond.oba;
 
 import com.joulespersecond.oba.serialization.JacksonSerializer;
 
+import java.io.IOException;
 import java.io.Reader;
+import java.io.Writer;
 
 public final class ObaApi {
 
@@ -59,6 +61,12 @@ public final class ObaApi {
 
         String serialize(Object obj);
 
+        /**
+         * Writes the object as JSON that deserialize() reads back the same:
+         * its fields only, not what its getters work out from them.
+         */
+        void write(Object obj, Writer writer) throws IOException;
+
         <T> T createFromError(Class<T> cls, int code, String error);
     }
 
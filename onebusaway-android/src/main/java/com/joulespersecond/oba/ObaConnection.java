@@ -22,8 +22,8 @@ import java.io.Reader;
  * Implements a basic connection object for ObaRequests.
  * These are created by the ObaConnectionFactory class.
  *
- * Under normal circumstances this is always implemented by
- * the ObaDefaultConnection class. In the unit tests, it is
+ * Under normal circumstances this is implemented by
+ * the ObaPooledConnection or ObaDefaultConnection class. In the unit tests, it is
  * replaced by the ObaMockConnection class.
  *
  * @author paulw
@@ -32,6 +32,13 @@ public interface ObaConnection {
 
     public void disconnect();
 
+    /**
+     * Stops a request in progress, from any thread. This must not block
+     * or read from the network; disconnect() is still called afterwards
+     * by the thread that made the request.
+     */
+    public void abort();
+
     public Reader get() throws IOException;
 
     public Reader post(String string) throws IOException;
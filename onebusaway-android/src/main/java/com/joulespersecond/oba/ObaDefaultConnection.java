@@ -55,6 +55,11 @@ public final class ObaDefaultConnection implements ObaConnection {
         mConnection.disconnect();
     }
 
+    @Override
+    public void abort() {
+        mConnection.disconnect();
+    }
+
     @Override
     public Reader get() throws IOException {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba;
+
+import com.joulespersecond.seattlebusbot.BuildConfig;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * A connection that hands its socket back to the platform keep-alive pool
+ * instead of closing it. HttpURLConnection only reuses a socket if the response
+ * body was read to the end and the stream was closed without calling
+ * HttpURLConnection.disconnect(), so that's what disconnect() does here.
+ *
+ * These are created by the ObaPooledConnectionFactory class.
+ */
+public final class ObaPooledConnection implements ObaConnection {
+
+    private static final String TAG = "ObaPooledConnection";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final ObaPooledConnectionFactory mFactory;
+
+    private final HttpURLConnection mConnection;
+
+    // When the connection was opened, and how long until the response headers, or -1.
+    private final long mStart;
+
+    private long mResponseTime = -1;
+
+    private InputStream mStream;
+
+    private volatile boolean mReleased = false;
+
+    private volatile boolean mAborted = false;
+
+    ObaPooledConnection(ObaPooledConnectionFactory factory, Uri uri) throws IOException {
+        mFactory = factory;
+        mStart = SystemClock.elapsedRealtime();
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, uri.toString());
+        }
+        URL url = new URL(uri.toString());
+        mConnection = (HttpURLConnection) url.openConnection();
+        mConnection.setReadTimeout(30 * 1000);
+        mConnection.setRequestProperty("Connection", "keep-alive");
+    }
+
+    @Override
+    public void disconnect() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        if (mAborted) {
+            // The socket is already closed, there's nothing to drain.
+            mFactory.onDone(false, -1);
+            return;
+        }
+
+        // Drain whatever the caller didn't read, otherwise the socket can't be reused.
+        boolean reusable = false;
+        InputStream in = mStream;
+        try {
+            if (in == null) {
+                in = mConnection.getErrorStream();
+            }
+            if (in != null) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (in.read(buffer) != -1) {
+                    // Discard
+                }
+                in.close();
+                reusable = true;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+        }
+
+        if (!reusable) {
+            mConnection.disconnect();
+        }
+        mFactory.onDone(reusable, mResponseTime);
+    }
+
+    @Override
+    public void abort() {
+        // Closes the socket under whatever the request thread is doing.
+        // Draining it here would read from the network on the caller's thread.
+        mAborted = true;
+        mConnection.disconnect();
+    }
+
+    @Override
+    public Reader get() throws IOException {
+        // Gingerbread and above support Gzip natively.
+        mStream = new BufferedInputStream(mConnection.getInputStream(), BUFFER_SIZE);
+        onResponse();
+        return new InputStreamReader(mStream);
+    }
+
+    @Override
+    public Reader post(String string) throws IOException {
+        byte[] data = string.getBytes();
+
+        mConnection.setDoOutput(true);
+        mConnection.setFixedLengthStreamingMode(data.length);
+        mConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+
+        // Set the output stream
+        OutputStream stream = mConnection.getOutputStream();
+        stream.write(data);
+        stream.flush();
+        stream.close();
+
+        mStream = new BufferedInputStream(mConnection.getInputStream(), BUFFER_SIZE);
+        onResponse();
+        return new InputStreamReader(mStream);
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        final int code = mConnection.getResponseCode();
+        onResponse();
+        return code;
+    }
+
+    private void onResponse() {
+        if (mResponseTime < 0) {
+            mResponseTime = SystemClock.elapsedRealtime() - mStart;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba;
+
+import com.joulespersecond.seattlebusbot.BuildConfig;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * A connection factory that keeps HTTP/1.1 connections alive between requests
+ * to the same region host, so an arrivals refresh or map pan doesn't pay for a
+ * new TCP (and TLS) handshake every time.
+ *
+ * The sockets themselves live in the platform HttpURLConnection pool, which is
+ * configured through the standard "http.keepAlive", "http.maxConnections" and
+ * "http.keepAliveDuration" system properties. The pool reads those only once,
+ * when it's first used, so the policy can be changed with setPolicy() until
+ * the first connection is opened, and is fixed after that.
+ *
+ * HttpURLConnection doesn't say whether a request went out on a reused socket,
+ * so instead of hits and misses the factory counts what it can see: how many
+ * connections were handed back to the pool with their body read to the end,
+ * how many had to be closed, and how long requests took to get their response
+ * headers, which is where a new handshake shows up.
+ *
+ * Switch to it with ObaContext.setConnectionFactory(); switching back to
+ * ObaDefaultConnectionFactory restores the old connect-per-request behavior.
+ */
+public class ObaPooledConnectionFactory implements ObaConnectionFactory {
+
+    private static final String TAG = "ObaPooledConnFactory";
+
+    public static final int DEFAULT_MAX_IDLE_PER_HOST = 4;
+
+    public static final long DEFAULT_KEEP_ALIVE_MS = 5 * 60 * 1000;
+
+    private int mMaxIdlePerHost = DEFAULT_MAX_IDLE_PER_HOST;
+
+    private long mKeepAliveMs = DEFAULT_KEEP_ALIVE_MS;
+
+    // Set once the policy has been handed to the platform.
+    private boolean mApplied = false;
+
+    private long mOpened = 0;
+
+    private long mReleased = 0;
+
+    private long mClosed = 0;
+
+    private long mResponses = 0;
+
+    private long mResponseTimeMs = 0;
+
+    private ObaPooledConnectionFactory() {
+    }
+
+    private static class SingletonHolder {
+
+        public static final ObaPooledConnectionFactory INSTANCE
+                = new ObaPooledConnectionFactory();
+    }
+
+    public static ObaPooledConnectionFactory getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    /**
+     * Sets the pool policy. This has to be done before the first connection.
+     *
+     * @param maxIdlePerHost the maximum number of idle connections kept per host
+     * @param keepAliveMs    how long an idle connection is kept before it's closed
+     * @throws IllegalStateException if a connection has already been opened
+     */
+    public synchronized void setPolicy(int maxIdlePerHost, long keepAliveMs) {
+        if (maxIdlePerHost < 1) {
+            throw new IllegalArgumentException("maxIdlePerHost must be at least 1");
+        }
+        if (mApplied) {
+            throw new IllegalStateException("The pool has already been used");
+        }
+        mMaxIdlePerHost = maxIdlePerHost;
+        mKeepAliveMs = keepAliveMs;
+    }
+
+    public synchronized int getMaxIdlePerHost() {
+        return mMaxIdlePerHost;
+    }
+
+    public synchronized long getKeepAliveMs() {
+        return mKeepAliveMs;
+    }
+
+    /**
+     * @return the number of connections opened
+     */
+    public synchronized long getOpenedCount() {
+        return mOpened;
+    }
+
+    /**
+     * @return the number of connections whose socket went back to the pool
+     */
+    public synchronized long getReleasedCount() {
+        return mReleased;
+    }
+
+    /**
+     * @return the number of connections whose socket was closed instead
+     */
+    public synchronized long getClosedCount() {
+        return mClosed;
+    }
+
+    /**
+     * @return the average time from opening a connection to its response
+     * headers, in milliseconds, or 0 if there haven't been any
+     */
+    public synchronized long getAverageResponseTimeMs() {
+        return mResponses != 0 ? mResponseTimeMs / mResponses : 0;
+    }
+
+    public synchronized void resetCounters() {
+        mOpened = 0;
+        mReleased = 0;
+        mClosed = 0;
+        mResponses = 0;
+        mResponseTimeMs = 0;
+    }
+
+    @Override
+    public ObaConnection newConnection(Uri uri) throws IOException {
+        synchronized (this) {
+            if (!mApplied) {
+                System.setProperty("http.keepAlive", "true");
+                System.setProperty("http.maxConnections", String.valueOf(mMaxIdlePerHost));
+                System.setProperty("http.keepAliveDuration", String.valueOf(mKeepAliveMs));
+                mApplied = true;
+            }
+            ++mOpened;
+        }
+        return new ObaPooledConnection(this, uri);
+    }
+
+    //
+    // Called by each connection once it's done with its socket.
+    //
+    synchronized void onDone(boolean released, long responseTimeMs) {
+        if (released) {
+            ++mReleased;
+        } else {
+            ++mClosed;
+        }
+        if (responseTimeMs >= 0) {
+            ++mResponses;
+            mResponseTimeMs += responseTimeMs;
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "opened=" + mOpened + " released=" + mReleased + " closed=" + mClosed
+                    + " avgResponse=" + getAverageResponseTimeMs() + "ms");
+        }
+    }
+}
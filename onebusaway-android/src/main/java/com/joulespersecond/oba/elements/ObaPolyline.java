@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.elements;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * A decoded polyline stored as primitive arrays of latitude/longitude
+ * in degrees * 1E6, the same units as a Maps API GeoPoint.
+ *
+ * Decoded lines are immutable and are shared through a small LRU cache keyed
+ * by the encoded points and levels, so the same route shape isn't decoded
+ * again every time the route is shown. The same points can come with or
+ * without levels, so both are part of the key.
+ */
+public final class ObaPolyline {
+
+    public static final ObaPolyline EMPTY_OBJECT =
+            new ObaPolyline(new int[0], new int[0], null, 0);
+
+    /**
+     * The default budget for the decoded shape cache, in bytes.
+     */
+    public static final int DEFAULT_CACHE_BYTES = 1024 * 1024;
+
+    private static final LruCache<String, ObaPolyline> mCache =
+            new LruCache<String, ObaPolyline>(DEFAULT_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(String key, ObaPolyline value) {
+                    // Two bytes per key character plus the arrays
+                    return key.length() * 2 + value.getByteSize();
+                }
+            };
+
+    private final int[] mLatE6;
+
+    private final int[] mLonE6;
+
+    private final int[] mLevels;
+
+    private final int mSize;
+
+    private ObaPolyline(int[] latE6, int[] lonE6, int[] levels, int size) {
+        mLatE6 = latE6;
+        mLonE6 = lonE6;
+        mLevels = levels;
+        mSize = size;
+    }
+
+    /**
+     * @return The number of points in this line.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public int getLatitudeE6(int i) {
+        return mLatE6[i];
+    }
+
+    public int getLongitudeE6(int i) {
+        return mLonE6[i];
+    }
+
+    /**
+     * @return true if there is a level for every point in this line.
+     */
+    public boolean hasLevels() {
+        return mLevels != null && mLevels.length == mSize;
+    }
+
+    /**
+     * @return The level of point i. Only valid if hasLevels() is true.
+     */
+    public int getLevel(int i) {
+        return mLevels[i];
+    }
+
+    /**
+     * @return The approximate number of bytes held by this line.
+     */
+    public int getByteSize() {
+        return (mLatE6.length + mLonE6.length + (mLevels != null ? mLevels.length : 0)) * 4;
+    }
+
+    /**
+     * Returns the decoded line for an encoded string, decoding it only if
+     * it isn't already in the cache.
+     *
+     * @param encoded       The encoded points.
+     * @param encodedLevels The encoded levels, or the empty string.
+     * @param numPoints     A hint for the number of points in the line.
+     * @return The decoded line.
+     */
+    public static ObaPolyline get(String encoded, String encodedLevels, int numPoints) {
+        if (encoded == null || encoded.length() == 0) {
+            return EMPTY_OBJECT;
+        }
+        // The same points may be asked for with and without levels.
+        // A space can't appear in either encoding.
+        final String key = encodedLevels != null && encodedLevels.length() > 0 ?
+                encoded + ' ' + encodedLevels : encoded;
+        ObaPolyline line = mCache.get(key);
+        if (line == null) {
+            line = decode(encoded, encodedLevels, numPoints);
+            mCache.put(key, line);
+        }
+        return line;
+    }
+
+    public static void clearCache() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Decodes an encoded polyline into primitive arrays, without creating
+     * an object per point. See ObaShapeElement.decodeLine() for the algorithm.
+     *
+     * @param encoded       The encoded points.
+     * @param encodedLevels The encoded levels, or null or the empty string if there are none.
+     * @param numPoints     The number of points. This is purely used as a hint
+     *                      to allocate memory; the function will always return the number
+     *                      of points that are contained in the encoded string.
+     * @return The decoded line.
+     */
+    public static ObaPolyline decode(String encoded, String encodedLevels, int numPoints) {
+        assert (numPoints >= 0);
+        int capacity = Math.max(numPoints, 1);
+        int[] lats = new int[capacity];
+        int[] lons = new int[capacity];
+        int count = 0;
+
+        final int len = encoded.length();
+        int i = 0;
+        int lat = 0, lon = 0;
+
+        while (i < len) {
+            int shift = 0;
+            int result = 0;
+
+            int b;
+            do {
+                b = encoded.charAt(i) - 63;
+                result |= (b & 0x1f) << shift;
+                shift += 5;
+                ++i;
+            } while (b >= 0x20);
+
+            lat += ((result & 1) == 1 ? ~(result >> 1) : (result >> 1));
+
+            shift = 0;
+            result = 0;
+            do {
+                b = encoded.charAt(i) - 63;
+                result |= (b & 0x1f) << shift;
+                shift += 5;
+                ++i;
+            } while (b >= 0x20);
+
+            lon += ((result & 1) == 1 ? ~(result >> 1) : (result >> 1));
+
+            if (count == capacity) {
+                capacity *= 2;
+                int[] newLats = new int[capacity];
+                int[] newLons = new int[capacity];
+                System.arraycopy(lats, 0, newLats, 0, count);
+                System.arraycopy(lons, 0, newLons, 0, count);
+                lats = newLats;
+                lons = newLons;
+            }
+            // The polyline encodes in degrees * 1E5, we need degrees * 1E6
+            lats[count] = lat * 10;
+            lons[count] = lon * 10;
+            ++count;
+        }
+
+        if (count != capacity) {
+            int[] newLats = new int[count];
+            int[] newLons = new int[count];
+            System.arraycopy(lats, 0, newLats, 0, count);
+            System.arraycopy(lons, 0, newLons, 0, count);
+            lats = newLats;
+            lons = newLons;
+        }
+        int[] levels = null;
+        if (encodedLevels != null && encodedLevels.length() > 0) {
+            levels = decodeLevels(encodedLevels, count);
+        }
+        return new ObaPolyline(lats, lons, levels, count);
+    }
+
+    /**
+     * Decodes encoded levels into a primitive array.
+     * See ObaShapeElement.decodeLevels() for the algorithm.
+     *
+     * @param encoded   The encoded string.
+     * @param numPoints The number of points. This is purely used as a hint
+     *                  to allocate memory; the function will always return the number
+     *                  of levels that are contained in the encoded string.
+     * @return The decoded levels.
+     */
+    public static int[] decodeLevels(String encoded, int numPoints) {
+        int[] levels = new int[Math.max(numPoints, 1)];
+        int count = 0;
+
+        final int len = encoded.length();
+        int i = 0;
+        while (i < len) {
+            int shift = 0;
+            int result = 0;
+
+            int b;
+            do {
+                b = encoded.charAt(i) - 63;
+                result |= (b & 0x1f) << shift;
+                shift += 5;
+                ++i;
+            } while (b >= 0x20);
+
+            if (count == levels.length) {
+                int[] newLevels = new int[count * 2];
+                System.arraycopy(levels, 0, newLevels, 0, count);
+                levels = newLevels;
+            }
+            levels[count++] = result;
+        }
+
+        if (count != levels.length) {
+            int[] newLevels = new int[count];
+            System.arraycopy(levels, 0, newLevels, 0, count);
+            levels = newLevels;
+        }
+        return levels;
+    }
+}
@@ -16,6 +16,7 @@
 package com.joulespersecond.oba.elements;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 public final class ObaReferencesElement implements ObaReferences {
@@ -32,6 +33,22 @@ public final class ObaReferencesElement implements ObaReferences {
 
     private final ObaSituationElement[] situations;
 
+    //
+    // Id indexes, built on first lookup. Each one is fully built before it's
+    // published through the volatile field, so it's safe to read from any
+    // thread without locking; at worst two threads build the same index.
+    // These are transient so Jackson leaves them alone.
+    //
+    private transient volatile HashMap<String, ObaStopElement> stopIndex;
+
+    private transient volatile HashMap<String, ObaRouteElement> routeIndex;
+
+    private transient volatile HashMap<String, ObaTripElement> tripIndex;
+
+    private transient volatile HashMap<String, ObaAgencyElement> agencyIndex;
+
+    private transient volatile HashMap<String, ObaSituationElement> situationIndex;
+
     public ObaReferencesElement() {
         stops = ObaStopElement.EMPTY_ARRAY;
         routes = ObaRouteElement.EMPTY_ARRAY;
@@ -42,75 +59,118 @@ public final class ObaReferencesElement implements ObaReferences {
 
     @Override
     public ObaStop getStop(String id) {
-        return findById(stops, id);
+        return getStopIndex().get(id);
     }
 
     @Override
     public List<ObaStop> getStops(String[] ids) {
-        return findList(ObaStop.class, stops, ids);
+        return findList(ObaStop.class, getStopIndex(), ids);
     }
 
     @Override
     public ObaRoute getRoute(String id) {
-        return findById(routes, id);
+        return getRouteIndex().get(id);
     }
 
     @Override
     public List<ObaRoute> getRoutes(String[] ids) {
-        return findList(ObaRoute.class, routes, ids);
+        return findList(ObaRoute.class, getRouteIndex(), ids);
     }
 
     @Override
     public ObaTrip getTrip(String id) {
-        return findById(trips, id);
+        return getTripIndex().get(id);
     }
 
     @Override
     public List<ObaTrip> getTrips(String[] ids) {
-        return findList(ObaTrip.class, trips, ids);
+        return findList(ObaTrip.class, getTripIndex(), ids);
     }
 
     @Override
     public ObaAgency getAgency(String id) {
-        return findById(agencies, id);
+        return getAgencyIndex().get(id);
     }
 
     @Override
     public List<ObaAgency> getAgencies(String[] ids) {
-        return findList(ObaAgency.class, agencies, ids);
+        return findList(ObaAgency.class, getAgencyIndex(), ids);
     }
 
     @Override
     public ObaSituation getSituation(String id) {
-        return findById(situations, id);
+        return getSituationIndex().get(id);
     }
 
     @Override
     public List<ObaSituation> getSituations(String[] ids) {
-        return findList(ObaSituation.class, situations, ids);
+        return findList(ObaSituation.class, getSituationIndex(), ids);
     }
 
-    //
-    // TODO: This will be much easier when we convert to HashMap storage.
-    //
-    private static <T extends ObaElement> T findById(T[] objects, String id) {
+    private HashMap<String, ObaStopElement> getStopIndex() {
+        HashMap<String, ObaStopElement> index = stopIndex;
+        if (index == null) {
+            index = buildIndex(stops);
+            stopIndex = index;
+        }
+        return index;
+    }
+
+    private HashMap<String, ObaRouteElement> getRouteIndex() {
+        HashMap<String, ObaRouteElement> index = routeIndex;
+        if (index == null) {
+            index = buildIndex(routes);
+            routeIndex = index;
+        }
+        return index;
+    }
+
+    private HashMap<String, ObaTripElement> getTripIndex() {
+        HashMap<String, ObaTripElement> index = tripIndex;
+        if (index == null) {
+            index = buildIndex(trips);
+            tripIndex = index;
+        }
+        return index;
+    }
+
+    private HashMap<String, ObaAgencyElement> getAgencyIndex() {
+        HashMap<String, ObaAgencyElement> index = agencyIndex;
+        if (index == null) {
+            index = buildIndex(agencies);
+            agencyIndex = index;
+        }
+        return index;
+    }
+
+    private HashMap<String, ObaSituationElement> getSituationIndex() {
+        HashMap<String, ObaSituationElement> index = situationIndex;
+        if (index == null) {
+            index = buildIndex(situations);
+            situationIndex = index;
+        }
+        return index;
+    }
+
+    private static <T extends ObaElement> HashMap<String, T> buildIndex(T[] objects) {
         final int len = objects.length;
+        HashMap<String, T> index = new HashMap<String, T>(Math.max(len * 4 / 3 + 1, 16));
         for (int i = 0; i < len; ++i) {
             final T obj = objects[i];
-            if (obj.getId().equals(id)) {
-                return obj;
+            // Keep the first one, which is what the linear search used to return.
+            if (!index.containsKey(obj.getId())) {
+                index.put(obj.getId(), obj);
             }
         }
-        return null;
+        return index;
     }
 
     private static <E extends ObaElement, T extends E> List<E> findList(
-            Class<E> cls, T[] objects, String[] ids) {
-        ArrayList<E> result = new ArrayList<E>();
+            Class<E> cls, HashMap<String, T> index, String[] ids) {
         final int len = ids.length;
+        ArrayList<E> result = new ArrayList<E>(len);
         for (int i = 0; i < len; ++i) {
-            final String id = ids[i];
-            final T obj = findById(objects, id);
+            final T obj = index.get(ids[i]);
             if (obj != null) {
                 result.add(obj);
             }
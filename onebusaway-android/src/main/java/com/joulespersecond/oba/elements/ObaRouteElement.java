@@ -74,6 +74,18 @@ public final class ObaRouteElement implements ObaRoute {
 
     }
 
+    public ObaRouteElement(String id, String shortName, String longName, String url) {
+        this.id = id;
+        this.shortName = shortName;
+        this.longName = longName;
+        this.description = "";
+        this.type = 0;
+        this.url = url;
+        this.color = "";
+        this.textColor = "";
+        this.agencyId = "";
+    }
+
     @Override
     public String getId() {
         return id;
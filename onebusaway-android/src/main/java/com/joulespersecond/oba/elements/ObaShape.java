@@ -49,6 +49,15 @@ public interface ObaShape {
      */
     public List<Location> getPoints();
 
+    /**
+     * Returns the points and levels of this line in compact, primitive form.
+     * Prefer this to getPoints() and getLevels(), which allocate an object
+     * per point.
+     *
+     * @return The decoded line.
+     */
+    public ObaPolyline getPolyline();
+
     /**
      * Returns the string encoding of the points in this line.
      *
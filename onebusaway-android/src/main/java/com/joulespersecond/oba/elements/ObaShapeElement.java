@@ -60,6 +60,11 @@ public final class ObaShapeElement implements ObaShape {
         return decodeLine(points, length);
     }
 
+    @Override
+    public ObaPolyline getPolyline() {
+        return ObaPolyline.get(points, levels, length);
+    }
+
     @Override
     public String getRawPoints() {
         return points;
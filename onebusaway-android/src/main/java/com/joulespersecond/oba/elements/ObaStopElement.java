@@ -60,6 +60,18 @@ public final class ObaStopElement implements ObaStop {
         routeIds = EMPTY_ROUTES;
     }
 
+    public ObaStopElement(String id, double lat, double lon, String direction,
+            String name, String code, String[] routeIds) {
+        this.id = id;
+        this.lat = lat;
+        this.lon = lon;
+        this.direction = direction;
+        this.locationType = LOCATION_STOP;
+        this.name = name;
+        this.code = code;
+        this.routeIds = routeIds;
+    }
+
     public String getId() {
         return id;
     }
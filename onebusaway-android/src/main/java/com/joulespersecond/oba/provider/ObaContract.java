@@ -17,17 +17,30 @@ package com.joulespersecond.oba.provider;
 
 import com.joulespersecond.oba.elements.ObaRegion;
 import com.joulespersecond.oba.elements.ObaRegionElement;
-
+import com.joulespersecond.oba.elements.ObaRoute;
+import com.joulespersecond.oba.elements.ObaRouteElement;
+import com.joulespersecond.oba.elements.ObaStop;
+import com.joulespersecond.oba.elements.ObaStopElement;
+import com.joulespersecond.seattlebusbot.Application;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
 import android.text.format.Time;
+import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 
 /**
  * The contract between clients and the ObaProvider.
@@ -38,12 +51,110 @@ import java.util.ArrayList;
  */
 public final class ObaContract {
 
+    private static final String TAG = "ObaContract";
+
     /** The authority portion of the URI for the Oba provider */
     public static final String AUTHORITY = "com.joulespersecond.oba";
 
     /** The base URI for the Oba provider */
     public static final Uri AUTHORITY_URI = Uri.parse("content://" + AUTHORITY);
 
+    /**
+     * A query parameter for inserting to a single stop or route URI,
+     * which updates the row if it already exists. If this is "true",
+     * the use count is also incremented and the access time set to now.
+     */
+    public static final String MARK_USED = "mark_used";
+
+    /**
+     * A query parameter for the Stops, Routes and StopLocations URIs,
+     * which limits the results to rows whose names (or codes) match
+     * the full-text query. See getMatchQuery().
+     */
+    public static final String SEARCH = "search";
+
+    private static final int MAX_SEARCH_TOKENS = 8;
+
+    /**
+     * Turns what the user typed into a full-text query that matches
+     * names containing words starting with each of the words typed.
+     *
+     * @return The query, or null if there's nothing to search for.
+     */
+    public static String getMatchQuery(String text) {
+        if (text == null) {
+            return null;
+        }
+        // Anything other than letters and digits would be query syntax.
+        String[] tokens = text.toLowerCase().split("[^\\p{L}\\p{N}]+");
+        StringBuilder result = new StringBuilder();
+        int count = 0;
+        for (String token : tokens) {
+            if (token.length() == 0) {
+                continue;
+            }
+            if (count > 0) {
+                result.append(' ');
+            }
+            result.append(token).append('*');
+            if (++count == MAX_SEARCH_TOKENS) {
+                break;
+            }
+        }
+        return count > 0 ? result.toString() : null;
+    }
+
+    private static Uri getSearchUri(Uri uri, String match, int limit) {
+        return uri.buildUpon()
+                .appendQueryParameter(SEARCH, match)
+                .appendQueryParameter("limit", String.valueOf(limit))
+                .build();
+    }
+
+    // Returns the IDs of all the rows of a table in a region.
+    private static HashSet<String> getIds(Context context, Uri uri,
+            String regionColumn, Long regionId) {
+        HashSet<String> result = new HashSet<String>();
+        Cursor c = context.getContentResolver().query(uri,
+                new String[]{BaseColumns._ID},
+                getRegionSelection(regionColumn, regionId), null, null);
+        if (c == null) {
+            return result;
+        }
+        try {
+            while (c.moveToNext()) {
+                result.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    private static String getRegionSelection(String column, Long regionId) {
+        if (regionId == null) {
+            return null;
+        }
+        return "(" + column + "=" + regionId + " OR " + column + " IS NULL)";
+    }
+
+    /**
+     * Applies a batch of operations to the Oba provider in a single transaction.
+     *
+     * @return The results, or null if the batch failed and nothing was written.
+     */
+    public static ContentProviderResult[] applyBatch(ContentResolver cr,
+            ArrayList<ContentProviderOperation> operations) {
+        try {
+            return cr.applyBatch(AUTHORITY, operations);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to apply batch: " + e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Unable to apply batch: " + e);
+        }
+        return null;
+    }
+
     protected interface StopsColumns {
 
         /**
@@ -232,6 +343,23 @@ public final class ObaContract {
          * </P>
          */
         public static final String STATE = "state";
+
+        /**
+         * The number of polls of the alert's stop in a row that failed with
+         * an I/O error, for backing off.
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String FAILURES = "failures";
+
+        /**
+         * The number of arrivals requests made while polling for the alert.
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String REQUEST_COUNT = "request_count";
     }
 
     protected interface UserColumns {
@@ -415,6 +543,25 @@ public final class ObaContract {
 
     }
 
+    protected interface StopLocationsColumns {
+
+        /**
+         * The grid cell containing the stop (see StopLocations.getCell())
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String CELL = "cell";
+
+        /**
+         * The IDs of the routes serving the stop, separated by commas
+         * <P>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String ROUTE_IDS = "route_ids";
+    }
+
     public static class Stops implements BaseColumns, StopsColumns, UserColumns {
 
         // Cannot be instantiated
@@ -439,35 +586,12 @@ public final class ObaContract {
                 ContentValues values,
                 boolean markAsUsed) {
             ContentResolver cr = context.getContentResolver();
-            final Uri uri = Uri.withAppendedPath(CONTENT_URI, id);
-            Cursor c = cr.query(uri, new String[]{USE_COUNT}, null, null,
-                    null);
-            Uri result;
-            if (c != null && c.getCount() > 0) {
-                // Update
-                if (markAsUsed) {
-                    c.moveToFirst();
-                    int count = c.getInt(0);
-                    values.put(USE_COUNT, count + 1);
-                    values.put(ACCESS_TIME, System.currentTimeMillis());
-                }
-                cr.update(uri, values, null, null);
-                result = uri;
-            } else {
-                // Insert
-                if (markAsUsed) {
-                    values.put(USE_COUNT, 1);
-                    values.put(ACCESS_TIME, System.currentTimeMillis());
-                } else {
-                    values.put(USE_COUNT, 0);
-                }
-                values.put(_ID, id);
-                result = cr.insert(CONTENT_URI, values);
-            }
-            if (c != null) {
-                c.close();
+            Uri uri = Uri.withAppendedPath(CONTENT_URI, id);
+            if (markAsUsed) {
+                uri = uri.buildUpon().appendQueryParameter(MARK_USED, "true").build();
             }
-            return result;
+            // The provider updates or inserts the row in one transaction.
+            return cr.insert(uri, values);
         }
 
         public static boolean markAsFavorite(Context context,
@@ -486,6 +610,65 @@ public final class ObaContract {
             values.putNull(ObaContract.Stops.ACCESS_TIME);
             return cr.update(uri, values, null, null) > 0;
         }
+
+        private static final String[] SEARCH_PROJECTION = {
+                _ID,
+                CODE,
+                UI_NAME,
+                DIRECTION,
+                LATITUDE,
+                LONGITUDE
+        };
+
+        /**
+         * Searches the stops the user has used, and then every other stop
+         * the app has seen, by name and code. This reads from the database,
+         * so don't call it from the UI thread.
+         *
+         * @param regionId The region to look in, or null for any region.
+         * @param text     What the user typed.
+         * @param limit    The maximum number of stops to return.
+         * @return The matching stops, the most used first.
+         */
+        public static List<ObaStop> search(Context context, Long regionId,
+                String text, int limit) {
+            ArrayList<ObaStop> result = new ArrayList<ObaStop>();
+            final String match = getMatchQuery(text);
+            if (match == null) {
+                return result;
+            }
+            ContentResolver cr = context.getContentResolver();
+            HashSet<String> ids = new HashSet<String>();
+            Cursor c = cr.query(getSearchUri(CONTENT_URI, match, limit), SEARCH_PROJECTION,
+                    getRegionSelection(REGION_ID, regionId), null, USE_COUNT + " desc");
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        ids.add(c.getString(0));
+                        result.add(new ObaStopElement(c.getString(0),
+                                c.getDouble(4),
+                                c.getDouble(5),
+                                c.getString(3),
+                                c.getString(2),
+                                c.getString(1),
+                                ObaStopElement.EMPTY_ROUTES));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            if (result.size() < limit) {
+                for (ObaStop stop : StopLocations.search(context, regionId, match, limit)) {
+                    if (result.size() == limit) {
+                        break;
+                    }
+                    if (ids.add(stop.getId())) {
+                        result.add(stop);
+                    }
+                }
+            }
+            return result;
+        }
     }
 
     public static class Routes implements BaseColumns, RoutesColumns,
@@ -513,35 +696,12 @@ public final class ObaContract {
                 ContentValues values,
                 boolean markAsUsed) {
             ContentResolver cr = context.getContentResolver();
-            final Uri uri = Uri.withAppendedPath(CONTENT_URI, id);
-            Cursor c = cr.query(uri, new String[]{USE_COUNT}, null, null,
-                    null);
-            Uri result;
-            if (c != null && c.getCount() > 0) {
-                // Update
-                if (markAsUsed) {
-                    c.moveToFirst();
-                    int count = c.getInt(0);
-                    values.put(USE_COUNT, count + 1);
-                    values.put(ACCESS_TIME, System.currentTimeMillis());
-                }
-                cr.update(uri, values, null, null);
-                result = uri;
-            } else {
-                // Insert
-                if (markAsUsed) {
-                    values.put(USE_COUNT, 1);
-                    values.put(ACCESS_TIME, System.currentTimeMillis());
-                } else {
-                    values.put(USE_COUNT, 0);
-                }
-                values.put(_ID, id);
-                result = cr.insert(CONTENT_URI, values);
+            Uri uri = Uri.withAppendedPath(CONTENT_URI, id);
+            if (markAsUsed) {
+                uri = uri.buildUpon().appendQueryParameter(MARK_USED, "true").build();
             }
-            if (c != null) {
-                c.close();
-            }
-            return result;
+            // The provider updates or inserts the row in one transaction.
+            return cr.insert(uri, values);
         }
 
         public static boolean markAsUnused(Context context, Uri uri) {
@@ -551,6 +711,215 @@ public final class ObaContract {
             values.putNull(ObaContract.Routes.ACCESS_TIME);
             return cr.update(uri, values, null, null) > 0;
         }
+
+        private static final String[] SEARCH_PROJECTION = {
+                _ID,
+                SHORTNAME,
+                LONGNAME,
+                URL
+        };
+
+        /**
+         * Searches the known routes by short and long name. This reads
+         * from the database, so don't call it from the UI thread.
+         *
+         * @param regionId The region to look in, or null for any region.
+         * @param text     What the user typed.
+         * @param limit    The maximum number of routes to return.
+         * @return The matching routes, the most used first.
+         */
+        public static List<ObaRoute> search(Context context, Long regionId,
+                String text, int limit) {
+            ArrayList<ObaRoute> result = new ArrayList<ObaRoute>();
+            final String match = getMatchQuery(text);
+            if (match == null) {
+                return result;
+            }
+            Cursor c = context.getContentResolver().query(
+                    getSearchUri(CONTENT_URI, match, limit), SEARCH_PROJECTION,
+                    getRegionSelection(REGION_ID, regionId), null, USE_COUNT + " desc");
+            if (c == null) {
+                return result;
+            }
+            try {
+                while (c.moveToNext()) {
+                    result.add(new ObaRouteElement(c.getString(0),
+                            c.getString(1),
+                            c.getString(2),
+                            c.getString(3)));
+                }
+            } finally {
+                c.close();
+            }
+            return result;
+        }
+
+        /**
+         * @return The IDs of all the routes stored for a region,
+         * whether or not the user has used them.
+         */
+        public static HashSet<String> getIds(Context context, Long regionId) {
+            return ObaContract.getIds(context, CONTENT_URI, REGION_ID, regionId);
+        }
+    }
+
+    /**
+     * Every stop the app has seen in a server response, indexed by a grid
+     * of cells so the stops in a map viewport can be found without the network.
+     * Unlike Stops, this doesn't hold anything the user has done.
+     */
+    public static class StopLocations implements BaseColumns, StopsColumns,
+            StopLocationsColumns {
+
+        // Cannot be instantiated
+        private StopLocations() {
+        }
+
+        /** The URI path portion for this table */
+        public static final String PATH = "stop_locations";
+
+        /** The content:// style URI for this table */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(
+                AUTHORITY_URI, PATH);
+
+        public static final String CONTENT_DIR_TYPE
+                = "vnd.android.dir/com.joulespersecond.oba.stop_location";
+
+        /**
+         * The size of a cell, in degrees (about 1km north to south).
+         */
+        public static final double CELL_DEGREES = 0.01;
+
+        private static final int CELLS_PER_ROW = (int) Math.ceil(360 / CELL_DEGREES);
+
+        // Above this many cells, we query by latitude and longitude alone.
+        private static final int MAX_QUERY_CELLS = 256;
+
+        private static final String[] PROJECTION = {
+                _ID,
+                CODE,
+                NAME,
+                DIRECTION,
+                LATITUDE,
+                LONGITUDE,
+                ROUTE_IDS
+        };
+
+        public static long getCell(double lat, double lon) {
+            final long row = (long) Math.floor((lat + 90) / CELL_DEGREES);
+            final long col = (long) Math.floor((lon + 180) / CELL_DEGREES);
+            return row * CELLS_PER_ROW + col;
+        }
+
+        /**
+         * Adds or replaces the stops in the current region. This writes to the
+         * database, so don't call it from the UI thread.
+         */
+        public static void insert(Context context, List<ObaStop> stops) {
+            ObaRegion region = Application.get().getCurrentRegion();
+            insert(context, region != null ? region.getId() : null, stops);
+        }
+
+        /**
+         * Adds or replaces the stops. This writes to the database,
+         * so don't call it from the UI thread.
+         *
+         * @param regionId The region the stops are in, or null for a custom server.
+         */
+        public static void insert(Context context, Long regionId, List<ObaStop> stops) {
+            if (stops == null || stops.isEmpty()) {
+                return;
+            }
+            ContentValues[] values = new ContentValues[stops.size()];
+            int i = 0;
+            for (ObaStop stop : stops) {
+                ContentValues v = new ContentValues();
+                v.put(_ID, stop.getId());
+                v.put(REGION_ID, regionId);
+                v.put(CELL, getCell(stop.getLatitude(), stop.getLongitude()));
+                v.put(CODE, stop.getStopCode());
+                v.put(NAME, stop.getName());
+                v.put(DIRECTION, stop.getDirection());
+                v.put(LATITUDE, stop.getLatitude());
+                v.put(LONGITUDE, stop.getLongitude());
+                v.put(ROUTE_IDS, TextUtils.join(",", stop.getRouteIds()));
+                values[i++] = v;
+            }
+            context.getContentResolver().bulkInsert(CONTENT_URI, values);
+        }
+
+        /**
+         * Returns the known stops inside a box. This reads from the database,
+         * so don't call it from the UI thread.
+         *
+         * @param regionId The region to look in, or null for a custom server.
+         */
+        public static List<ObaStop> getStops(Context context, Long regionId,
+                double minLat, double maxLat, double minLon, double maxLon) {
+            StringBuilder where = new StringBuilder();
+            where.append(regionId != null ? REGION_ID + "=" + regionId : REGION_ID + " IS NULL");
+            where.append(" AND ").append(LATITUDE).append(" BETWEEN ")
+                    .append(minLat).append(" AND ").append(maxLat);
+            where.append(" AND ").append(LONGITUDE).append(" BETWEEN ")
+                    .append(minLon).append(" AND ").append(maxLon);
+
+            final long minCell = getCell(minLat, minLon);
+            final long maxCell = getCell(maxLat, maxLon);
+            final long rows = (maxCell - minCell) / CELLS_PER_ROW + 1;
+            final long cols = maxCell % CELLS_PER_ROW - minCell % CELLS_PER_ROW + 1;
+            if (cols > 0 && rows * cols <= MAX_QUERY_CELLS) {
+                where.append(" AND ").append(CELL).append(" IN (");
+                for (long row = 0; row < rows; ++row) {
+                    for (long col = 0; col < cols; ++col) {
+                        if (row > 0 || col > 0) {
+                            where.append(',');
+                        }
+                        where.append(minCell + row * CELLS_PER_ROW + col);
+                    }
+                }
+                where.append(')');
+            }
+
+            return getStops(context.getContentResolver().query(CONTENT_URI, PROJECTION,
+                    where.toString(), null, null));
+        }
+
+        /**
+         * @return The IDs of all the stops stored for a region.
+         */
+        public static HashSet<String> getIds(Context context, Long regionId) {
+            return ObaContract.getIds(context, CONTENT_URI, REGION_ID, regionId);
+        }
+
+        // Takes a full-text query already made by getMatchQuery().
+        static List<ObaStop> search(Context context, Long regionId, String match, int limit) {
+            return getStops(context.getContentResolver().query(
+                    getSearchUri(CONTENT_URI, match, limit), PROJECTION,
+                    getRegionSelection(REGION_ID, regionId), null, null));
+        }
+
+        private static List<ObaStop> getStops(Cursor c) {
+            ArrayList<ObaStop> result = new ArrayList<ObaStop>();
+            if (c == null) {
+                return result;
+            }
+            try {
+                while (c.moveToNext()) {
+                    final String routes = c.getString(6);
+                    result.add(new ObaStopElement(c.getString(0),
+                            c.getDouble(4),
+                            c.getDouble(5),
+                            c.getString(3),
+                            c.getString(2),
+                            c.getString(1),
+                            TextUtils.isEmpty(routes) ? ObaStopElement.EMPTY_ROUTES
+                                    : routes.split(",")));
+                }
+            } finally {
+                c.close();
+            }
+            return result;
+        }
     }
 
     public static class StopRouteFilters implements StopRouteFilterColumns {
@@ -609,20 +978,21 @@ public final class ObaContract {
                 String stopId,
                 ArrayList<String> filter) {
             // First, delete any existing rows for this stop.
-            // Then, insert all of these rows.
-            // Should we put this in a transaction? We could,
-            // but it's not terribly important.
+            // Then, insert all of these rows, all in one transaction.
             final String[] selectionArgs = {stopId};
-            ContentResolver cr = context.getContentResolver();
-            cr.delete(CONTENT_URI, FILTER_WHERE, selectionArgs);
+            ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+            ops.add(ContentProviderOperation.newDelete(CONTENT_URI)
+                    .withSelection(FILTER_WHERE, selectionArgs)
+                    .build());
 
-            ContentValues args = new ContentValues();
-            args.put(STOP_ID, stopId);
             final int len = filter.size();
             for (int i = 0; i < len; ++i) {
-                args.put(ROUTE_ID, filter.get(i));
-                cr.insert(CONTENT_URI, args);
+                ops.add(ContentProviderOperation.newInsert(CONTENT_URI)
+                        .withValue(STOP_ID, stopId)
+                        .withValue(ROUTE_ID, filter.get(i))
+                        .build());
             }
+            applyBatch(context.getContentResolver(), ops);
         }
     }
 
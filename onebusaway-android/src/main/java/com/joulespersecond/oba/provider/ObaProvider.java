@@ -15,29 +15,52 @@
  */
 package com.joulespersecond.oba.provider;
 
+import com.joulespersecond.seattlebusbot.Application;
+import com.joulespersecond.seattlebusbot.BuildConfig;
+import com.joulespersecond.seattlebusbot.R;
+
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+import android.util.Log;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ObaProvider extends ContentProvider {
 
+    private static final String TAG = "ObaProvider";
+
     private static final String DATABASE_NAME = "com.joulespersecond.seattlebusbot.db";
 
+    // With write-ahead logging, checkpoint once the log reaches this many pages
+    // (the SQLite default is 1000), so readers don't have to search a long log.
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 200;
+
     private class OpenHelper extends SQLiteOpenHelper {
 
-        private static final int DATABASE_VERSION = 20;
+        private static final int DATABASE_VERSION = 24;
 
         public OpenHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -183,9 +206,126 @@ public class ObaProvider extends ContentProvider {
                 db.execSQL(
                         "ALTER TABLE " + ObaContract.Regions.PATH +
                                 " ADD COLUMN " + ObaContract.Regions.EXPERIMENTAL + " INTEGER");
+                ++oldVersion;
+            }
+            if (oldVersion == 20) {
+                // Indexes for the hot queries: scheduling trip alerts,
+                // route filters, and the recent and starred lists.
+                db.execSQL(
+                        "CREATE INDEX IF NOT EXISTS trip_alerts_trip ON " +
+                                ObaContract.TripAlerts.PATH + " (" +
+                                ObaContract.TripAlerts.TRIP_ID + ", " +
+                                ObaContract.TripAlerts.STOP_ID + ", " +
+                                ObaContract.TripAlerts.START_TIME + ")");
+                db.execSQL(
+                        "CREATE INDEX IF NOT EXISTS trip_alerts_start_time ON " +
+                                ObaContract.TripAlerts.PATH + " (" +
+                                ObaContract.TripAlerts.START_TIME + ")");
+                db.execSQL(
+                        "CREATE INDEX IF NOT EXISTS stop_routes_filter_stop ON " +
+                                ObaContract.StopRouteFilters.PATH + " (" +
+                                ObaContract.StopRouteFilters.STOP_ID + ", " +
+                                ObaContract.StopRouteFilters.ROUTE_ID + ")");
+                createUserIndexes(db, ObaContract.Stops.PATH, ObaContract.Stops.ACCESS_TIME,
+                        ObaContract.Stops.USE_COUNT, ObaContract.Stops.REGION_ID);
+                createUserIndexes(db, ObaContract.Routes.PATH, ObaContract.Routes.ACCESS_TIME,
+                        ObaContract.Routes.USE_COUNT, ObaContract.Routes.REGION_ID);
+                db.execSQL(
+                        "CREATE INDEX IF NOT EXISTS stops_favorite ON " +
+                                ObaContract.Stops.PATH + " (" +
+                                ObaContract.Stops.FAVORITE + ", " +
+                                ObaContract.Stops.REGION_ID + ")");
+                ++oldVersion;
+            }
+            if (oldVersion == 21) {
+                db.execSQL(
+                        "CREATE TABLE " +
+                                ObaContract.StopLocations.PATH + " (" +
+                                ObaContract.StopLocations._ID + " VARCHAR PRIMARY KEY, " +
+                                ObaContract.StopLocations.REGION_ID + " INTEGER, " +
+                                ObaContract.StopLocations.CELL + " INTEGER NOT NULL, " +
+                                ObaContract.StopLocations.CODE + " VARCHAR, " +
+                                ObaContract.StopLocations.NAME + " VARCHAR NOT NULL, " +
+                                ObaContract.StopLocations.DIRECTION + " VARCHAR, " +
+                                ObaContract.StopLocations.LATITUDE + " DOUBLE NOT NULL, " +
+                                ObaContract.StopLocations.LONGITUDE + " DOUBLE NOT NULL, " +
+                                ObaContract.StopLocations.ROUTE_IDS + " VARCHAR" +
+                                ");");
+                db.execSQL(
+                        "CREATE INDEX IF NOT EXISTS stop_locations_cell ON " +
+                                ObaContract.StopLocations.PATH + " (" +
+                                ObaContract.StopLocations.REGION_ID + ", " +
+                                ObaContract.StopLocations.CELL + ")");
+                ++oldVersion;
+            }
+            if (oldVersion == 22) {
+                // Full-text indexes for searching without the network.
+                createSearchIndex(db, ObaContract.Stops.PATH,
+                        ObaContract.Stops.NAME,
+                        ObaContract.Stops.CODE,
+                        ObaContract.Stops.USER_NAME);
+                createSearchIndex(db, ObaContract.StopLocations.PATH,
+                        ObaContract.StopLocations.NAME,
+                        ObaContract.StopLocations.CODE);
+                createSearchIndex(db, ObaContract.Routes.PATH,
+                        ObaContract.Routes.SHORTNAME,
+                        ObaContract.Routes.LONGNAME);
+                ++oldVersion;
+            }
+            if (oldVersion == 23) {
+                // Polling state, which has to outlive the process.
+                db.execSQL("ALTER TABLE " + ObaContract.TripAlerts.PATH +
+                        " ADD COLUMN " + ObaContract.TripAlerts.FAILURES +
+                        " INTEGER NOT NULL DEFAULT 0");
+                db.execSQL("ALTER TABLE " + ObaContract.TripAlerts.PATH +
+                        " ADD COLUMN " + ObaContract.TripAlerts.REQUEST_COUNT +
+                        " INTEGER NOT NULL DEFAULT 0");
             }
         }
 
+        //
+        // Creates an FTS3 table named <table>_fts over some of the table's
+        // columns, fills it, and adds triggers to keep it in sync. Its docid
+        // is the rowid of the row in the table.
+        //
+        private void createSearchIndex(SQLiteDatabase db, String table, String... columns) {
+            final String fts = getSearchTable(table);
+            final String list = TextUtils.join(", ", columns);
+            final String newValues = "NEW." + TextUtils.join(", NEW.", columns);
+            db.execSQL("CREATE VIRTUAL TABLE " + fts + " USING fts3(" + list + ")");
+            db.execSQL("INSERT INTO " + fts + " (docid, " + list + ") " +
+                    "SELECT rowid, " + list + " FROM " + table);
+
+            // An INSERT OR REPLACE doesn't fire the delete trigger for the row it
+            // replaces, so clear out any row with the same ID before the insert.
+            db.execSQL("CREATE TRIGGER " + fts + "_before_insert BEFORE INSERT ON " + table +
+                    " BEGIN DELETE FROM " + fts + " WHERE docid IN (SELECT rowid FROM " +
+                    table + " WHERE " + BaseColumns._ID + "=NEW." + BaseColumns._ID + "); END");
+            db.execSQL("CREATE TRIGGER " + fts + "_insert AFTER INSERT ON " + table +
+                    " BEGIN INSERT INTO " + fts + " (docid, " + list + ") VALUES (NEW.rowid, " +
+                    newValues + "); END");
+            // Only changes to the indexed columns; the use counts change all the time.
+            db.execSQL("CREATE TRIGGER " + fts + "_update AFTER UPDATE OF " + list +
+                    " ON " + table +
+                    " BEGIN DELETE FROM " + fts + " WHERE docid=OLD.rowid; " +
+                    "INSERT INTO " + fts + " (docid, " + list + ") VALUES (NEW.rowid, " +
+                    newValues + "); END");
+            db.execSQL("CREATE TRIGGER " + fts + "_delete AFTER DELETE ON " + table +
+                    " BEGIN DELETE FROM " + fts + " WHERE docid=OLD.rowid; END");
+        }
+
+        // The recent lists filter on (access_time OR use_count) and region,
+        // so each term gets its own index with the region alongside it.
+        private void createUserIndexes(SQLiteDatabase db, String table,
+                String accessTime, String useCount, String regionId) {
+            db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS " + table + "_access_time ON " + table + " (" +
+                            accessTime + ", " + regionId + ")");
+            db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS " + table + "_use_count ON " + table + " (" +
+                            useCount + ", " + regionId + ")");
+        }
+
         private void bootstrapDatabase(SQLiteDatabase db) {
             db.execSQL(
                     "CREATE TABLE " +
@@ -229,6 +369,10 @@ public class ObaProvider extends ContentProvider {
             db.execSQL("DROP TABLE IF EXISTS " + ObaContract.ServiceAlerts.PATH);
             db.execSQL("DROP TABLE IF EXISTS " + ObaContract.Regions.PATH);
             db.execSQL("DROP TABLE IF EXISTS " + ObaContract.RegionBounds.PATH);
+            db.execSQL("DROP TABLE IF EXISTS " + ObaContract.StopLocations.PATH);
+            db.execSQL("DROP TABLE IF EXISTS " + getSearchTable(ObaContract.Stops.PATH));
+            db.execSQL("DROP TABLE IF EXISTS " + getSearchTable(ObaContract.StopLocations.PATH));
+            db.execSQL("DROP TABLE IF EXISTS " + getSearchTable(ObaContract.Routes.PATH));
         }
     }
 
@@ -262,6 +406,8 @@ public class ObaProvider extends ContentProvider {
 
     private static final int REGION_BOUNDS_ID = 15;
 
+    private static final int STOP_LOCATIONS = 16;
+
     private static final UriMatcher sUriMatcher;
 
     private static final HashMap<String, String> sStopsProjectionMap;
@@ -278,6 +424,8 @@ public class ObaProvider extends ContentProvider {
 
     private static final HashMap<String, String> sRegionBoundsProjectionMap;
 
+    private static final HashMap<String, String> sStopLocationsProjectionMap;
+
     // Insert helpers are useful.
     private DatabaseUtils.InsertHelper mStopsInserter;
 
@@ -295,6 +443,12 @@ public class ObaProvider extends ContentProvider {
 
     private DatabaseUtils.InsertHelper mRegionBoundsInserter;
 
+    private DatabaseUtils.InsertHelper mStopLocationsInserter;
+
+    private SQLiteStatement mStopsMarkUsed;
+
+    private SQLiteStatement mRoutesMarkUsed;
+
     static {
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         sUriMatcher.addURI(ObaContract.AUTHORITY, ObaContract.Stops.PATH, STOPS);
@@ -316,6 +470,8 @@ public class ObaProvider extends ContentProvider {
         sUriMatcher.addURI(ObaContract.AUTHORITY, ObaContract.RegionBounds.PATH, REGION_BOUNDS);
         sUriMatcher.addURI(ObaContract.AUTHORITY, ObaContract.RegionBounds.PATH + "/#",
                 REGION_BOUNDS_ID);
+        sUriMatcher.addURI(ObaContract.AUTHORITY, ObaContract.StopLocations.PATH,
+                STOP_LOCATIONS);
 
         sStopsProjectionMap = new HashMap<String, String>();
         sStopsProjectionMap.put(ObaContract.Stops._ID, ObaContract.Stops._ID);
@@ -366,6 +522,10 @@ public class ObaProvider extends ContentProvider {
         sTripAlertsProjectionMap
                 .put(ObaContract.TripAlerts.START_TIME, ObaContract.TripAlerts.START_TIME);
         sTripAlertsProjectionMap.put(ObaContract.TripAlerts.STATE, ObaContract.TripAlerts.STATE);
+        sTripAlertsProjectionMap
+                .put(ObaContract.TripAlerts.FAILURES, ObaContract.TripAlerts.FAILURES);
+        sTripAlertsProjectionMap
+                .put(ObaContract.TripAlerts.REQUEST_COUNT, ObaContract.TripAlerts.REQUEST_COUNT);
         sTripAlertsProjectionMap.put(ObaContract.TripAlerts._COUNT, "count(*)");
 
         sServiceAlertsProjectionMap = new HashMap<String, String>();
@@ -406,16 +566,53 @@ public class ObaProvider extends ContentProvider {
                 .put(ObaContract.RegionBounds.LAT_SPAN, ObaContract.RegionBounds.LAT_SPAN);
         sRegionBoundsProjectionMap
                 .put(ObaContract.RegionBounds.LON_SPAN, ObaContract.RegionBounds.LON_SPAN);
+
+        sStopLocationsProjectionMap = new HashMap<String, String>();
+        for (String column : new String[]{
+                ObaContract.StopLocations._ID,
+                ObaContract.StopLocations.REGION_ID,
+                ObaContract.StopLocations.CELL,
+                ObaContract.StopLocations.CODE,
+                ObaContract.StopLocations.NAME,
+                ObaContract.StopLocations.DIRECTION,
+                ObaContract.StopLocations.LATITUDE,
+                ObaContract.StopLocations.LONGITUDE,
+                ObaContract.StopLocations.ROUTE_IDS}) {
+            sStopLocationsProjectionMap.put(column, column);
+        }
+        sStopLocationsProjectionMap.put(ObaContract.StopLocations._COUNT, "count(*)");
     }
 
     private SQLiteDatabase mDb;
 
     private OpenHelper mOpenHelper;
 
+    private boolean mWalEnabled = false;
+
+    private final AtomicInteger mCheckpoints = new AtomicInteger();
+
+    // While applyBatch() is running on a thread, the URIs it has changed.
+    // They are notified once, after the batch commits.
+    private final ThreadLocal<LinkedHashSet<Uri>> mBatchChanges =
+            new ThreadLocal<LinkedHashSet<Uri>>();
+
     public static File getDatabasePath(Context context) {
         return context.getDatabasePath(DATABASE_NAME);
     }
 
+    /**
+     * @return true if the user has opted in to write-ahead logging,
+     * and the platform supports it.
+     */
+    public static boolean isWriteAheadLoggingEnabled(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return false;
+        }
+        // The app's preferences, since the provider's context may be isolated (as in tests).
+        return Application.getPrefs()
+                .getBoolean(context.getString(R.string.preference_key_db_wal), false);
+    }
+
     @Override
     public boolean onCreate() {
         mOpenHelper = new OpenHelper(getContext());
@@ -456,6 +653,8 @@ public class ObaProvider extends ContentProvider {
                 return ObaContract.RegionBounds.CONTENT_DIR_TYPE;
             case REGION_BOUNDS_ID:
                 return ObaContract.RegionBounds.CONTENT_TYPE;
+            case STOP_LOCATIONS:
+                return ObaContract.StopLocations.CONTENT_DIR_TYPE;
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -467,7 +666,7 @@ public class ObaProvider extends ContentProvider {
         db.beginTransaction();
         try {
             Uri result = insertInternal(db, uri, values);
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
             db.setTransactionSuccessful();
             return result;
         } finally {
@@ -475,6 +674,66 @@ public class ObaProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Inserts all the rows in a single transaction, using the table's
+     * precompiled insert statement, with one change notification at the end.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentValues v : values) {
+                insertInternal(db, uri, v);
+            }
+            if (values.length > 0) {
+                notifyChange(uri);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        checkpoint(db, values.length);
+        return values.length;
+    }
+
+    /**
+     * Applies all the operations in a single transaction. Each changed URI
+     * is notified once, after the transaction has been committed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDatabase();
+        final boolean outermost = mBatchChanges.get() == null;
+        if (outermost) {
+            mBatchChanges.set(new LinkedHashSet<Uri>());
+        }
+        ContentProviderResult[] results;
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            db.endTransaction();
+            if (outermost) {
+                LinkedHashSet<Uri> changes = mBatchChanges.get();
+                mBatchChanges.remove();
+                if (success) {
+                    for (Uri uri : changes) {
+                        getContext().getContentResolver().notifyChange(uri, null);
+                    }
+                }
+            }
+        }
+        if (outermost) {
+            checkpoint(db, operations.size());
+        }
+        return results;
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
@@ -490,7 +749,7 @@ public class ObaProvider extends ContentProvider {
         try {
             int result = updateInternal(db, uri, values, selection, selectionArgs);
             if (result > 0) {
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(uri);
             }
             db.setTransactionSuccessful();
             return result;
@@ -506,7 +765,7 @@ public class ObaProvider extends ContentProvider {
         try {
             int result = deleteInternal(db, uri, selection, selectionArgs);
             if (result > 0) {
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(uri);
             }
             db.setTransactionSuccessful();
             return result;
@@ -515,6 +774,15 @@ public class ObaProvider extends ContentProvider {
         }
     }
 
+    private void notifyChange(Uri uri) {
+        LinkedHashSet<Uri> changes = mBatchChanges.get();
+        if (changes != null) {
+            changes.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     private Uri insertInternal(SQLiteDatabase db, Uri uri, ContentValues values) {
         final int match = sUriMatcher.match(uri);
         String id;
@@ -594,9 +862,23 @@ public class ObaProvider extends ContentProvider {
                 result = ContentUris.withAppendedId(ObaContract.RegionBounds.CONTENT_URI, longId);
                 return result;
 
-            // What would these mean, anyway??
+            case STOP_LOCATIONS:
+                // Stops are seen again and again, so this replaces any existing row.
+                mStopLocationsInserter.replace(values);
+                return uri;
+
+            // Inserting to a single stop or route updates it if it's already there.
             case STOPS_ID:
+                upsertInternal(db, uri, values, ObaContract.Stops.PATH,
+                        mStopsInserter, mStopsMarkUsed);
+                return uri.buildUpon().clearQuery().build();
+
             case ROUTES_ID:
+                upsertInternal(db, uri, values, ObaContract.Routes.PATH,
+                        mRoutesInserter, mRoutesMarkUsed);
+                return uri.buildUpon().clearQuery().build();
+
+            // What would these mean, anyway??
             case TRIPS_ID:
             case TRIP_ALERTS_ID:
             case SERVICE_ALERTS_ID:
@@ -608,6 +890,45 @@ public class ObaProvider extends ContentProvider {
         }
     }
 
+    //
+    // Updates the row with the ID in the URI, or inserts it if it's not there,
+    // inside the caller's transaction. If the URI has MARK_USED set, the use
+    // count is incremented in place and the access time is set to now.
+    //
+    private void upsertInternal(SQLiteDatabase db,
+            Uri uri,
+            ContentValues values,
+            String table,
+            DatabaseUtils.InsertHelper inserter,
+            SQLiteStatement markUsed) {
+        final String id = uri.getLastPathSegment();
+        final boolean used = "true".equals(uri.getQueryParameter(ObaContract.MARK_USED));
+        final long now = System.currentTimeMillis();
+        values = new ContentValues(values);
+        values.remove(BaseColumns._ID);
+        values.remove(ObaContract.Stops.USE_COUNT);
+        if (used) {
+            values.put(ObaContract.Stops.ACCESS_TIME, now);
+        }
+
+        int count = 0;
+        if (values.size() > 0) {
+            count = db.update(table, values, where(BaseColumns._ID, uri), null);
+        } else {
+            count = (int) DatabaseUtils.longForQuery(db,
+                    "SELECT count(*) FROM " + table + " WHERE " + where(BaseColumns._ID, uri),
+                    null);
+        }
+        if (count == 0) {
+            values.put(BaseColumns._ID, id);
+            values.put(ObaContract.Stops.USE_COUNT, used ? 1 : 0);
+            inserter.insert(values);
+        } else if (used) {
+            markUsed.bindString(1, id);
+            markUsed.execute();
+        }
+    }
+
     private Cursor queryInternal(SQLiteDatabase db,
             Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
@@ -620,6 +941,7 @@ public class ObaProvider extends ContentProvider {
             case STOPS:
                 qb.setTables(ObaContract.Stops.PATH);
                 qb.setProjectionMap(sStopsProjectionMap);
+                appendSearch(qb, ObaContract.Stops.PATH, uri);
                 return qb.query(mDb, projection, selection, selectionArgs,
                         null, null, sortOrder, limit);
 
@@ -635,6 +957,7 @@ public class ObaProvider extends ContentProvider {
             case ROUTES:
                 qb.setTables(ObaContract.Routes.PATH);
                 qb.setProjectionMap(sRoutesProjectionMap);
+                appendSearch(qb, ObaContract.Routes.PATH, uri);
                 return qb.query(mDb, projection, selection, selectionArgs,
                         null, null, sortOrder, limit);
 
@@ -725,11 +1048,37 @@ public class ObaProvider extends ContentProvider {
                 return qb.query(mDb, projection, selection, selectionArgs,
                         null, null, sortOrder, limit);
 
+            case STOP_LOCATIONS:
+                qb.setTables(ObaContract.StopLocations.PATH);
+                qb.setProjectionMap(sStopLocationsProjectionMap);
+                appendSearch(qb, ObaContract.StopLocations.PATH, uri);
+                return qb.query(mDb, projection, selection, selectionArgs,
+                        null, null, sortOrder, limit);
+
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
     }
 
+    //
+    // If the URI has a SEARCH parameter, limits the query to the rows
+    // in the table's full-text index that match it.
+    //
+    private static void appendSearch(SQLiteQueryBuilder qb, String table, Uri uri) {
+        final String match = uri.getQueryParameter(ObaContract.SEARCH);
+        if (match == null) {
+            return;
+        }
+        final String fts = getSearchTable(table);
+        qb.appendWhere("rowid IN (SELECT docid FROM " + fts + " WHERE " + fts + " MATCH ");
+        qb.appendWhereEscapeString(match);
+        qb.appendWhere(")");
+    }
+
+    private static String getSearchTable(String table) {
+        return table + "_fts";
+    }
+
     private int updateInternal(SQLiteDatabase db,
             Uri uri, ContentValues values, String selection,
             String[] selectionArgs) {
@@ -787,6 +1136,9 @@ public class ObaProvider extends ContentProvider {
                 return db.update(ObaContract.RegionBounds.PATH, values,
                         whereLong(ObaContract.RegionBounds._ID, uri), selectionArgs);
 
+            case STOP_LOCATIONS:
+                return db.update(ObaContract.StopLocations.PATH, values, selection, selectionArgs);
+
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -847,6 +1199,9 @@ public class ObaProvider extends ContentProvider {
                 return db.delete(ObaContract.RegionBounds.PATH,
                         whereLong(ObaContract.RegionBounds._ID, uri), selectionArgs);
 
+            case STOP_LOCATIONS:
+                return db.delete(ObaContract.StopLocations.PATH, selection, selectionArgs);
+
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -886,6 +1241,12 @@ public class ObaProvider extends ContentProvider {
     private SQLiteDatabase getDatabase() {
         if (mDb == null) {
             mDb = mOpenHelper.getWritableDatabase();
+            if (isWriteAheadLoggingEnabled(getContext())) {
+                enableWriteAheadLogging(mDb);
+            }
+            if (BuildConfig.DEBUG) {
+                checkQueryPlans(mDb);
+            }
             // Initialize the insert helpers
             mStopsInserter = new DatabaseUtils.InsertHelper(mDb, ObaContract.Stops.PATH);
             mRoutesInserter = new DatabaseUtils.InsertHelper(mDb, ObaContract.Routes.PATH);
@@ -898,15 +1259,139 @@ public class ObaProvider extends ContentProvider {
             mRegionsInserter = new DatabaseUtils.InsertHelper(mDb, ObaContract.Regions.PATH);
             mRegionBoundsInserter = new DatabaseUtils.InsertHelper(mDb,
                     ObaContract.RegionBounds.PATH);
+            mStopLocationsInserter = new DatabaseUtils.InsertHelper(mDb,
+                    ObaContract.StopLocations.PATH);
+            mStopsMarkUsed = mDb.compileStatement(
+                    "UPDATE " + ObaContract.Stops.PATH + " SET " +
+                            ObaContract.Stops.USE_COUNT + "=" + ObaContract.Stops.USE_COUNT +
+                            "+1 WHERE " + ObaContract.Stops._ID + "=?");
+            mRoutesMarkUsed = mDb.compileStatement(
+                    "UPDATE " + ObaContract.Routes.PATH + " SET " +
+                            ObaContract.Routes.USE_COUNT + "=" + ObaContract.Routes.USE_COUNT +
+                            "+1 WHERE " + ObaContract.Routes._ID + "=?");
         }
         return mDb;
     }
 
+    //
+    // With write-ahead logging, writers append to a log instead of locking
+    // the database, so readers (on their own pooled connections) never wait
+    // for them. Small writes rely on the auto-checkpoint; large batches
+    // checkpoint passively when they commit (see checkpoint()).
+    //
+    @TargetApi(11)
+    private void enableWriteAheadLogging(SQLiteDatabase db) {
+        if (!db.enableWriteAheadLogging()) {
+            Log.w(TAG, "Unable to enable write-ahead logging");
+            return;
+        }
+        mWalEnabled = true;
+        Cursor c = db.rawQuery("PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES, null);
+        // Pragmas only run once the cursor is read.
+        c.moveToFirst();
+        c.close();
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Write-ahead logging enabled");
+        }
+    }
+
+    //
+    // After a large write, copies the log back into the database without
+    // waiting for readers, so the log doesn't grow while they're active.
+    //
+    private void checkpoint(SQLiteDatabase db, int rows) {
+        if (!mWalEnabled || rows < WAL_AUTOCHECKPOINT_PAGES / 4) {
+            return;
+        }
+        // Without an argument, this is a passive checkpoint.
+        Cursor c = db.rawQuery("PRAGMA wal_checkpoint", null);
+        try {
+            // The pragma returns (busy, frames in the log, frames checkpointed).
+            if (c.moveToFirst() && BuildConfig.DEBUG) {
+                Log.d(TAG, "Checkpointed " + c.getInt(2) + " of " + c.getInt(1)
+                        + " frames after writing " + rows + " rows");
+            }
+        } finally {
+            c.close();
+        }
+        mCheckpoints.incrementAndGet();
+    }
+
+    /**
+     * @return The number of checkpoints run after large writes
+     * since the provider was created.
+     */
+    public int getCheckpointCount() {
+        return mCheckpoints.get();
+    }
+
+    // The hot queries, as the app issues them.
+    private static final String[][] HOT_QUERIES = {
+            {ObaContract.TripAlerts.PATH,
+                    ObaContract.TripAlerts.TRIP_ID + "='' AND " +
+                            ObaContract.TripAlerts.STOP_ID + "='' AND " +
+                            ObaContract.TripAlerts.START_TIME + "=0"},
+            {ObaContract.TripAlerts.PATH,
+                    ObaContract.TripAlerts.START_TIME + " < 0"},
+            {ObaContract.StopRouteFilters.PATH,
+                    ObaContract.StopRouteFilters.STOP_ID + "=''"},
+            {ObaContract.Stops.PATH,
+                    "((" + ObaContract.Stops.ACCESS_TIME + " IS NOT NULL AND " +
+                            ObaContract.Stops.ACCESS_TIME + " > 0) OR (" +
+                            ObaContract.Stops.USE_COUNT + " > 0)) AND (" +
+                            ObaContract.Stops.REGION_ID + "=0 OR " +
+                            ObaContract.Stops.REGION_ID + " IS NULL)"},
+            {ObaContract.Routes.PATH,
+                    "((" + ObaContract.Routes.ACCESS_TIME + " IS NOT NULL AND " +
+                            ObaContract.Routes.ACCESS_TIME + " > 0) OR (" +
+                            ObaContract.Routes.USE_COUNT + " > 0)) AND (" +
+                            ObaContract.Routes.REGION_ID + "=0 OR " +
+                            ObaContract.Routes.REGION_ID + " IS NULL)"},
+            {ObaContract.Stops.PATH,
+                    ObaContract.Stops.FAVORITE + "=1 AND (" +
+                            ObaContract.Stops.REGION_ID + "=0 OR " +
+                            ObaContract.Stops.REGION_ID + " IS NULL)"},
+            {ObaContract.StopLocations.PATH,
+                    ObaContract.StopLocations.REGION_ID + "=0 AND " +
+                            ObaContract.StopLocations.CELL + " IN (1,2)"},
+            {ObaContract.StopLocations.PATH,
+                    "rowid IN (SELECT docid FROM stop_locations_fts " +
+                            "WHERE stop_locations_fts MATCH 'a*')"},
+    };
+
+    //
+    // Debug builds only: runs EXPLAIN QUERY PLAN on the hot queries
+    // and complains about any that would scan a whole table.
+    //
+    private static void checkQueryPlans(SQLiteDatabase db) {
+        for (String[] query : HOT_QUERIES) {
+            final String sql = "SELECT * FROM " + query[0] + " WHERE " + query[1];
+            Cursor c = null;
+            try {
+                c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+                final int detailCol = c.getColumnIndex("detail");
+                while (detailCol >= 0 && c.moveToNext()) {
+                    final String detail = c.getString(detailCol);
+                    if (detail.startsWith("SCAN") && !detail.contains("INDEX")) {
+                        Log.w(TAG, "Full table scan: " + sql + " -> " + detail);
+                    }
+                }
+            } catch (SQLException e) {
+                Log.w(TAG, "Unable to explain: " + sql + ": " + e);
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+    }
+
     //
     // Closes the database
     //
     public void closeDB() {
         mOpenHelper.close();
         mDb = null;
+        mWalEnabled = false;
     }
 }
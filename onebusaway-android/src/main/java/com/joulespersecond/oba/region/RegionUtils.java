@@ -19,14 +19,17 @@ package com.joulespersecond.oba.region;
 import com.joulespersecond.oba.elements.ObaRegion;
 import com.joulespersecond.oba.elements.ObaRegion.Bounds;
 import com.joulespersecond.oba.elements.ObaRegionElement;
+import com.joulespersecond.oba.provider.ObaContract;
 import com.joulespersecond.oba.provider.ObaContract.RegionBounds;
 import com.joulespersecond.oba.provider.ObaContract.Regions;
 import com.joulespersecond.oba.request.ObaRegionsRequest;
 import com.joulespersecond.oba.request.ObaRegionsResponse;
+import com.joulespersecond.oba.request.RequestExecutor;
 import com.joulespersecond.seattlebusbot.Application;
 import com.joulespersecond.seattlebusbot.BuildConfig;
 import com.joulespersecond.seattlebusbot.R;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -473,7 +476,9 @@ public class RegionUtils {
     }
 
     private synchronized static ArrayList<ObaRegion> getRegionsFromServer(Context context) {
-        ObaRegionsResponse response = ObaRegionsRequest.newRequest(context).call();
+        ObaRegionsRequest request = ObaRegionsRequest.newRequest(context);
+        request.setPriority(RequestExecutor.PRIORITY_LOW);
+        ObaRegionsResponse response = request.call();
         return new ArrayList<ObaRegion>(Arrays.asList(response.getRegions()));
     }
 
@@ -504,11 +509,11 @@ public class RegionUtils {
     // Saving
     //
     public synchronized static void saveToProvider(Context context, ArrayList<ObaRegion> regions) {
-        // Delete all the existing regions
-        ContentResolver cr = context.getContentResolver();
-        cr.delete(Regions.CONTENT_URI, null, null);
+        // Replace all the existing regions and their bounds in one transaction.
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ops.add(ContentProviderOperation.newDelete(Regions.CONTENT_URI).build());
         // Should be a no-op?
-        cr.delete(RegionBounds.CONTENT_URI, null, null);
+        ops.add(ContentProviderOperation.newDelete(RegionBounds.CONTENT_URI).build());
 
         for (ObaRegion region : regions) {
             if (!isRegionUsable(region)) {
@@ -518,22 +523,24 @@ public class RegionUtils {
                 continue;
             }
 
-            cr.insert(Regions.CONTENT_URI, toContentValues(region));
+            ops.add(ContentProviderOperation.newInsert(Regions.CONTENT_URI)
+                    .withValues(toContentValues(region))
+                    .build());
             //TODO - We need to save the current date/time along with region info, so later we can refresh based on elapsed time
-            if (BuildConfig.DEBUG) {
-                Log.d(TAG, "Saved region '" + region.getName() + "' to provider");
-            }
             long regionId = region.getId();
-            // Bulk insert the bounds
             ObaRegion.Bounds[] bounds = region.getBounds();
             if (bounds != null) {
-                ContentValues[] values = new ContentValues[bounds.length];
                 for (int i = 0; i < bounds.length; ++i) {
-                    values[i] = toContentValues(regionId, bounds[i]);
+                    ops.add(ContentProviderOperation.newInsert(RegionBounds.CONTENT_URI)
+                            .withValues(toContentValues(regionId, bounds[i]))
+                            .build());
                 }
-                cr.bulkInsert(RegionBounds.CONTENT_URI, values);
             }
         }
+        if (ObaContract.applyBatch(context.getContentResolver(), ops) != null
+                && BuildConfig.DEBUG) {
+            Log.d(TAG, "Saved " + regions.size() + " regions to provider");
+        }
     }
 
     private static ContentValues toContentValues(ObaRegion region) {
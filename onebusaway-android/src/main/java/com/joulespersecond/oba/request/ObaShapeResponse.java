@@ -15,6 +15,7 @@
  */
 package com.joulespersecond.oba.request;
 
+import com.joulespersecond.oba.elements.ObaPolyline;
 import com.joulespersecond.oba.elements.ObaShape;
 import com.joulespersecond.oba.elements.ObaShapeElement;
 
@@ -58,6 +59,11 @@ public final class ObaShapeResponse extends ObaResponse implements ObaShape {
         return data.entry.getPoints();
     }
 
+    @Override
+    public ObaPolyline getPolyline() {
+        return data.entry.getPolyline();
+    }
+
     @Override
     public String getRawLevels() {
         return data.entry.getRawLevels();
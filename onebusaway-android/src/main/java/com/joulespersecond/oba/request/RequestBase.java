@@ -22,6 +22,7 @@ import com.joulespersecond.oba.ObaContext;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Build;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -30,6 +31,14 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Reader;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The base class for Oba requests.
@@ -40,10 +49,41 @@ public class RequestBase {
 
     private static final String TAG = "RequestBase";
 
+    // The GET requests that are in flight, by getCoalesceKey().
+    private static final ConcurrentHashMap<String, Shared> mInFlight =
+            new ConcurrentHashMap<String, Shared>();
+
+    private static final AtomicLong mFetchCount = new AtomicLong();
+
+    private static final AtomicLong mSharedCount = new AtomicLong();
+
     protected final Uri mUri;
 
     protected final String mPostData;
 
+    private final Object mLock = new Object();
+
+    private volatile boolean mCancelled = false;
+
+    private volatile boolean mAborted = false;
+
+    private volatile int mPriority = RequestExecutor.PRIORITY_NORMAL;
+
+    // The connection fetch() is using.
+    private volatile ObaConnection mConnection;
+
+    // When fetch() sent the request and got the response headers, in elapsedRealtime().
+    private volatile long mExchangeStart = 0;
+
+    private volatile long mExchangeEnd = 0;
+
+    // What call() is using, guarded by mLock.
+    private String mKey;
+
+    private Shared mShared;
+
+    private Thread mWaiter;
+
     protected RequestBase(Uri uri) {
         mUri = uri;
         mPostData = null;
@@ -119,11 +159,310 @@ public class RequestBase {
         }
     }
 
+    /**
+     * Makes the request. If an identical GET request is already in flight,
+     * this waits for it and returns the same response, instead of making
+     * another one. Two requests are identical if their URIs only differ
+     * by the API key, the app uid, or the order of their parameters.
+     */
     protected <T> T call(Class<T> cls) {
+        if (mCancelled) {
+            return createCancelled(cls);
+        }
+        if (mPostData != null) {
+            return fetch(cls);
+        }
+        final String key = getCoalesceKey(cls, mUri);
+        final Shared task = new Shared(this, new Fetch<T>(cls));
+        Shared inFlight;
+        for (; ; ) {
+            inFlight = mInFlight.putIfAbsent(key, task);
+            if (inFlight == null || inFlight.join(this)) {
+                break;
+            }
+            // Everyone using it cancelled, so it's about to fail.
+            mInFlight.remove(key, inFlight);
+        }
+        final Shared shared = inFlight != null ? inFlight : task;
+        final boolean cancelled;
+        synchronized (mLock) {
+            mKey = key;
+            mShared = shared;
+            cancelled = mCancelled;
+        }
+        if (cancelled) {
+            // cancel() came before we had joined, so leave for it.
+            release(key, shared);
+        }
+        try {
+            if (inFlight == null) {
+                mFetchCount.incrementAndGet();
+                inFlight = task;
+                try {
+                    task.run();
+                } finally {
+                    mInFlight.remove(key, task);
+                }
+            } else {
+                mSharedCount.incrementAndGet();
+            }
+            synchronized (mLock) {
+                if (mCancelled) {
+                    return createCancelled(cls);
+                }
+                mWaiter = Thread.currentThread();
+            }
+            return cls.cast(inFlight.get());
+        } catch (InterruptedException e) {
+            if (!mCancelled) {
+                Thread.currentThread().interrupt();
+            }
+            return createCancelled(cls);
+        } catch (ExecutionException e) {
+            // fetch() handles I/O errors itself, so this is a bug.
+            throw new RuntimeException(e.getCause());
+        } finally {
+            synchronized (mLock) {
+                mWaiter = null;
+                mShared = null;
+            }
+            if (mCancelled) {
+                // Don't leave the interrupt from cancel() for the next task on this thread.
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Cancels the request, and call() returns an OBA_IO_EXCEPTION error.
+     * If it's waiting for the response of an identical request, it stops
+     * waiting right away. If it's the one on the network, the connection is
+     * closed, unless other requests are still waiting for the response;
+     * then it finishes the fetch for them first.
+     *
+     * This can be called from any thread, before or during call().
+     */
+    public void cancel() {
+        final Shared shared;
+        final String key;
+        synchronized (mLock) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            shared = mShared;
+            key = mKey;
+            if (mWaiter != null) {
+                mWaiter.interrupt();
+            }
+        }
+        if (shared != null) {
+            release(key, shared);
+        } else if (mPostData != null) {
+            abort();
+        }
+        // Otherwise call() hasn't joined a fetch yet, and will see mCancelled when it does.
+    }
+
+    //
+    // Stops using the shared fetch, and aborts it if no-one else is using it.
+    //
+    private static void release(String key, Shared shared) {
+        if (shared.leave()) {
+            mInFlight.remove(key, shared);
+            shared.mOwner.abort();
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Sets how urgent the request is, one of the RequestExecutor.PRIORITY_
+     * constants; the default is PRIORITY_NORMAL. See RequestScheduler.
+     * Use PRIORITY_HIGH for what's on the screen right now, and
+     * PRIORITY_LOW for anything the user isn't waiting for.
+     */
+    public void setPriority(int priority) {
+        if (priority < RequestExecutor.PRIORITY_LOW || priority > RequestExecutor.PRIORITY_HIGH) {
+            throw new IllegalArgumentException("Invalid priority: " + priority);
+        }
+        mPriority = priority;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    boolean isAborted() {
+        return mAborted;
+    }
+
+    /**
+     * @return When this request started its HTTP exchange, once it had its
+     * turn from the RequestScheduler, in SystemClock.elapsedRealtime();
+     * or 0 if it didn't make one itself (it shared another request's
+     * response, or was cancelled first).
+     */
+    public long getExchangeStartTime() {
+        return mExchangeStart;
+    }
+
+    /**
+     * @return When this request got the response to its HTTP exchange,
+     * before reading the body, in SystemClock.elapsedRealtime(); or 0
+     * if it didn't get one.
+     */
+    public long getExchangeEndTime() {
+        return mExchangeEnd;
+    }
+
+    //
+    // A request with a higher priority is waiting for our response.
+    //
+    private void raisePriority(int priority) {
+        if (priority > mPriority) {
+            mPriority = priority;
+            RequestScheduler.getInstance().wake();
+        }
+    }
+
+    //
+    // Closes the connection of fetch(), or makes it fail as soon as it opens one.
+    //
+    private void abort() {
+        mAborted = true;
+        final ObaConnection conn = mConnection;
+        if (conn != null) {
+            conn.abort();
+        } else {
+            // It may be waiting for its turn.
+            RequestScheduler.getInstance().wake();
+        }
+    }
+
+    private static <T> T createCancelled(Class<T> cls) {
+        return ObaApi.getSerializer(cls)
+                .createFromError(cls, ObaApi.OBA_IO_EXCEPTION, "Cancelled");
+    }
+
+    //
+    // A fetch in flight, and how many requests still want its response.
+    //
+    private static final class Shared extends FutureTask<Object> {
+
+        private final RequestBase mOwner;
+
+        private final AtomicInteger mUsers = new AtomicInteger(1);
+
+        Shared(RequestBase owner, Callable<Object> fetch) {
+            super(fetch);
+            mOwner = owner;
+        }
+
+        boolean join(RequestBase request) {
+            for (; ; ) {
+                final int users = mUsers.get();
+                if (users == 0) {
+                    return false;
+                }
+                if (mUsers.compareAndSet(users, users + 1)) {
+                    mOwner.raisePriority(request.getPriority());
+                    return true;
+                }
+            }
+        }
+
+        // Returns true if that was the last user.
+        boolean leave() {
+            return mUsers.decrementAndGet() == 0;
+        }
+    }
+
+    private final class Fetch<T> implements Callable<Object> {
+
+        private final Class<T> mCls;
+
+        Fetch(Class<T> cls) {
+            mCls = cls;
+        }
+
+        @Override
+        public Object call() {
+            return fetch(mCls);
+        }
+    }
+
+    /**
+     * @return The number of requests that went to the network.
+     */
+    public static long getFetchCount() {
+        return mFetchCount.get();
+    }
+
+    /**
+     * @return The number of requests that shared the response of
+     * an identical request that was already in flight.
+     */
+    public static long getSharedCount() {
+        return mSharedCount.get();
+    }
+
+    public static void resetStats() {
+        mFetchCount.set(0);
+        mSharedCount.set(0);
+    }
+
+    //
+    // The response class, and the URI without the parameters that don't
+    // change the response, with the rest in sorted order.
+    //
+    static String getCoalesceKey(Class<?> cls, Uri uri) {
+        StringBuilder key = new StringBuilder(cls.getName());
+        key.append(' ')
+                .append(uri.getScheme()).append("://")
+                .append(uri.getEncodedAuthority())
+                .append(uri.getEncodedPath());
+        final String query = uri.getEncodedQuery();
+        if (query != null) {
+            ArrayList<String> params = new ArrayList<String>();
+            for (String param : query.split("&")) {
+                if (!param.startsWith("key=") && !param.startsWith("app_uid=")) {
+                    params.add(param);
+                }
+            }
+            Collections.sort(params);
+            char sep = '?';
+            for (String param : params) {
+                key.append(sep).append(param);
+                sep = '&';
+            }
+        }
+        return key.toString();
+    }
+
+    private <T> T fetch(Class<T> cls) {
         ObaApi.SerializationHandler handler = ObaApi.getSerializer(cls);
+        final RequestScheduler scheduler = RequestScheduler.getInstance();
+        final int priority;
+        try {
+            priority = scheduler.acquire(this);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return createCancelled(cls);
+        }
+        if (priority < 0) {
+            return createCancelled(cls);
+        }
         ObaConnection conn = null;
         try {
+            mExchangeStart = SystemClock.elapsedRealtime();
             conn = ObaApi.getDefaultContext().getConnectionFactory().newConnection(mUri);
+            mConnection = conn;
+            if (mAborted) {
+                throw new IOException("Cancelled");
+            }
             Reader reader;
             if (mPostData != null) {
                 reader = conn.post(mPostData);
@@ -140,6 +479,7 @@ public class RequestBase {
 
                 reader = conn.get();
             }
+            mExchangeEnd = SystemClock.elapsedRealtime();
             T t = handler.deserialize(reader, cls);
             if (t == null) {
                 t = handler.createFromError(cls, ObaApi.OBA_INTERNAL_ERROR, "Json error");
@@ -152,9 +492,11 @@ public class RequestBase {
             Log.e(TAG, e.toString());
             return handler.createFromError(cls, ObaApi.OBA_IO_EXCEPTION, e.toString());
         } finally {
+            mConnection = null;
             if (conn != null) {
                 conn.disconnect();
             }
+            scheduler.release(priority);
         }
     }
 
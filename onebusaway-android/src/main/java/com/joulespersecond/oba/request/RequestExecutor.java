@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.request;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs requests in the background on a small pool of threads, higher
+ * priorities first, and calls back on the main thread with the response:
+ *
+ * <pre>
+ * RequestFuture&lt;ObaStopResponse&gt; future = RequestExecutor.execute(
+ *         ObaStopRequest.newRequest(context, stopId),
+ *         RequestExecutor.PRIORITY_HIGH,
+ *         new RequestExecutor.Callback&lt;ObaStopResponse&gt;() { ... });
+ * ...
+ * future.cancel(false);
+ * </pre>
+ *
+ * The priority is also the request's priority in the RequestScheduler,
+ * which decides when it actually goes to the network.
+ */
+public final class RequestExecutor {
+
+    public static final int PRIORITY_LOW = 0;
+
+    public static final int PRIORITY_NORMAL = 1;
+
+    public static final int PRIORITY_HIGH = 2;
+
+    private static final int THREADS = 4;
+
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    public interface Callback<T> {
+
+        /**
+         * Called on the main thread, unless the request was cancelled.
+         */
+        void onResponse(T response);
+    }
+
+    private static final ThreadFactory mThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "RequestExecutor #" + mCount.getAndIncrement());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    };
+
+    private static final ThreadPoolExecutor mExecutor;
+
+    static {
+        // With an unbounded queue the pool never grows past its core size,
+        // so let the core threads go when there's nothing to do.
+        mExecutor = new ThreadPoolExecutor(THREADS, THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                mThreadFactory);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private RequestExecutor() {
+    }
+
+    /**
+     * Queues a request.
+     *
+     * @param request  The request, usually a subclass of RequestBase.
+     * @param priority One of the PRIORITY_ constants.
+     * @param callback Gets the response on the main thread; may be null.
+     * @return The future for the response.
+     */
+    public static <T> RequestFuture<T> execute(Callable<T> request, int priority,
+            Callback<T> callback) {
+        RequestFuture<T> future = new RequestFuture<T>(request, priority, callback);
+        // Not submit(), that would wrap it in a task the queue can't order.
+        mExecutor.execute(future);
+        return future;
+    }
+
+    public static <T> RequestFuture<T> execute(Callable<T> request, int priority) {
+        return execute(request, priority, null);
+    }
+
+    /**
+     * @param priority One of the PRIORITY_ constants.
+     * @return The most requests of the priority that go to the network at once;
+     * any more just wait for their turn on one of the executor's threads.
+     */
+    public static int getMaxRunning(int priority) {
+        return RequestScheduler.getLimit(priority);
+    }
+
+    /**
+     * Reports that an activity was resumed (true) or paused (false), so the
+     * RequestScheduler knows when the app is in the foreground.
+     */
+    public static void setActivityResumed(boolean resumed) {
+        RequestScheduler.getInstance().setActivityResumed(resumed);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.request;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A request running on the RequestExecutor. Cancelling it cancels the
+ * request too (see RequestBase.cancel()), so it stops using the network.
+ */
+public final class RequestFuture<T> extends FutureTask<T>
+        implements Comparable<RequestFuture<?>> {
+
+    private static final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private static final AtomicLong mNextSequence = new AtomicLong();
+
+    private final RequestBase mRequest;
+
+    private final int mPriority;
+
+    private final long mSequence;
+
+    private final RequestExecutor.Callback<T> mCallback;
+
+    private volatile boolean mCancelled = false;
+
+    RequestFuture(Callable<T> request, int priority, RequestExecutor.Callback<T> callback) {
+        super(request);
+        mRequest = (request instanceof RequestBase) ? (RequestBase) request : null;
+        if (mRequest != null) {
+            mRequest.setPriority(priority);
+        }
+        mPriority = priority;
+        mSequence = mNextSequence.getAndIncrement();
+        mCallback = callback;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Cancels the request whether or not it has started; once this returns,
+     * the callback won't be called, if this is called on the main thread.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        mCancelled = true;
+        final boolean result = super.cancel(mayInterruptIfRunning);
+        if (mRequest != null) {
+            mRequest.cancel();
+        }
+        return result;
+    }
+
+    /**
+     * @return The response, or null if it was cancelled.
+     */
+    public T getResponse() {
+        try {
+            return get();
+        } catch (CancellationException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // The requests return their errors as responses, so this is a bug.
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @Override
+    protected void done() {
+        if (mCallback == null || mCancelled) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled) {
+                    mCallback.onResponse(getResponse());
+                }
+            }
+        });
+    }
+
+    // Higher priorities first, and in the order they were submitted.
+    @Override
+    public int compareTo(RequestFuture<?> another) {
+        if (mPriority != another.mPriority) {
+            return mPriority > another.mPriority ? -1 : 1;
+        }
+        return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+    }
+}
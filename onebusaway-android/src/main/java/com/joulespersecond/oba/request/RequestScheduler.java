@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.request;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+/**
+ * Decides when each request can go to the network, so background traffic
+ * can't hold up what the user is looking at.
+ *
+ * At most MAX_RUNNING requests are on the network at once, and each priority
+ * has its own limit on top of that. Between them, the low and normal priority
+ * requests never take the last slot, so a high priority request can always
+ * go straight away. Higher priorities go first, and requests
+ * of the same priority go in order. Low priority requests are held to one
+ * at a time while the app is in the foreground; otherwise they can have two.
+ *
+ * The app is in the foreground while one of its activities is resumed, as
+ * reported to setActivityResumed(). Where activities aren't reported (before
+ * API 14), it's a guess: we take the app to be in use while there have been
+ * normal or high priority requests in the last RECENT_REQUEST_MS.
+ */
+final class RequestScheduler {
+
+    private static final int MAX_RUNNING = 4;
+
+    // By priority: the low ones can never take more than one slot while in use.
+    private static final int[] LIMITS = new int[]{1, MAX_RUNNING - 1, MAX_RUNNING};
+
+    private static final int LOW_IDLE_LIMIT = 2;
+
+    private static final long RECENT_REQUEST_MS = 60 * 1000;
+
+    private static final RequestScheduler mInstance = new RequestScheduler();
+
+    private final int[] mRunning = new int[LIMITS.length];
+
+    private int mTotal = 0;
+
+    private final ArrayList<RequestBase> mWaiting = new ArrayList<RequestBase>();
+
+    // The number of resumed activities, or -1 if they aren't reported.
+    private int mResumed = -1;
+
+    // For the guess, when the last normal or high priority request came.
+    private long mLastUserRequest = -RECENT_REQUEST_MS;
+
+    static RequestScheduler getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * @return The most requests of the priority that can be on the network
+     * at once, while the app is in the foreground.
+     */
+    static int getLimit(int priority) {
+        return LIMITS[priority];
+    }
+
+    /**
+     * Waits until the request can go to the network.
+     *
+     * @return The priority it went with, to pass to release(),
+     * or -1 if it was aborted while it waited.
+     */
+    synchronized int acquire(RequestBase request) throws InterruptedException {
+        if (request.getPriority() > RequestExecutor.PRIORITY_LOW) {
+            mLastUserRequest = SystemClock.elapsedRealtime();
+        }
+        mWaiting.add(request);
+        try {
+            while (!canRun(request)) {
+                if (request.isAborted()) {
+                    return -1;
+                }
+                wait();
+            }
+        } finally {
+            mWaiting.remove(request);
+            // Someone behind us may be able to go now.
+            notifyAll();
+        }
+        final int priority = request.getPriority();
+        ++mRunning[priority];
+        ++mTotal;
+        return priority;
+    }
+
+    synchronized void release(int priority) {
+        --mRunning[priority];
+        --mTotal;
+        notifyAll();
+    }
+
+    /**
+     * Counts an activity being resumed or paused. Once this has been
+     * called, it decides whether the app is in the foreground.
+     */
+    synchronized void setActivityResumed(boolean resumed) {
+        if (mResumed < 0) {
+            mResumed = 0;
+        }
+        mResumed = Math.max(0, mResumed + (resumed ? 1 : -1));
+        // A low priority request may be able to have another slot.
+        notifyAll();
+    }
+
+    /**
+     * Wakes the waiting requests, when one has been aborted
+     * or has changed its priority.
+     */
+    synchronized void wake() {
+        notifyAll();
+    }
+
+    private boolean canRun(RequestBase request) {
+        final int priority = request.getPriority();
+        if (mTotal >= MAX_RUNNING || !hasRoom(priority)) {
+            return false;
+        }
+        if (priority != RequestExecutor.PRIORITY_HIGH
+                && mTotal - mRunning[RequestExecutor.PRIORITY_HIGH] >= MAX_RUNNING - 1) {
+            // Keep the last slot for the high ones.
+            return false;
+        }
+        for (RequestBase other : mWaiting) {
+            if (other == request) {
+                // Only higher priorities are left.
+                return !hasHigherWaiting(priority);
+            }
+            if (other.getPriority() == priority) {
+                // Same priority, and it's been waiting longer.
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasHigherWaiting(int priority) {
+        for (RequestBase other : mWaiting) {
+            final int p = other.getPriority();
+            if (p > priority && hasRoom(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasRoom(int priority) {
+        int limit = LIMITS[priority];
+        if (priority == RequestExecutor.PRIORITY_LOW && !isForeground()) {
+            limit = LOW_IDLE_LIMIT;
+        }
+        return mRunning[priority] < limit;
+    }
+
+    private boolean isForeground() {
+        if (mResumed >= 0) {
+            return mResumed > 0;
+        }
+        return SystemClock.elapsedRealtime() - mLastUserRequest < RECENT_REQUEST_MS;
+    }
+}
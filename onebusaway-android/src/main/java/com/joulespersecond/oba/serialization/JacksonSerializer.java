@@ -17,6 +17,7 @@
 package com.joulespersecond.oba.serialization;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
@@ -26,18 +27,29 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.MappingJsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.introspect.VisibilityChecker;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.TextNode;
 import com.fasterxml.jackson.databind.node.TreeTraversingParser;
 import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.request.ObaResponse;
+import com.joulespersecond.seattlebusbot.BuildConfig;
 
+import android.os.Debug;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.FileNotFoundException;
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class JacksonSerializer implements ObaApi.SerializationHandler {
 
@@ -50,11 +62,73 @@ public class JacksonSerializer implements ObaApi.SerializationHandler {
 
     private static final ObjectMapper mMapper = new ObjectMapper();
 
+    // Writes only the fields, which are what the responses are read into.
+    private static final ObjectWriter mFieldWriter;
+
     static {
         mMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
         mMapper.setVisibilityChecker(
                 VisibilityChecker.Std.defaultInstance()
                         .withFieldVisibility(JsonAutoDetect.Visibility.ANY));
+        mFieldWriter = mMapper.copy()
+                .setVisibility(PropertyAccessor.GETTER, JsonAutoDetect.Visibility.NONE)
+                .setVisibility(PropertyAccessor.IS_GETTER, JsonAutoDetect.Visibility.NONE)
+                .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false)
+                .writer();
+    }
+
+    // ObjectReaders are immutable and thread-safe, so one per response class is enough.
+    private static final ConcurrentHashMap<Class<?>, ObjectReader> mReaders =
+            new ConcurrentHashMap<Class<?>, ObjectReader>();
+
+    // Error documents are small. This much of each response is kept, so an
+    // error can be bound again through the tree.
+    private static final int FALLBACK_CHARS = 4 * 1024;
+
+    private volatile boolean mProfiling = false;
+
+    private final HashMap<Class<?>, ParseStats> mStats = new HashMap<Class<?>, ParseStats>();
+
+    /**
+     * Parse time and allocation totals for one response type.
+     * The allocations are the VM's debug counts for the parsing thread, so
+     * other threads don't show up in them, but they include the fallbacks,
+     * which are counted separately.
+     */
+    public static final class ParseStats {
+
+        private int mCount;
+
+        private int mFallbackCount;
+
+        private long mTimeMs;
+
+        private long mAllocBytes;
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return How many of the responses were bound again through the tree.
+         */
+        public int getFallbackCount() {
+            return mFallbackCount;
+        }
+
+        public long getTimeMs() {
+            return mTimeMs;
+        }
+
+        public long getAllocBytes() {
+            return mAllocBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount + " fallbacks=" + mFallbackCount
+                    + " timeMs=" + mTimeMs + " allocBytes=" + mAllocBytes;
+        }
     }
 
     private JacksonSerializer() { /* singleton */ }
@@ -66,6 +140,20 @@ public class JacksonSerializer implements ObaApi.SerializationHandler {
         return SingletonHolder.INSTANCE;
     }
 
+    private static ObjectReader getObjectReader(Class<?> cls) {
+        ObjectReader reader = mReaders.get(cls);
+        if (reader == null) {
+            reader = mMapper.reader(cls);
+            mReaders.putIfAbsent(cls, reader);
+        }
+        return reader;
+    }
+
+    /**
+     * The old binding path: materializes the whole document as a tree first,
+     * then walks the tree to bind. Only used as the fallback for errors,
+     * see deserialize().
+     */
     private static JsonParser getJsonParser(Reader reader)
             throws IOException, JsonProcessingException {
         TreeTraversingParser parser = new TreeTraversingParser(mMapper.readTree(reader));
@@ -73,6 +161,112 @@ public class JacksonSerializer implements ObaApi.SerializationHandler {
         return parser;
     }
 
+    //
+    // Keeps what's read through it, up to FALLBACK_CHARS.
+    //
+    private static final class RecordingReader extends FilterReader {
+
+        private final StringBuilder mText = new StringBuilder(256);
+
+        private boolean mOverflow = false;
+
+        RecordingReader(Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int c = super.read();
+            if (c >= 0) {
+                record(new char[]{(char) c}, 0, 1);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int count) throws IOException {
+            final int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                record(buffer, offset, read);
+            }
+            return read;
+        }
+
+        private void record(char[] buffer, int offset, int count) {
+            if (mOverflow) {
+                return;
+            }
+            if (mText.length() + count > FALLBACK_CHARS) {
+                mOverflow = true;
+                mText.setLength(0);
+            } else {
+                mText.append(buffer, offset, count);
+            }
+        }
+
+        /**
+         * Reads the rest of the document.
+         *
+         * @return The whole document, or null if it's longer than FALLBACK_CHARS.
+         */
+        String readAll() throws IOException {
+            final char[] buffer = new char[1024];
+            while (!mOverflow && read(buffer, 0, buffer.length) != -1) {
+                // Recorded
+            }
+            return mOverflow ? null : mText.toString();
+        }
+    }
+
+    /**
+     * Turns on recording of parse time and allocated bytes per response type,
+     * in debug builds only. Allocation counting slows down the VM, so only
+     * turn this on for measurements.
+     */
+    public void setProfiling(boolean profiling) {
+        if (!BuildConfig.DEBUG || profiling == mProfiling) {
+            return;
+        }
+        mProfiling = profiling;
+        if (profiling) {
+            Debug.startAllocCounting();
+        } else {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /**
+     * @return a copy of the parse statistics collected so far, by response type
+     */
+    public HashMap<Class<?>, ParseStats> getStats() {
+        synchronized (mStats) {
+            return new HashMap<Class<?>, ParseStats>(mStats);
+        }
+    }
+
+    public void resetStats() {
+        synchronized (mStats) {
+            mStats.clear();
+        }
+    }
+
+    private void recordStats(Class<?> cls, boolean fallback, long timeMs, long allocBytes) {
+        synchronized (mStats) {
+            ParseStats stats = mStats.get(cls);
+            if (stats == null) {
+                stats = new ParseStats();
+                mStats.put(cls, stats);
+            }
+            stats.mCount++;
+            stats.mTimeMs += timeMs;
+            stats.mAllocBytes += allocBytes;
+            if (fallback) {
+                stats.mFallbackCount++;
+            }
+            Log.d(TAG, cls.getSimpleName() + ": " + stats);
+        }
+    }
+
     public String toJson(String input) {
         TextNode node = JsonNodeFactory.instance.textNode(input);
         return node.toString();
@@ -103,8 +297,39 @@ public class JacksonSerializer implements ObaApi.SerializationHandler {
     }
 
     public <T> T deserialize(Reader reader, Class<T> cls) {
+        final boolean profiling = mProfiling;
+        long startTime = 0;
+        long startAlloc = 0;
+        if (profiling) {
+            startTime = SystemClock.elapsedRealtime();
+            startAlloc = Debug.getThreadAllocSize();
+        }
         try {
-            T t = getJsonParser(reader).readValueAs(cls);
+            // Bind straight from the stream. If that fails, or the server sent
+            // an error, bind the document again the old way, as long as it's
+            // small enough to have been kept.
+            final RecordingReader recorder = new RecordingReader(reader);
+            T t;
+            String fallback = null;
+            try {
+                t = getObjectReader(cls).readValue(recorder);
+            } catch (JsonProcessingException e) {
+                fallback = recorder.readAll();
+                if (fallback == null) {
+                    throw e;
+                }
+                t = null;
+            }
+            if (t instanceof ObaResponse && ((ObaResponse) t).getCode() != ObaApi.OBA_OK) {
+                fallback = recorder.readAll();
+            }
+            if (fallback != null) {
+                t = getJsonParser(new StringReader(fallback)).readValueAs(cls);
+            }
+            if (profiling) {
+                recordStats(cls, fallback != null, SystemClock.elapsedRealtime() - startTime,
+                        Debug.getThreadAllocSize() - startAlloc);
+            }
             if (t == null) {
                 // TODO: test switching from Gson for errors
                 t = createFromError(cls, ObaApi.OBA_INTERNAL_ERROR, "Json error");
@@ -119,6 +344,10 @@ public class JacksonSerializer implements ObaApi.SerializationHandler {
         }
     }
 
+    public void write(Object obj, Writer writer) throws IOException {
+        mFieldWriter.writeValue(writer, obj);
+    }
+
     public String serialize(Object obj) {
         StringWriter writer = new StringWriter();
         JsonGenerator jsonGenerator;
@@ -14,12 +14,15 @@
  */
 package com.joulespersecond.seattlebusbot;
 
+import android.annotation.TargetApi;
+import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Build;
+import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
@@ -28,9 +31,12 @@ import com.google.android.gms.analytics.GoogleAnalytics;
 import com.google.android.gms.analytics.Tracker;
 import com.joulespersecond.oba.ObaAnalytics;
 import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.ObaPooledConnectionFactory;
 import com.joulespersecond.oba.elements.ObaRegion;
 import com.joulespersecond.oba.provider.ObaContract.Regions;
+import com.joulespersecond.oba.request.RequestExecutor;
 import com.joulespersecond.seattlebusbot.util.PreferenceHelp;
+import com.joulespersecond.seattlebusbot.util.ServerClock;
 
 import java.security.MessageDigest;
 import java.util.HashMap;
@@ -71,6 +77,9 @@ public class Application extends android.app.Application {
 
         initOba();
         initObaRegion();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            reportActivities();
+        }
 
         ObaAnalytics.initAnalytics(this);
         reportAnalytics();
@@ -113,6 +122,8 @@ public class Application extends android.app.Application {
             ObaApi.getDefaultContext().setRegion(null);
             PreferenceHelp.saveLong(mPrefs, getString(R.string.preference_key_region), -1);
         }
+        // It's a different server, with its own clock.
+        ServerClock.reset();
     }
 
     /**
@@ -163,6 +174,7 @@ public class Application extends android.app.Application {
      */
     public void setCustomApiUrl(String url) {
         PreferenceHelp.saveString(getString(R.string.preference_key_oba_api_url), url);
+        ServerClock.reset();
     }
 
     private static final String HEXES = "0123456789abcdef";
@@ -190,6 +202,9 @@ public class Application extends android.app.Application {
     }
 
     private void initOba() {
+        // Keep connections to the region's server alive between requests
+        ObaApi.getDefaultContext().setConnectionFactory(ObaPooledConnectionFactory.getInstance());
+
         String uuid = mPrefs.getString(APP_UID, null);
         if (uuid == null) {
             // Generate one and save that.
@@ -209,6 +224,45 @@ public class Application extends android.app.Application {
         ObaApi.getDefaultContext().setAppInfo(appInfo.versionCode, uuid);
     }
 
+    //
+    // Tells the request scheduler when we're in the foreground.
+    // Before this API it guesses from the requests.
+    //
+    @TargetApi(14)
+    private void reportActivities() {
+        registerActivityLifecycleCallbacks(new ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityResumed(Activity activity) {
+                RequestExecutor.setActivityResumed(true);
+            }
+
+            @Override
+            public void onActivityPaused(Activity activity) {
+                RequestExecutor.setActivityResumed(false);
+            }
+
+            @Override
+            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+            }
+
+            @Override
+            public void onActivityStarted(Activity activity) {
+            }
+
+            @Override
+            public void onActivityStopped(Activity activity) {
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+            }
+
+            @Override
+            public void onActivityDestroyed(Activity activity) {
+            }
+        });
+    }
+
     private void initObaRegion() {
         // Read the region preference, look it up in the DB, then set the region.
         long id = mPrefs.getLong(getString(R.string.preference_key_region), -1);
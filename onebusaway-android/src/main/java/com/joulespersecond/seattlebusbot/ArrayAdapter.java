@@ -44,6 +44,9 @@ public abstract class ArrayAdapter<T> extends android.widget.ArrayAdapter<T> {
 
     @TargetApi(11)
     public void setData(List<T> data) {
+        // Only tell the list once, instead of on every add().
+        // notifyDataSetChanged() turns it back on.
+        setNotifyOnChange(false);
         clear();
         if (data != null) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
@@ -54,6 +57,7 @@ public abstract class ArrayAdapter<T> extends android.widget.ArrayAdapter<T> {
                 }
             }
         }
+        notifyDataSetChanged();
     }
 
     @Override
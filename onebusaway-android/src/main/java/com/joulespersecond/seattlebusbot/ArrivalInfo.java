@@ -17,15 +17,19 @@ package com.joulespersecond.seattlebusbot;
 
 import com.joulespersecond.oba.elements.ObaArrivalInfo;
 import com.joulespersecond.oba.elements.ObaArrivalInfo.Frequency;
+import com.joulespersecond.seattlebusbot.util.ServerClock;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.text.TextUtils;
 
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 
 final class ArrivalInfo {
 
@@ -36,12 +40,14 @@ final class ArrivalInfo {
         }
     }
 
+    private static final InfoComparator mComparator = new InfoComparator();
+
     public static final ArrayList<ArrivalInfo> convertObaArrivalInfo(Context context,
             ObaArrivalInfo[] arrivalInfo,
             ArrayList<String> filter) {
         final int len = arrivalInfo.length;
         ArrayList<ArrivalInfo> result = new ArrayList<ArrivalInfo>(len);
-        final long ms = System.currentTimeMillis();
+        final long ms = ServerClock.now();
         if (filter != null && filter.size() > 0) {
             for (int i = 0; i < len; ++i) {
                 ObaArrivalInfo arrival = arrivalInfo[i];
@@ -56,12 +62,43 @@ final class ArrivalInfo {
         }
 
         // Sort by ETA
-        Collections.sort(result, new InfoComparator());
+        Collections.sort(result, mComparator);
         return result;
     }
 
+    /**
+     * Replaces each arrival in the current list with the one in the
+     * previous list, if it's the same arrival, and it would be shown the same.
+     * Arrivals are the same if they have the same trip, service date
+     * and stop sequence. The list can then skip redrawing the rows
+     * that haven't changed.
+     *
+     * @return current, with the unchanged arrivals replaced.
+     */
+    public static final ArrayList<ArrivalInfo> reuse(List<ArrivalInfo> previous,
+            ArrayList<ArrivalInfo> current) {
+        if (previous == null || previous.isEmpty()) {
+            return current;
+        }
+        HashMap<String, ArrivalInfo> byKey = new HashMap<String, ArrivalInfo>(previous.size());
+        for (ArrivalInfo info : previous) {
+            byKey.put(info.mKey, info);
+        }
+        final int len = current.size();
+        for (int i = 0; i < len; ++i) {
+            ArrivalInfo info = current.get(i);
+            ArrivalInfo old = byKey.get(info.mKey);
+            if (old != null && old.looksSame(info)) {
+                current.set(i, old);
+            }
+        }
+        return current;
+    }
+
     private final ObaArrivalInfo mInfo;
 
+    private final String mKey;
+
     private final long mEta;
 
     private final long mDisplayTime;
@@ -74,6 +111,7 @@ final class ArrivalInfo {
 
     public ArrivalInfo(Context context, ObaArrivalInfo info, long now) {
         mInfo = info;
+        mKey = info.getTripId() + '/' + info.getServiceDate() + '/' + info.getStopSequence();
         // First, all times have to have to be converted to 'minutes'
         final long nowMins = now / ms_in_mins;
         long scheduled, predicted;
@@ -104,6 +142,25 @@ final class ArrivalInfo {
 
     }
 
+    //
+    // The times are compared too, rather than just what's shown,
+    // so we don't hold on to an old prediction.
+    //
+    private boolean looksSame(ArrivalInfo other) {
+        final ObaArrivalInfo info = other.mInfo;
+        return mEta == other.mEta
+                && mDisplayTime == other.mDisplayTime
+                && mColor == other.mColor
+                && mStatusText.equals(other.mStatusText)
+                && mInfo.getPredictedArrivalTime() == info.getPredictedArrivalTime()
+                && mInfo.getPredictedDepartureTime() == info.getPredictedDepartureTime()
+                && mInfo.getScheduledArrivalTime() == info.getScheduledArrivalTime()
+                && mInfo.getScheduledDepartureTime() == info.getScheduledDepartureTime()
+                && TextUtils.equals(mInfo.getShortName(), info.getShortName())
+                && TextUtils.equals(mInfo.getHeadsign(), info.getHeadsign())
+                && TextUtils.equals(mInfo.getVehicleId(), info.getVehicleId());
+    }
+
     private int computeColor(final long scheduled, final long predicted) {
 
         if (predicted != 0) {
@@ -216,6 +273,13 @@ final class ArrivalInfo {
         return mEta;
     }
 
+    /**
+     * @return The ETA as of now, in minutes, without converting the arrival again.
+     */
+    final long getEta(long now) {
+        return mDisplayTime / ms_in_mins - now / ms_in_mins;
+    }
+
     final long getDisplayTime() {
         return mDisplayTime;
     }
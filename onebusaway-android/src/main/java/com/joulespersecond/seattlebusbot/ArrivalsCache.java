@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot;
+
+import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.elements.ObaRegion;
+import com.joulespersecond.oba.request.ObaArrivalInfoResponse;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the last good arrivals response of the stops the user has looked at
+ * on disk, so reopening a stop, even after the process has been killed,
+ * can show something while the new response is on its way.
+ *
+ * Each stop is a file in the cache directory: a version, when the file was
+ * last read or written, the time of the response, and the response written
+ * back out as JSON, gzipped. The least recently used files are deleted when
+ * they add up to more than MAX_BYTES. The access time is kept in the file
+ * rather than in its modification time, which not every file system lets us set.
+ */
+final class ArrivalsCache {
+
+    private static final String TAG = "ArrivalsCache";
+
+    private static final String DIRECTORY = "arrivals";
+
+    private static final int VERSION = 2;
+
+    // Where the access time is in the file, after the version.
+    private static final long ACCESS_TIME_OFFSET = 4;
+
+    private static final long MAX_BYTES = 1024 * 1024;
+
+    // Anything older than this is more confusing than useful.
+    private static final long MAX_AGE = 12 * 60 * 60 * 1000;
+
+    static final class Entry {
+
+        final ObaArrivalInfoResponse mResponse;
+
+        final long mTime;
+
+        Entry(ObaArrivalInfoResponse response, long time) {
+            mResponse = response;
+            mTime = time;
+        }
+    }
+
+    private ArrivalsCache() {
+    }
+
+    /**
+     * @return The response that was saved for the stop, or null.
+     */
+    static synchronized Entry get(Context context, String stopId) {
+        File file = getFile(context, stopId);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) {
+                file.delete();
+                return null;
+            }
+            // The access time
+            in.readLong();
+            final long time = in.readLong();
+            if (System.currentTimeMillis() - time > MAX_AGE) {
+                file.delete();
+                return null;
+            }
+            ObaArrivalInfoResponse response = ObaApi.getSerializer(ObaArrivalInfoResponse.class)
+                    .deserialize(new InputStreamReader(new GZIPInputStream(in), "UTF-8"),
+                            ObaArrivalInfoResponse.class);
+            if (response.getCode() != ObaApi.OBA_OK) {
+                file.delete();
+                return null;
+            }
+            // For the LRU
+            setAccessTime(file, System.currentTimeMillis());
+            return new Entry(response, time);
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            file.delete();
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Saves the response for the stop, and trims the cache if it's too big.
+     *
+     * @param response The response, which must be OK.
+     * @param time     When we got the response.
+     */
+    static synchronized void put(Context context, String stopId,
+            ObaArrivalInfoResponse response, long time) {
+        File file = getFile(context, stopId);
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(time);
+            Writer writer = new OutputStreamWriter(new GZIPOutputStream(out), "UTF-8");
+            ObaApi.getSerializer(ObaArrivalInfoResponse.class).write(response, writer);
+            // Closes out too.
+            writer.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            temp.delete();
+            return;
+        } finally {
+            close(out);
+        }
+        trim(file.getParentFile());
+    }
+
+    /**
+     * Like put(), but on a background thread, for callers on the main thread.
+     */
+    static void putAsync(Context context, final String stopId,
+            final ObaArrivalInfoResponse response, final long time) {
+        final Context appContext = context.getApplicationContext();
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                put(appContext, stopId, response, time);
+                return null;
+            }
+        }.execute();
+    }
+
+    private static void setAccessTime(File file, long time) {
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(file, "rw");
+            out.seek(ACCESS_TIME_OFFSET);
+            out.writeLong(time);
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+        } finally {
+            close(out);
+        }
+    }
+
+    //
+    // @return The access time in the file's header, or 0 if it can't be read,
+    // so it's the first to go.
+    //
+    private static long getAccessTime(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != VERSION) {
+                return 0;
+            }
+            return in.readLong();
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            close(in);
+        }
+    }
+
+    private static void trim(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_BYTES) {
+            return;
+        }
+        // Read each header once, rather than on every comparison.
+        final HashMap<File, Long> accessed = new HashMap<File, Long>(files.length);
+        for (File file : files) {
+            accessed.put(file, getAccessTime(file));
+        }
+        // Least recently used first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = accessed.get(lhs);
+                final long r = accessed.get(rhs);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && total > MAX_BYTES; ++i) {
+            final long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static File getFile(Context context, String stopId) {
+        File dir = new File(context.getCacheDir(), DIRECTORY);
+        dir.mkdirs();
+        // Stop IDs are only unique within a region.
+        ObaRegion region = Application.get().getCurrentRegion();
+        final String prefix = region != null ? String.valueOf(region.getId()) : "custom";
+        return new File(dir, prefix + "_" + Uri.encode(stopId));
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
@@ -27,6 +27,7 @@ import android.view.View;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.List;
 
 
 public class ArrivalsListAdapter extends ArrayAdapter<ArrivalInfo> {
@@ -42,19 +43,71 @@ public class ArrivalsListAdapter extends ArrayAdapter<ArrivalInfo> {
         notifyDataSetChanged();
     }
 
-    public void setData(ObaArrivalInfo[] arrivals, ArrayList<String> routesFilter) {
-        if (arrivals != null) {
-            ArrayList<ArrivalInfo> list =
-                    ArrivalInfo.convertObaArrivalInfo(getContext(),
-                            arrivals, routesFilter);
-            setData(list);
-        } else {
+    /**
+     * Sets the arrivals, already converted and sorted (see ArrivalsListLoader).
+     * If none of them have changed, the list isn't touched at all.
+     */
+    public void setData(List<ArrivalInfo> arrivals, ArrayList<String> routesFilter) {
+        if (arrivals == null) {
             setData(null);
+            return;
+        }
+        ArrayList<ArrivalInfo> list = new ArrayList<ArrivalInfo>(arrivals.size());
+        final boolean filtered = routesFilter != null && routesFilter.size() > 0;
+        for (ArrivalInfo info : arrivals) {
+            if (!filtered || routesFilter.contains(info.getInfo().getRouteId())) {
+                list.add(info);
+            }
+        }
+        if (!isShowing(list)) {
+            setData(list);
+        }
+    }
+
+    //
+    // Returns true if these are the arrivals we're showing, in the same order.
+    // ArrivalInfo.reuse() keeps the arrivals that haven't changed.
+    //
+    private boolean isShowing(List<ArrivalInfo> list) {
+        final int count = getCount();
+        if (count != list.size()) {
+            return false;
+        }
+        for (int i = 0; i < count; ++i) {
+            if (getItem(i) != list.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //
+    // What a row was last drawn with.
+    //
+    private static final class BoundRow {
+
+        final ArrivalInfo mStopInfo;
+
+        final ContentQueryMap mTripsForStop;
+
+        BoundRow(ArrivalInfo stopInfo, ContentQueryMap tripsForStop) {
+            mStopInfo = stopInfo;
+            mTripsForStop = tripsForStop;
         }
     }
 
     @Override
     protected void initView(View view, ArrivalInfo stopInfo) {
+        // Nothing to do if the row is already showing this arrival.
+        Object tag = view.getTag();
+        if (tag instanceof BoundRow) {
+            BoundRow bound = (BoundRow) tag;
+            if (bound.mStopInfo == stopInfo && bound.mTripsForStop == mTripsForStop) {
+                return;
+            }
+        }
+        view.setTag(new BoundRow(stopInfo, mTripsForStop));
+
         TextView route = (TextView) view.findViewById(R.id.route);
         TextView destination = (TextView) view.findViewById(R.id.destination);
         TextView time = (TextView) view.findViewById(R.id.time);
@@ -54,6 +54,7 @@ import com.joulespersecond.oba.elements.ObaStop;
 import com.joulespersecond.oba.provider.ObaContract;
 import com.joulespersecond.oba.request.ObaArrivalInfoResponse;
 import com.joulespersecond.seattlebusbot.util.MyTextUtils;
+import com.joulespersecond.seattlebusbot.util.ServerClock;
 import com.joulespersecond.seattlebusbot.util.UIHelp;
 
 import java.util.ArrayList;
@@ -69,8 +70,6 @@ public class ArrivalsListFragment extends ListFragment
 
     private static final String TAG = "ArrivalsListFragment";
 
-    private static final long RefreshPeriod = 60 * 1000;
-
     private static int TRIPS_FOR_STOP_LOADER = 1;
 
     private static int ARRIVALS_LIST_LOADER = 2;
@@ -93,6 +92,9 @@ public class ArrivalsListFragment extends ListFragment
 
     private ArrayList<String> mRoutesFilter;
 
+    // How long until the next refresh, see ArrivalsRefreshPolicy.
+    private long mRefreshPeriod = ArrivalsRefreshPolicy.DEFAULT_PERIOD;
+
     private int mLastResponseLength = -1; // Keep copy locally, since loader overwrites
 
     // encapsulated info before onLoadFinished() is called
@@ -189,6 +191,7 @@ public class ArrivalsListFragment extends ListFragment
     @Override
     public void onPause() {
         mRefreshHandler.removeCallbacks(mRefresh);
+        mRefreshHandler.removeCallbacks(mTick);
         super.onPause();
     }
 
@@ -200,22 +203,14 @@ public class ArrivalsListFragment extends ListFragment
             ObaArrivalInfoResponse lastGood = loader.getLastGoodResponse();
             if (lastGood != null) {
                 setResponseData(lastGood.getArrivalInfo(), lastGood.getSituations());
+                loader.updateArrivals(mShowArrivals);
             }
         }
 
         getLoaderManager().restartLoader(TRIPS_FOR_STOP_LOADER, null, mTripsForStopCallback);
 
-        // If our timer would have gone off, then refresh.
-        long lastResponseTime = getArrivalsLoader().getLastResponseTime();
-        long newPeriod = Math.min(RefreshPeriod, (lastResponseTime + RefreshPeriod)
-                - System.currentTimeMillis());
-        // Wait at least one second at least, and the full minute at most.
-        //Log.d(TAG, "Refresh period:" + newPeriod);
-        if (newPeriod <= 0) {
-            refresh();
-        } else {
-            mRefreshHandler.postDelayed(mRefresh, newPeriod);
-        }
+        scheduleRefresh();
+        scheduleTick();
 
         super.onResume();
     }
@@ -250,7 +245,10 @@ public class ArrivalsListFragment extends ListFragment
     @Override
     public void onLoadFinished(Loader<ObaArrivalInfoResponse> loader,
                                ObaArrivalInfoResponse result) {
-        UIHelp.showProgress(this, false);
+        // A saved response is shown while the real one is loading;
+        // the header says how old it is.
+        final boolean cached = getArrivalsLoader().isCachedResult();
+        UIHelp.showProgress(this, cached);
 
         ObaArrivalInfo[] info = null;
         List<ObaSituation> situations = null;
@@ -289,8 +287,22 @@ public class ArrivalsListFragment extends ListFragment
             setListShownNoAnimation(true);
         }
 
-        // Post an update
-        mRefreshHandler.postDelayed(mRefresh, RefreshPeriod);
+        // Post an update, sooner if a bus is about to arrive.
+        // If this was a saved response, the loader is already getting the real one.
+        if (!cached) {
+            if (result.getCode() == ObaApi.OBA_OK) {
+                mRefreshPeriod = ArrivalsRefreshPolicy.getPeriod(info, mRoutesFilter);
+            } else {
+                mRefreshPeriod = ArrivalsRefreshPolicy.DEFAULT_PERIOD;
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Refreshing in " + mRefreshPeriod / 1000 + "s, "
+                        + ArrivalsRefreshPolicy.getRefreshCount() + " refreshes, "
+                        + ArrivalsRefreshPolicy.getSavedRefreshes() + " saved");
+            }
+            mRefreshHandler.removeCallbacks(mRefresh);
+            mRefreshHandler.postDelayed(mRefresh, mRefreshPeriod);
+        }
 
         // If the user just tried to load more arrivals, determine if we 
         // should show a Toast in the case where no additional arrivals were loaded
@@ -331,7 +343,7 @@ public class ArrivalsListFragment extends ListFragment
             // Reset the empty text just in case there is no data.
             setEmptyText(UIHelp.getNoArrivalsMessage(getActivity(),
                     getArrivalsLoader().getMinutesAfter(), false));
-            mAdapter.setData(info, mRoutesFilter);
+            mAdapter.setData(getArrivalsLoader().getArrivals(), mRoutesFilter);
         }
     }
 
@@ -504,9 +516,18 @@ public class ArrivalsListFragment extends ListFragment
     public void setRoutesFilter(ArrayList<String> routes) {
         mRoutesFilter = routes;
         ObaContract.StopRouteFilters.set(getActivity(), mStopId, mRoutesFilter);
-        ObaArrivalInfoResponse response =
-                getArrivalsLoader().getLastGoodResponse();
-        mAdapter.setData(response.getArrivalInfo(), mRoutesFilter);
+        ArrivalsListLoader loader = getArrivalsLoader();
+        mAdapter.setData(loader.getArrivals(), mRoutesFilter);
+
+        // The routes that were hidden may have set how soon we refresh.
+        ObaArrivalInfoResponse lastGood = loader.getLastGoodResponse();
+        if (lastGood != null && !loader.isCachedResult()) {
+            mRefreshPeriod = ArrivalsRefreshPolicy.getPeriod(lastGood.getArrivalInfo(),
+                    mRoutesFilter);
+            if (isResumed()) {
+                scheduleRefresh();
+            }
+        }
     }
 
     @Override
@@ -723,12 +744,65 @@ public class ArrivalsListFragment extends ListFragment
 
     private final Handler mRefreshHandler = new Handler();
 
+    //
+    // Refreshes mRefreshPeriod after the last response.
+    //
+    private void scheduleRefresh() {
+        mRefreshHandler.removeCallbacks(mRefresh);
+        // If our timer would have gone off, then refresh.
+        long lastResponseTime = getArrivalsLoader().getLastResponseTime();
+        long newPeriod = Math.min(mRefreshPeriod, (lastResponseTime + mRefreshPeriod)
+                - System.currentTimeMillis());
+        // Wait at least one second at least, and the full period at most.
+        //Log.d(TAG, "Refresh period:" + newPeriod);
+        if (newPeriod <= 0) {
+            refresh();
+        } else {
+            mRefreshHandler.postDelayed(mRefresh, newPeriod);
+        }
+    }
+
     private final Runnable mRefresh = new Runnable() {
         public void run() {
+            ArrivalsRefreshPolicy.onRefresh(mRefreshPeriod);
             refresh();
         }
     };
 
+    // The ETAs are in whole minutes, so they only change when the minute does.
+    private static final long TICK_PERIOD = 60 * 1000;
+
+    private final Runnable mTick = new Runnable() {
+        public void run() {
+            ArrivalsListLoader loader = getArrivalsLoader();
+            if (loader != null) {
+                loader.updateArrivals(mShowArrivals);
+            }
+            scheduleTick();
+        }
+    };
+
+    // Shows the arrivals once the loader has counted their ETAs down.
+    private final Runnable mShowArrivals = new Runnable() {
+        public void run() {
+            ArrivalsListLoader loader = getArrivalsLoader();
+            if (isResumed() && loader != null) {
+                mAdapter.setData(loader.getArrivals(), mRoutesFilter);
+            }
+        }
+    };
+
+    //
+    // Counts the ETAs down from the last response between refreshes,
+    // without going to the network.
+    //
+    private void scheduleTick() {
+        mRefreshHandler.removeCallbacks(mTick);
+        final long delay = TICK_PERIOD - ServerClock.now() % TICK_PERIOD;
+        // A little late, so we're sure to be in the next minute.
+        mRefreshHandler.postDelayed(mTick, delay + 100);
+    }
+
     private void setStopId() {
         Uri uri = (Uri) getArguments().getParcelable(FragmentUtils.URI);
         if (uri == null) {
@@ -17,12 +17,20 @@
 package com.joulespersecond.seattlebusbot;
 
 import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.elements.ObaStop;
+import com.joulespersecond.oba.provider.ObaContract;
 import com.joulespersecond.oba.request.ObaArrivalInfoRequest;
 import com.joulespersecond.oba.request.ObaArrivalInfoResponse;
+import com.joulespersecond.oba.request.RequestExecutor;
+import com.joulespersecond.seattlebusbot.util.ServerClock;
 
 import android.content.Context;
+import android.os.AsyncTask;
 import android.support.v4.content.AsyncTaskLoader;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 class ArrivalsListLoader extends AsyncTaskLoader<ObaArrivalInfoResponse> {
 
@@ -34,6 +42,39 @@ class ArrivalsListLoader extends AsyncTaskLoader<ObaArrivalInfoResponse> {
 
     private long mLastGoodResponseTime = 0;
 
+    // What the list shows for mLastGoodResponse.
+    private volatile ArrayList<ArrivalInfo> mArrivals;
+
+    // Passes the arrivals from loadInBackground() to deliverResult(), guarded by this.
+    private ObaArrivalInfoResponse mLoadedResponse;
+
+    private ArrayList<ArrivalInfo> mLoadedArrivals;
+
+    // The first load shows the last response we saved, if there is one.
+    private volatile boolean mCacheChecked = false;
+
+    // Guarded by this
+    private ObaArrivalInfoResponse mCachedResponse;
+
+    private long mCachedTime;
+
+    private boolean mDeliveredCached = false;
+
+    // The stop and its neighbors don't move, so they're saved for the map only once.
+    private volatile boolean mLocationsSaved = false;
+
+    // The first good response goes in the ArrivalsCache right away; after that,
+    // only the last one does, when the stop is left. See saveToCache().
+    private volatile ObaArrivalInfoResponse mSavedResponse;
+
+    // The last good response that isn't in the ArrivalsCache, or null.
+    private ObaArrivalInfoResponse mUnsavedResponse;
+
+    private long mUnsavedTime;
+
+    // The request in progress, so cancelLoad() can close its connection.
+    private volatile ObaArrivalInfoRequest mRequest;
+
     private int mMinutesAfter = 35;
             // includes vehicles arriving or departing in the next minutesAfter minutes
 
@@ -46,17 +87,148 @@ class ArrivalsListLoader extends AsyncTaskLoader<ObaArrivalInfoResponse> {
 
     @Override
     public ObaArrivalInfoResponse loadInBackground() {
-        return ObaArrivalInfoRequest.newRequest(getContext(), mStopId, mMinutesAfter).call();
+        if (!mCacheChecked) {
+            mCacheChecked = true;
+            // Show what we had last time while we get the new one.
+            ArrivalsCache.Entry entry = ArrivalsCache.get(getContext(), mStopId);
+            if (entry != null) {
+                prepareArrivals(entry.mResponse);
+                synchronized (this) {
+                    mCachedResponse = entry.mResponse;
+                    mCachedTime = entry.mTime;
+                }
+                return entry.mResponse;
+            }
+        }
+        // The ETAs count down to the arrival times using the server's clock.
+        ServerClock.syncIfNeeded(getContext());
+        ObaArrivalInfoRequest request =
+                ObaArrivalInfoRequest.newRequest(getContext(), mStopId, mMinutesAfter);
+        // This is what the user is looking at, so it goes ahead of everything else.
+        request.setPriority(RequestExecutor.PRIORITY_HIGH);
+        mRequest = request;
+        ObaArrivalInfoResponse response;
+        try {
+            response = request.call();
+        } finally {
+            mRequest = null;
+        }
+        if (response.getCode() == ObaApi.OBA_OK) {
+            if (!mLocationsSaved) {
+                mLocationsSaved = true;
+                // Remember where this stop and its neighbors are, for the map.
+                ArrayList<ObaStop> stops = new ArrayList<ObaStop>(response.getNearbyStops());
+                stops.add(response.getStop());
+                ObaContract.StopLocations.insert(getContext(), stops);
+            }
+
+            if (mSavedResponse == null) {
+                mSavedResponse = response;
+                ArrivalsCache.put(getContext(), mStopId, response, System.currentTimeMillis());
+            }
+            prepareArrivals(response);
+        }
+        return response;
+    }
+
+    //
+    // Does the work for the list here rather than on the UI thread.
+    //
+    private void prepareArrivals(ObaArrivalInfoResponse response) {
+        ArrayList<ArrivalInfo> arrivals = ArrivalInfo.convertObaArrivalInfo(getContext(),
+                response.getArrivalInfo(), null);
+        arrivals = ArrivalInfo.reuse(mArrivals, arrivals);
+        synchronized (this) {
+            mLoadedResponse = response;
+            mLoadedArrivals = arrivals;
+        }
     }
 
     @Override
     public void deliverResult(ObaArrivalInfoResponse data) {
         mLastResponseTime = System.currentTimeMillis();
+        final boolean cached;
+        synchronized (this) {
+            cached = data == mCachedResponse;
+            mDeliveredCached = cached;
+            if (cached) {
+                mLastGoodResponseTime = mCachedTime;
+            }
+            mCachedResponse = null;
+        }
         if (data.getCode() == ObaApi.OBA_OK) {
             mLastGoodResponse = data;
-            mLastGoodResponseTime = mLastResponseTime;
+            if (!cached) {
+                mLastGoodResponseTime = mLastResponseTime;
+                if (data != mSavedResponse) {
+                    mUnsavedResponse = data;
+                    mUnsavedTime = mLastResponseTime;
+                }
+            }
+            synchronized (this) {
+                if (data == mLoadedResponse) {
+                    mArrivals = mLoadedArrivals;
+                } else {
+                    mArrivals = ArrivalInfo.reuse(mArrivals, ArrivalInfo.convertObaArrivalInfo(
+                            getContext(), data.getArrivalInfo(), null));
+                }
+                mLoadedResponse = null;
+                mLoadedArrivals = null;
+            }
         }
         super.deliverResult(data);
+        if (cached) {
+            // Now get the real one.
+            onContentChanged();
+        }
+    }
+
+    /**
+     * @return true if the last result came from the ArrivalsCache, and
+     * the response from the server is on its way.
+     */
+    public boolean isCachedResult() {
+        return mDeliveredCached;
+    }
+
+    /**
+     * @return The arrivals of the last good response, sorted by ETA,
+     * and not filtered. Unchanged arrivals keep the same ArrivalInfo
+     * from one response to the next.
+     */
+    public List<ArrivalInfo> getArrivals() {
+        return mArrivals;
+    }
+
+    /**
+     * Converts the last good response again in the background, since the
+     * ETAs are only right for when it was converted.
+     *
+     * @param done Run on the main thread once getArrivals() has the new ETAs.
+     *             It isn't run if another response came in meanwhile.
+     */
+    public void updateArrivals(final Runnable done) {
+        final ObaArrivalInfoResponse response = mLastGoodResponse;
+        if (response == null) {
+            return;
+        }
+        final ArrayList<ArrivalInfo> previous = mArrivals;
+        // This is CPU work, so it stays off the RequestExecutor's network threads.
+        new AsyncTask<Void, Void, ArrayList<ArrivalInfo>>() {
+            @Override
+            protected ArrayList<ArrivalInfo> doInBackground(Void... params) {
+                return ArrivalInfo.reuse(previous, ArrivalInfo.convertObaArrivalInfo(
+                        getContext(), response.getArrivalInfo(), null));
+            }
+
+            @Override
+            protected void onPostExecute(ArrayList<ArrivalInfo> arrivals) {
+                if (response == mLastGoodResponse) {
+                    mArrivals = arrivals;
+                    done.run();
+                }
+            }
+        }.execute();
     }
 
     public long getLastResponseTime() {
@@ -80,12 +252,39 @@ class ArrivalsListLoader extends AsyncTaskLoader<ObaArrivalInfoResponse> {
     }
 
     /**
-     * Handles a request to stop the Loader.
+     * Cancels the request in progress too, so leaving the stop
+     * doesn't leave it downloading arrivals we won't show.
+     */
+    @Override
+    public boolean cancelLoad() {
+        final boolean result = super.cancelLoad();
+        final ObaArrivalInfoRequest request = mRequest;
+        if (request != null) {
+            request.cancel();
+        }
+        return result;
+    }
+
+    //
+    // Saves the last good response, if it isn't saved already.
+    //
+    private void saveToCache() {
+        if (mUnsavedResponse == null) {
+            return;
+        }
+        ArrivalsCache.putAsync(getContext(), mStopId, mUnsavedResponse, mUnsavedTime);
+        mSavedResponse = mUnsavedResponse;
+        mUnsavedResponse = null;
+    }
+
+    /**
+     * Handles a request to stop the Loader, which is when the stop is left.
      */
     @Override
     protected void onStopLoading() {
         // Attempt to cancel the current load task if possible.
         cancelLoad();
+        saveToCache();
     }
 
     /**
@@ -96,6 +295,7 @@ class ArrivalsListLoader extends AsyncTaskLoader<ObaArrivalInfoResponse> {
         super.onReset();
         mLastGoodResponse = null;
         mLastGoodResponseTime = 0;
+        mArrivals = null;
         // Ensure the loader is stopped
         onStopLoading();
     }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot;
+
+import com.joulespersecond.oba.elements.ObaArrivalInfo;
+import com.joulespersecond.seattlebusbot.util.ServerClock;
+
+import java.util.List;
+
+/**
+ * Decides how soon the arrivals screen refreshes, from the arrivals it's showing.
+ * A predicted arrival that's close changes quickly; arrivals that are
+ * only scheduled, or a long way off, don't change much at all.
+ *
+ * Also counts the refreshes, compared with refreshing every DEFAULT_PERIOD,
+ * for debugging.
+ */
+public final class ArrivalsRefreshPolicy {
+
+    public static final long DEFAULT_PERIOD = 60 * 1000;
+
+    public static final long IMMINENT_PERIOD = 20 * 1000;
+
+    public static final long SOON_PERIOD = 30 * 1000;
+
+    public static final long SLOW_PERIOD = 2 * 60 * 1000;
+
+    private static final long IMMINENT = 3 * 60 * 1000;
+
+    private static final long SOON = 10 * 60 * 1000;
+
+    private static final long FAR = 30 * 60 * 1000;
+
+    private static long mRefreshCount = 0;
+
+    private static long mRefreshTime = 0;
+
+    private ArrivalsRefreshPolicy() {
+    }
+
+    /**
+     * @param arrivals The arrivals being shown, or null if there are none.
+     * @param filter   The routes being shown, or null or empty for all.
+     * @return How long to wait before refreshing, in milliseconds.
+     */
+    public static long getPeriod(ObaArrivalInfo[] arrivals, List<String> filter) {
+        if (arrivals == null) {
+            return DEFAULT_PERIOD;
+        }
+        final long now = ServerClock.now();
+        final boolean filtered = filter != null && filter.size() > 0;
+        long period = SLOW_PERIOD;
+        for (ObaArrivalInfo arrival : arrivals) {
+            if (filtered && !filter.contains(arrival.getRouteId())) {
+                continue;
+            }
+            // The first stop shows the departure time, see ArrivalInfo.
+            final boolean first = arrival.getStopSequence() == 0;
+            final long predicted = first ?
+                    arrival.getPredictedDepartureTime() : arrival.getPredictedArrivalTime();
+            final long scheduled = first ?
+                    arrival.getScheduledDepartureTime() : arrival.getScheduledArrivalTime();
+            if (predicted != 0) {
+                final long eta = predicted - now;
+                if (eta < 0) {
+                    continue;
+                } else if (eta < IMMINENT) {
+                    // Can't get any faster.
+                    return IMMINENT_PERIOD;
+                } else if (eta < SOON) {
+                    period = Math.min(period, SOON_PERIOD);
+                } else if (eta < FAR) {
+                    period = Math.min(period, DEFAULT_PERIOD);
+                }
+            } else {
+                // It could start getting predictions soon.
+                final long eta = scheduled - now;
+                if (eta >= 0 && eta < SOON) {
+                    period = Math.min(period, DEFAULT_PERIOD);
+                }
+            }
+        }
+        return period;
+    }
+
+    /**
+     * Counts a refresh made after waiting for the period.
+     */
+    static synchronized void onRefresh(long period) {
+        ++mRefreshCount;
+        mRefreshTime += period;
+    }
+
+    static synchronized long getRefreshCount() {
+        return mRefreshCount;
+    }
+
+    /**
+     * @return How many fewer refreshes we've made than we would have
+     * every DEFAULT_PERIOD. This is negative if we've made more.
+     */
+    static synchronized long getSavedRefreshes() {
+        return mRefreshTime / DEFAULT_PERIOD - mRefreshCount;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.joulespersecond.oba.elements.ObaRegion;
+import com.joulespersecond.seattlebusbot.catalog.CatalogSyncTask;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the catalog sync (see CatalogSyncTask) in the background.
+ */
+public class CatalogService extends Service {
+
+    public static final String TAG = "CatalogService";
+
+    public static final String ACTION_SYNC =
+            "com.joulespersecond.seattlebusbot.action.SYNC_CATALOG";
+
+    private static final String EXTRA_REGION_ID = ".regionId";
+
+    // A complete catalog is fetched again after this long, to pick up new routes and stops.
+    private static final long SYNC_INTERVAL = 7 * 24 * 60 * 60 * 1000L;
+
+    private ExecutorService mThreadPool;
+
+    private volatile boolean mSyncing = false;
+
+    @Override
+    public void onCreate() {
+        mThreadPool = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mThreadPool != null) {
+            // Interrupts the sync; it continues the next time.
+            mThreadPool.shutdownNow();
+        }
+    }
+
+    @Override
+    public void onStart(Intent intent, int startId) {
+        handleCommand(intent, startId);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return handleCommand(intent, startId);
+    }
+
+    private int handleCommand(Intent intent, int startId) {
+        if (intent == null || !ACTION_SYNC.equals(intent.getAction())) {
+            Log.e(TAG, "Unknown intent: " + intent);
+            if (!mSyncing) {
+                stopSelfResult(startId);
+            }
+            return START_NOT_STICKY;
+        }
+        if (mSyncing) {
+            // The sync that's running will stop the service when it's done.
+            return START_REDELIVER_INTENT;
+        }
+        mSyncing = true;
+        final long regionId = intent.getLongExtra(EXTRA_REGION_ID, -1);
+        mThreadPool.submit(new CatalogSyncTask(this, regionId, new Runnable() {
+            @Override
+            public void run() {
+                mSyncing = false;
+                stopSelf();
+            }
+        }));
+        // If we're killed before we're done, start again.
+        return START_REDELIVER_INTENT;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /**
+     * Starts syncing the catalog of the current region, if it's allowed,
+     * and the catalog isn't already complete and recent.
+     */
+    public static void sync(Context context) {
+        ObaRegion region = Application.get().getCurrentRegion();
+        if (region == null || !CatalogSyncTask.canSync(context)) {
+            return;
+        }
+        SharedPreferences prefs = Application.getPrefs();
+        final long lastRegion = prefs.getLong(
+                context.getString(R.string.preference_key_catalog_sync_region), -1);
+        final long lastTime = prefs.getLong(
+                context.getString(R.string.preference_key_catalog_sync_time), 0);
+        if (lastRegion == region.getId()
+                && System.currentTimeMillis() - lastTime < SYNC_INTERVAL) {
+            return;
+        }
+        Intent intent = new Intent(context, CatalogService.class);
+        intent.setAction(ACTION_SYNC);
+        intent.putExtra(EXTRA_REGION_ID, region.getId());
+        context.startService(intent);
+    }
+}
@@ -30,10 +30,14 @@ import android.widget.TextView.BufferType;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.android.gms.location.LocationClient;
+import com.joulespersecond.oba.elements.ObaElement;
 import com.joulespersecond.seattlebusbot.util.LocationHelp;
 import com.joulespersecond.seattlebusbot.util.UIHelp;
 import com.joulespersecond.view.SearchView;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -136,6 +140,10 @@ abstract class MySearchFragmentBase extends ListFragment
             return true;
         }
 
+        // Whatever we know locally can be shown right away,
+        // the network search waits until the user stops typing.
+        doLocalSearch(newText);
+
         final String query = newText;
         final Runnable doSearch = new Runnable() {
             public void run() {
@@ -234,6 +242,40 @@ abstract class MySearchFragmentBase extends ListFragment
      */
     abstract protected void doSearch(String text);
 
+    /**
+     * Tells the subclass to search what's stored on the device. This is
+     * called on every change to the search text, before doSearch().
+     */
+    protected void doLocalSearch(String text) {
+    }
+
+    /**
+     * Merges the local and network results of a search. The local results
+     * come first, followed by any network results that aren't among them.
+     *
+     * @param local   The local results, or null if there aren't any yet.
+     * @param network The network results, or null if there aren't any yet.
+     */
+    static <T extends ObaElement> List<T> mergeResults(List<T> local, List<T> network) {
+        ArrayList<T> result = new ArrayList<T>();
+        HashSet<String> ids = new HashSet<String>();
+        if (local != null) {
+            for (T element : local) {
+                if (ids.add(element.getId())) {
+                    result.add(element);
+                }
+            }
+        }
+        if (network != null) {
+            for (T element : network) {
+                if (ids.add(element.getId())) {
+                    result.add(element);
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * @return The hint text for the search box.
      */
@@ -23,6 +23,7 @@ import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.Loader;
+import android.text.TextUtils;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
@@ -35,13 +36,16 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.elements.ObaRegion;
 import com.joulespersecond.oba.elements.ObaRoute;
+import com.joulespersecond.oba.provider.ObaContract;
 import com.joulespersecond.oba.request.ObaRoutesForLocationRequest;
 import com.joulespersecond.oba.request.ObaRoutesForLocationResponse;
 import com.joulespersecond.seattlebusbot.util.LocationHelp;
 import com.joulespersecond.seattlebusbot.util.UIHelp;
 
 import java.util.Arrays;
+import java.util.List;
 
 public class MySearchRoutesFragment extends MySearchFragmentBase
         implements LoaderManager.LoaderCallbacks<ObaRoutesForLocationResponse> {
@@ -49,10 +53,23 @@ public class MySearchRoutesFragment extends MySearchFragmentBase
     //private static final String TAG = "MySearchRoutesActivity";
     private static final String QUERY_TEXT = "query_text";
 
+    private static final int NETWORK_LOADER = 0;
+
+    private static final int LOCAL_LOADER = 1;
+
+    private static final int LOCAL_LIMIT = 20;
+
     public static final String TAB_NAME = "search";
 
     private MyAdapter mAdapter;
 
+    private List<ObaRoute> mLocalResults;
+
+    private List<ObaRoute> mNetworkResults;
+
+    // The text the results should be for
+    private String mQueryText;
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
@@ -82,12 +99,17 @@ public class MySearchRoutesFragment extends MySearchFragmentBase
     @Override
     public void onLoadFinished(Loader<ObaRoutesForLocationResponse> loader,
                                ObaRoutesForLocationResponse response) {
+        if (!TextUtils.equals(((MyLoader) loader).getQueryText(), mQueryText)) {
+            // The text has changed since, and a new search is on its way.
+            return;
+        }
         UIHelp.showProgress(this, false);
         //Log.d(TAG, "Loader finished");
         final int code = response.getCode();
         if (code == ObaApi.OBA_OK) {
             setEmptyText(getString(R.string.find_hint_noresults));
-            mAdapter.setData(Arrays.asList(response.getRoutes()));
+            mNetworkResults = Arrays.asList(response.getRoutes());
+            showResults();
         } else if (code != 0) {
             // If we get anything other than a '0' error, that means
             // the server actually returned something to us,
@@ -101,18 +123,58 @@ public class MySearchRoutesFragment extends MySearchFragmentBase
 
     @Override
     public void onLoaderReset(Loader<ObaRoutesForLocationResponse> loader) {
+        mNetworkResults = null;
         mAdapter.clear();
     }
 
+    private final LoaderManager.LoaderCallbacks<List<ObaRoute>> mLocalCallback
+            = new LoaderManager.LoaderCallbacks<List<ObaRoute>>() {
+        @Override
+        public Loader<List<ObaRoute>> onCreateLoader(int id, Bundle args) {
+            return new LocalLoader(getActivity(), args.getString(QUERY_TEXT));
+        }
+
+        @Override
+        public void onLoadFinished(Loader<List<ObaRoute>> loader, List<ObaRoute> routes) {
+            mLocalResults = routes;
+            showResults();
+        }
+
+        @Override
+        public void onLoaderReset(Loader<List<ObaRoute>> loader) {
+            mLocalResults = null;
+        }
+    };
+
+    private void showResults() {
+        mAdapter.setData(mergeResults(mLocalResults, mNetworkResults));
+    }
+
     //
     // Base class
     //
     @Override
     protected void doSearch(String text) {
         UIHelp.showProgress(this, true);
+        mQueryText = text;
+        Bundle args = new Bundle();
+        args.putString(QUERY_TEXT, text);
+        Loader<?> loader = getLoaderManager().restartLoader(NETWORK_LOADER, args, this);
+        loader.onContentChanged();
+    }
+
+    @Override
+    protected void doLocalSearch(String text) {
+        // Whatever the network found, or is still looking for, was for the old text.
+        mNetworkResults = null;
+        mQueryText = text;
+        Loader<?> network = getLoaderManager().getLoader(NETWORK_LOADER);
+        if (network != null) {
+            ((AsyncTaskLoader<?>) network).cancelLoad();
+        }
         Bundle args = new Bundle();
         args.putString(QUERY_TEXT, text);
-        Loader<?> loader = getLoaderManager().restartLoader(0, args, this);
+        Loader<?> loader = getLoaderManager().restartLoader(LOCAL_LOADER, args, mLocalCallback);
         loader.onContentChanged();
     }
 
@@ -227,6 +289,10 @@ public class MySearchRoutesFragment extends MySearchFragmentBase
             mCenter = center;
         }
 
+        String getQueryText() {
+            return mQueryText;
+        }
+
         @Override
         public ObaRoutesForLocationResponse loadInBackground() {
             ObaRoutesForLocationResponse response =
@@ -255,4 +321,26 @@ public class MySearchRoutesFragment extends MySearchFragmentBase
             return response;
         }
     }
+
+    //
+    // Searches the routes stored on the device
+    //
+    private static final class LocalLoader extends AsyncTaskLoader<List<ObaRoute>> {
+
+        private final String mQueryText;
+
+        public LocalLoader(Context context, String query) {
+            super(context);
+            mQueryText = query;
+        }
+
+        @Override
+        public List<ObaRoute> loadInBackground() {
+            ObaRegion region = Application.get().getCurrentRegion();
+            return ObaContract.Routes.search(getContext(),
+                    region != null ? region.getId() : null,
+                    mQueryText,
+                    LOCAL_LIMIT);
+        }
+    }
 }
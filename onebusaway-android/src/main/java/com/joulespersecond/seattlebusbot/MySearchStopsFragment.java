@@ -21,6 +21,7 @@ import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.Loader;
+import android.text.TextUtils;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
@@ -32,12 +33,15 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.elements.ObaRegion;
 import com.joulespersecond.oba.elements.ObaStop;
+import com.joulespersecond.oba.provider.ObaContract;
 import com.joulespersecond.oba.request.ObaStopsForLocationRequest;
 import com.joulespersecond.oba.request.ObaStopsForLocationResponse;
 import com.joulespersecond.seattlebusbot.util.UIHelp;
 
 import java.util.Arrays;
+import java.util.List;
 
 public class MySearchStopsFragment extends MySearchFragmentBase
         implements LoaderManager.LoaderCallbacks<ObaStopsForLocationResponse> {
@@ -45,12 +49,25 @@ public class MySearchStopsFragment extends MySearchFragmentBase
     //private static final String TAG = "MySearchStopsFragment";
     private static final String QUERY_TEXT = "query_text";
 
+    private static final int NETWORK_LOADER = 0;
+
+    private static final int LOCAL_LOADER = 1;
+
+    private static final int LOCAL_LIMIT = 20;
+
     public static final String TAB_NAME = "search";
 
     private UIHelp.StopUserInfoMap mStopUserMap;
 
     private MyAdapter mAdapter;
 
+    private List<ObaStop> mLocalResults;
+
+    private List<ObaStop> mNetworkResults;
+
+    // The text the results should be for
+    private String mQueryText;
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         mStopUserMap = new UIHelp.StopUserInfoMap(getActivity());
@@ -89,12 +106,17 @@ public class MySearchStopsFragment extends MySearchFragmentBase
     @Override
     public void onLoadFinished(Loader<ObaStopsForLocationResponse> loader,
                                ObaStopsForLocationResponse response) {
+        if (!TextUtils.equals(((MyLoader) loader).getQueryText(), mQueryText)) {
+            // The text has changed since, and a new search is on its way.
+            return;
+        }
         UIHelp.showProgress(this, false);
         //Log.d(TAG, "Loader finished");
         final int code = response.getCode();
         if (code == ObaApi.OBA_OK) {
             setEmptyText(getString(R.string.find_hint_noresults));
-            mAdapter.setData(Arrays.asList(response.getStops()));
+            mNetworkResults = Arrays.asList(response.getStops());
+            showResults();
         } else if (code != 0) {
             // If we get anything other than a '0' error, that means
             // the server actually returned something to us,
@@ -108,18 +130,58 @@ public class MySearchStopsFragment extends MySearchFragmentBase
 
     @Override
     public void onLoaderReset(Loader<ObaStopsForLocationResponse> loader) {
+        mNetworkResults = null;
         mAdapter.clear();
     }
 
+    private final LoaderManager.LoaderCallbacks<List<ObaStop>> mLocalCallback
+            = new LoaderManager.LoaderCallbacks<List<ObaStop>>() {
+        @Override
+        public Loader<List<ObaStop>> onCreateLoader(int id, Bundle args) {
+            return new LocalLoader(getActivity(), args.getString(QUERY_TEXT));
+        }
+
+        @Override
+        public void onLoadFinished(Loader<List<ObaStop>> loader, List<ObaStop> stops) {
+            mLocalResults = stops;
+            showResults();
+        }
+
+        @Override
+        public void onLoaderReset(Loader<List<ObaStop>> loader) {
+            mLocalResults = null;
+        }
+    };
+
+    private void showResults() {
+        mAdapter.setData(mergeResults(mLocalResults, mNetworkResults));
+    }
+
     //
     // Base class
     //
     @Override
     protected void doSearch(String text) {
         UIHelp.showProgress(this, true);
+        mQueryText = text;
+        Bundle args = new Bundle();
+        args.putString(QUERY_TEXT, text);
+        Loader<?> loader = getLoaderManager().restartLoader(NETWORK_LOADER, args, this);
+        loader.onContentChanged();
+    }
+
+    @Override
+    protected void doLocalSearch(String text) {
+        // Whatever the network found, or is still looking for, was for the old text.
+        mNetworkResults = null;
+        mQueryText = text;
+        Loader<?> network = getLoaderManager().getLoader(NETWORK_LOADER);
+        if (network != null) {
+            ((AsyncTaskLoader<?>) network).cancelLoad();
+        }
         Bundle args = new Bundle();
         args.putString(QUERY_TEXT, text);
-        Loader<?> loader = getLoaderManager().restartLoader(0, args, this);
+        Loader<?> loader = getLoaderManager().restartLoader(LOCAL_LOADER, args, mLocalCallback);
         loader.onContentChanged();
     }
 
@@ -225,6 +287,10 @@ public class MySearchStopsFragment extends MySearchFragmentBase
             mCenter = center;
         }
 
+        String getQueryText() {
+            return mQueryText;
+        }
+
         @Override
         public ObaStopsForLocationResponse loadInBackground() {
             return new ObaStopsForLocationRequest.Builder(getContext(), mCenter)
@@ -233,4 +299,26 @@ public class MySearchStopsFragment extends MySearchFragmentBase
                     .call();
         }
     }
+
+    //
+    // Searches the stops stored on the device
+    //
+    private static final class LocalLoader extends AsyncTaskLoader<List<ObaStop>> {
+
+        private final String mQueryText;
+
+        public LocalLoader(Context context, String query) {
+            super(context);
+            mQueryText = query;
+        }
+
+        @Override
+        public List<ObaStop> loadInBackground() {
+            ObaRegion region = Application.get().getCurrentRegion();
+            return ObaContract.Stops.search(getContext(),
+                    region != null ? region.getId() : null,
+                    mQueryText,
+                    LOCAL_LIMIT);
+        }
+    }
 }
@@ -21,20 +21,31 @@ import com.actionbarsherlock.view.MenuItem;
 import com.joulespersecond.oba.ObaAnalytics;
 import com.joulespersecond.oba.provider.ObaContract;
 
+import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
+import android.support.v4.widget.SimpleCursorAdapter;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.View;
 import android.widget.AdapterView.AdapterContextMenuInfo;
+import android.widget.TextView;
 
-public class MyStarredStopsFragment extends MyStopListFragmentBase {
+import java.util.ArrayList;
+
+public class MyStarredStopsFragment extends MyStopListFragmentBase
+        implements StarredStopsArrivals.Listener {
 
     public static final String TAB_NAME = "starred";
 
+    // Keeps the arrivals of the starred stops, when they're shown.
+    private StarredStopsArrivals mArrivals;
+
+    private boolean mShowArrivals = false;
+
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         return new CursorLoader(getActivity(),
@@ -50,10 +61,86 @@ public class MyStarredStopsFragment extends MyStopListFragmentBase {
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
+        mArrivals = new StarredStopsArrivals(getActivity(), this);
+        mShowArrivals = !isShortcutMode() && Application.getPrefs().getBoolean(
+                getString(R.string.preference_key_starred_arrivals), false);
         super.onActivityCreated(savedInstanceState);
         setHasOptionsMenu(true);
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (mShowArrivals) {
+            mArrivals.start();
+        }
+    }
+
+    @Override
+    public void onPause() {
+        mArrivals.stop();
+        super.onPause();
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        super.onLoadFinished(loader, data);
+        ArrayList<String> stopIds = new ArrayList<String>();
+        if (data != null && data.moveToFirst()) {
+            do {
+                stopIds.add(data.getString(COL_ID));
+            } while (data.moveToNext());
+        }
+        mArrivals.setStops(stopIds);
+    }
+
+    @Override
+    protected SimpleCursorAdapter newAdapter() {
+        SimpleCursorAdapter adapter = new SimpleCursorAdapter(getActivity(),
+                R.layout.stop_list_item, null,
+                QueryUtils.StopList.FROM, QueryUtils.StopList.TO, 0) {
+            @Override
+            public void bindView(View view, Context context, Cursor cursor) {
+                super.bindView(view, context, cursor);
+                bindArrivals((TextView) view.findViewById(R.id.arrivals),
+                        cursor.getString(COL_ID));
+            }
+        };
+        adapter.setViewBinder(QueryUtils.StopList.VIEW_BINDER);
+        return adapter;
+    }
+
+    private void bindArrivals(TextView view, String stopId) {
+        final CharSequence summary = mShowArrivals ? mArrivals.getSummary(stopId) : null;
+        if (summary != null) {
+            view.setText(summary);
+            view.setVisibility(View.VISIBLE);
+        } else {
+            view.setVisibility(View.GONE);
+        }
+    }
+
+    @Override
+    public void onArrivalsChanged() {
+        SimpleCursorAdapter adapter = (SimpleCursorAdapter) getListAdapter();
+        if (adapter != null) {
+            adapter.notifyDataSetChanged();
+        }
+    }
+
+    private void setShowArrivals(boolean show) {
+        mShowArrivals = show;
+        Application.getPrefs().edit()
+                .putBoolean(getString(R.string.preference_key_starred_arrivals), show)
+                .commit();
+        if (show) {
+            mArrivals.start();
+        } else {
+            mArrivals.stop();
+        }
+        onArrivalsChanged();
+    }
+
     @Override
     public void onStart() {
         ObaAnalytics.reportFragmentStart(this);
@@ -86,12 +173,23 @@ public class MyStarredStopsFragment extends MyStopListFragmentBase {
         inflater.inflate(R.menu.my_starred_stop_options, menu);
     }
 
+    @Override
+    public void onPrepareOptionsMenu(Menu menu) {
+        MenuItem item = menu.findItem(R.id.show_arrivals);
+        item.setVisible(!isShortcutMode());
+        item.setChecked(mShowArrivals);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item.getItemId() == R.id.clear_starred) {
             new ClearDialog()
                     .show(getActivity().getSupportFragmentManager(), "confirm_clear_starred_stops");
             return true;
+        } else if (item.getItemId() == R.id.show_arrivals) {
+            setShowArrivals(!mShowArrivals);
+            getActivity().supportInvalidateOptionsMenu();
+            return true;
         }
         return false;
     }
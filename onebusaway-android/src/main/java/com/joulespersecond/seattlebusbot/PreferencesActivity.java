@@ -24,6 +24,7 @@ import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceChangeListener;
 import android.text.TextUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -53,6 +54,8 @@ public class PreferencesActivity extends SherlockPreferenceActivity
 
     ListPreference preferredUnits;
 
+    Preference catalogSyncPref;
+
     // Soo... we can use SherlockPreferenceActivity to display the
     // action bar, but we can't use a PreferenceFragment?
     @SuppressWarnings("deprecation")
@@ -83,6 +86,8 @@ public class PreferencesActivity extends SherlockPreferenceActivity
         preferredUnits = (ListPreference) findPreference(
                 getString(R.string.preference_key_preferred_units));
 
+        catalogSyncPref = findPreference(getString(R.string.preference_key_catalog_sync));
+
         settings.registerOnSharedPreferenceChangeListener(this);
     }
 
@@ -91,6 +96,7 @@ public class PreferencesActivity extends SherlockPreferenceActivity
         super.onResume();
         changePreferenceSummary(getString(R.string.preference_key_region));
         changePreferenceSummary(getString(R.string.preference_key_preferred_units));
+        updateCatalogSyncSummary();
     }
 
     @Override
@@ -128,6 +134,33 @@ public class PreferencesActivity extends SherlockPreferenceActivity
         }
     }
 
+    //
+    // Shows how far the catalog sync has got, or how much it downloaded last time.
+    //
+    private void updateCatalogSyncSummary() {
+        SharedPreferences settings = Application.getPrefs();
+        final long time = settings.getLong(
+                getString(R.string.preference_key_catalog_sync_time), 0);
+        final int done = settings.getInt(
+                getString(R.string.preference_key_catalog_sync_done), 0);
+        final int total = settings.getInt(
+                getString(R.string.preference_key_catalog_sync_total), 0);
+        final long bytes = settings.getLong(
+                getString(R.string.preference_key_catalog_sync_bytes), -1);
+        final String size = bytes >= 0 ? Formatter.formatShortFileSize(this, bytes) : "?";
+
+        if (!settings.getBoolean(getString(R.string.preference_key_catalog_sync), false)
+                || (time == 0 && total == 0)) {
+            catalogSyncPref.setSummary(R.string.preferences_catalog_sync_summary);
+        } else if (time == 0) {
+            catalogSyncPref.setSummary(getString(R.string.preferences_catalog_sync_progress,
+                    done, total, size));
+        } else {
+            catalogSyncPref.setSummary(getString(R.string.preferences_catalog_sync_complete,
+                    size));
+        }
+    }
+
     @Override
     public boolean onPreferenceClick(Preference pref) {
         if (pref.equals(regionPref)) {
@@ -195,6 +228,19 @@ public class PreferencesActivity extends SherlockPreferenceActivity
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         SharedPreferences settings = Application.getPrefs();
+        if (key.startsWith(getString(R.string.preference_key_catalog_sync))) {
+            // The sync saves its progress from a background thread.
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    updateCatalogSyncSummary();
+                }
+            });
+            if (key.equals(getString(R.string.preference_key_catalog_sync))) {
+                CatalogService.sync(this);
+            }
+            return;
+        }
         // Listening to changes to a custom Preference doesn't seem to work, so we can listen to changes to the shared pref value instead
         if (key.equals(getString(R.string.preference_key_experimental_regions))) {
             boolean experimentalServers = settings
@@ -143,38 +143,42 @@ final class QueryUtils {
             public static final int COL_FAVORITE = 6;
         }
 
+        static final String[] FROM = new String[]{
+                ObaContract.Stops.UI_NAME,
+                ObaContract.Stops.DIRECTION,
+                ObaContract.Stops.FAVORITE
+        };
+
+        static final int[] TO = new int[]{
+                R.id.stop_name,
+                R.id.direction,
+                R.id.stop_name
+        };
+
+        // We need to convert the direction text (N/NW/E/etc)
+        // to user level text (North/Northwest/etc..)
+        static final SimpleCursorAdapter.ViewBinder VIEW_BINDER =
+                new SimpleCursorAdapter.ViewBinder() {
+                    public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+                        if (columnIndex == Columns.COL_FAVORITE) {
+                            TextView favorite = (TextView) view.findViewById(R.id.stop_name);
+                            int icon = (cursor.getInt(columnIndex) == 1) ? R.drawable.star_on : 0;
+                            favorite.setCompoundDrawablesWithIntrinsicBounds(icon, 0, 0, 0);
+                            return true;
+                        } else if (columnIndex == Columns.COL_DIRECTION) {
+                            UIHelp.setStopDirection(view.findViewById(R.id.direction),
+                                    cursor.getString(columnIndex),
+                                    true);
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+
         public static SimpleCursorAdapter newAdapter(Context context) {
-            String[] from = new String[]{
-                    ObaContract.Stops.UI_NAME,
-                    ObaContract.Stops.DIRECTION,
-                    ObaContract.Stops.FAVORITE
-            };
-            int[] to = new int[]{
-                    R.id.stop_name,
-                    R.id.direction,
-                    R.id.stop_name
-            };
             SimpleCursorAdapter simpleAdapter =
-                    new SimpleCursorAdapter(context, R.layout.stop_list_item, null, from, to, 0);
-
-            // We need to convert the direction text (N/NW/E/etc)
-            // to user level text (North/Northwest/etc..)
-            simpleAdapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
-                public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
-                    if (columnIndex == Columns.COL_FAVORITE) {
-                        TextView favorite = (TextView) view.findViewById(R.id.stop_name);
-                        int icon = (cursor.getInt(columnIndex) == 1) ? R.drawable.star_on : 0;
-                        favorite.setCompoundDrawablesWithIntrinsicBounds(icon, 0, 0, 0);
-                        return true;
-                    } else if (columnIndex == Columns.COL_DIRECTION) {
-                        UIHelp.setStopDirection(view.findViewById(R.id.direction),
-                                cursor.getString(columnIndex),
-                                true);
-                        return true;
-                    }
-                    return false;
-                }
-            });
+                    new SimpleCursorAdapter(context, R.layout.stop_list_item, null, FROM, TO, 0);
+            simpleAdapter.setViewBinder(VIEW_BINDER);
             return simpleAdapter;
         }
 
@@ -306,6 +306,9 @@ public class RouteInfoListFragment extends ListFragment {
                             .setIncludeShapes(false)
                             .build()
                             .call();
+            if (response.getCode() == ObaApi.OBA_OK) {
+                ObaContract.StopLocations.insert(getContext(), response.getStops());
+            }
             return new StopsForRouteInfo(getContext(), response);
         }
     }
@@ -22,8 +22,10 @@ import com.google.android.gms.location.LocationClient;
 
 import com.joulespersecond.oba.ObaApi;
 import com.joulespersecond.oba.elements.ObaElement;
+import com.joulespersecond.oba.elements.ObaRegion;
 import com.joulespersecond.oba.elements.ObaRoute;
 import com.joulespersecond.oba.elements.ObaStop;
+import com.joulespersecond.oba.provider.ObaContract;
 import com.joulespersecond.oba.request.ObaRoutesForLocationRequest;
 import com.joulespersecond.oba.request.ObaRoutesForLocationResponse;
 import com.joulespersecond.oba.request.ObaStopsForLocationRequest;
@@ -83,8 +85,18 @@ public class SearchResultsFragment extends ListFragment
     //private static final String TAG = "SearchResultsFragment";
     public static final String QUERY_TEXT = "query_text";
 
+    private static final int NETWORK_LOADER = 0;
+
+    private static final int LOCAL_LOADER = 1;
+
+    private static final int LOCAL_LIMIT = 20;
+
     private MyAdapter mAdapter;
 
+    private List<ObaElement> mLocalResults;
+
+    private List<ObaElement> mNetworkResults;
+
     /**
      * Google Location Services
      */
@@ -132,7 +144,10 @@ public class SearchResultsFragment extends ListFragment
 
     private void search() {
         UIHelp.showProgress(this, true);
-        Loader<?> loader = getLoaderManager().restartLoader(0, getArguments(), this);
+        // The local results are usually back long before the network ones.
+        getLoaderManager().restartLoader(LOCAL_LOADER, getArguments(), mLocalCallback)
+                .forceLoad();
+        Loader<?> loader = getLoaderManager().restartLoader(NETWORK_LOADER, getArguments(), this);
         //loader.onContentChanged();
         loader.forceLoad();
     }
@@ -151,7 +166,8 @@ public class SearchResultsFragment extends ListFragment
         final int code = response.getCode();
         if (code == ObaApi.OBA_OK) {
             setEmptyText(getString(R.string.find_hint_noresults));
-            mAdapter.setData(response.getResults());
+            mNetworkResults = response.getResults();
+            showResults();
         } else if (code != 0) {
             // If we get anything other than a '0' error, that means
             // the server actually returned something to us,
@@ -165,9 +181,33 @@ public class SearchResultsFragment extends ListFragment
 
     @Override
     public void onLoaderReset(Loader<SearchResponse> loader) {
+        mNetworkResults = null;
         mAdapter.clear();
     }
 
+    private final LoaderManager.LoaderCallbacks<List<ObaElement>> mLocalCallback
+            = new LoaderManager.LoaderCallbacks<List<ObaElement>>() {
+        @Override
+        public Loader<List<ObaElement>> onCreateLoader(int id, Bundle args) {
+            return new LocalLoader(getActivity(), args.getString(QUERY_TEXT));
+        }
+
+        @Override
+        public void onLoadFinished(Loader<List<ObaElement>> loader, List<ObaElement> results) {
+            mLocalResults = results;
+            showResults();
+        }
+
+        @Override
+        public void onLoaderReset(Loader<List<ObaElement>> loader) {
+            mLocalResults = null;
+        }
+    };
+
+    private void showResults() {
+        mAdapter.setData(MySearchFragmentBase.mergeResults(mLocalResults, mNetworkResults));
+    }
+
 
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
@@ -350,4 +390,29 @@ public class SearchResultsFragment extends ListFragment
             return new SearchResponse(code, results);
         }
     }
+
+    //
+    // Searches the routes and stops stored on the device
+    //
+    private static final class LocalLoader extends AsyncTaskLoader<List<ObaElement>> {
+
+        private final String mQueryText;
+
+        public LocalLoader(Context context, String query) {
+            super(context);
+            mQueryText = query;
+        }
+
+        @Override
+        public List<ObaElement> loadInBackground() {
+            ObaRegion region = Application.get().getCurrentRegion();
+            final Long regionId = region != null ? region.getId() : null;
+            ArrayList<ObaElement> results = new ArrayList<ObaElement>();
+            results.addAll(ObaContract.Routes.search(getContext(), regionId,
+                    mQueryText, LOCAL_LIMIT));
+            results.addAll(ObaContract.Stops.search(getContext(), regionId,
+                    mQueryText, LOCAL_LIMIT));
+            return results;
+        }
+    }
 }
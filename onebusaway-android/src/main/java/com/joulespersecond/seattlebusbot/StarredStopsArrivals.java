@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot;
+
+import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.elements.ObaArrivalInfo;
+import com.joulespersecond.oba.request.ObaArrivalInfoRequest;
+import com.joulespersecond.oba.request.ObaArrivalInfoResponse;
+import com.joulespersecond.oba.request.RequestExecutor;
+import com.joulespersecond.oba.request.RequestFuture;
+import com.joulespersecond.seattlebusbot.util.ServerClock;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the arrivals of a list of stops up to date, for the starred stops list.
+ *
+ * The stops are requested in parallel, at most MAX_REQUESTS at a time,
+ * in the order of the list; the others wait for one of those to finish.
+ * The listener is told as each stop comes in, so the list fills in as it goes.
+ * Each stop is then refreshed on its own schedule (see ArrivalsRefreshPolicy),
+ * so a stop with a bus coming is refreshed sooner than one with nothing for an hour.
+ *
+ * Like the arrivals list, the first good response of each stop goes in the
+ * ArrivalsCache, and the last one does when the list is stopped, so opening
+ * a starred stop has something to show right away.
+ *
+ * Everything but the requests runs on the main thread. The arrivals of each
+ * stop are converted and sorted once, when they come in; the summary is worked
+ * out from them then and once a minute after that, so binding the list only
+ * has to read it.
+ */
+final class StarredStopsArrivals {
+
+    private static final String TAG = "StarredStopsArrivals";
+
+    // As many as the RequestScheduler lets go at once, so the others wait
+    // here rather than holding one of the executor's threads.
+    static final int MAX_REQUESTS =
+            RequestExecutor.getMaxRunning(RequestExecutor.PRIORITY_NORMAL);
+
+    // The most arrivals shown for each stop.
+    private static final int MAX_SHOWN = 3;
+
+    private static final long TICK_PERIOD = 60 * 1000;
+
+    interface Listener {
+
+        /**
+         * Called when the arrivals of any stop have changed.
+         */
+        void onArrivalsChanged();
+    }
+
+    private static final class StopState {
+
+        // The last good arrivals, sorted by ETA, or null if there aren't any yet.
+        ArrayList<ArrivalInfo> mArrivals;
+
+        boolean mError;
+
+        // What the list shows for the stop, see updateSummary().
+        CharSequence mSummary;
+
+        // When to refresh next, in elapsedRealtime; 0 is right away.
+        long mDue;
+
+        // The request in progress, or null.
+        Fetch mFetch;
+
+        boolean mSaved;
+
+        // The last good response if it isn't in the ArrivalsCache, or null.
+        ObaArrivalInfoResponse mUnsaved;
+
+        long mUnsavedTime;
+    }
+
+    private final class Fetch implements RequestExecutor.Callback<ObaArrivalInfoResponse> {
+
+        private final String mStopId;
+
+        private final StopState mState;
+
+        RequestFuture<ObaArrivalInfoResponse> mFuture;
+
+        Fetch(String stopId, StopState state) {
+            mStopId = stopId;
+            mState = state;
+        }
+
+        @Override
+        public void onResponse(ObaArrivalInfoResponse response) {
+            // It may have been cancelled after it finished.
+            if (mState.mFetch != this) {
+                return;
+            }
+            onFetched(mStopId, mState, response);
+        }
+    }
+
+    private final Context mContext;
+
+    private final Listener mListener;
+
+    private final Handler mHandler = new Handler();
+
+    private LinkedHashMap<String, StopState> mStops = new LinkedHashMap<String, StopState>();
+
+    private int mRunning = 0;
+
+    private boolean mStarted = false;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refreshDue();
+        }
+    };
+
+    // Counts the ETAs down between refreshes.
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            for (StopState state : mStops.values()) {
+                updateSummary(state);
+            }
+            mListener.onArrivalsChanged();
+            scheduleTick();
+        }
+    };
+
+    StarredStopsArrivals(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+    }
+
+    /**
+     * Sets the stops to keep up to date, in the order they're shown.
+     * Stops that were already in the list keep their arrivals.
+     */
+    void setStops(List<String> stopIds) {
+        LinkedHashMap<String, StopState> stops =
+                new LinkedHashMap<String, StopState>(stopIds.size());
+        for (String id : stopIds) {
+            StopState state = mStops.remove(id);
+            if (state == null) {
+                state = new StopState();
+                updateSummary(state);
+            }
+            stops.put(id, state);
+        }
+        // The ones that are left aren't starred anymore.
+        for (Map.Entry<String, StopState> entry : mStops.entrySet()) {
+            StopState state = entry.getValue();
+            cancel(state);
+            save(entry.getKey(), state);
+        }
+        mStops = stops;
+        refreshDue();
+    }
+
+    /**
+     * Starts refreshing, right away for the stops that are due.
+     */
+    void start() {
+        mStarted = true;
+        refreshDue();
+        scheduleTick();
+    }
+
+    /**
+     * Stops refreshing, and cancels the requests in progress.
+     * The arrivals we have are kept.
+     */
+    void stop() {
+        mStarted = false;
+        mHandler.removeCallbacks(mRefresh);
+        mHandler.removeCallbacks(mTick);
+        for (Map.Entry<String, StopState> entry : mStops.entrySet()) {
+            StopState state = entry.getValue();
+            cancel(state);
+            save(entry.getKey(), state);
+        }
+    }
+
+    /**
+     * @return A line describing the next arrivals at the stop,
+     * or null if the stop isn't in the list.
+     */
+    CharSequence getSummary(String stopId) {
+        StopState state = mStops.get(stopId);
+        return state != null ? state.mSummary : null;
+    }
+
+    //
+    // Works out the summary from the arrivals, as of now.
+    // Only the ETAs are worked out again, which keeps their order.
+    //
+    private void updateSummary(StopState state) {
+        if (state.mArrivals == null) {
+            state.mSummary = mContext.getString(
+                    state.mError ? R.string.my_arrivals_error : R.string.loading);
+            return;
+        }
+        final long now = ServerClock.now();
+        ArrayList<String> shown = new ArrayList<String>(MAX_SHOWN);
+        for (ArrivalInfo arrival : state.mArrivals) {
+            final long eta = arrival.getEta(now);
+            if (eta < 0) {
+                continue;
+            }
+            final String route = arrival.getInfo().getShortName();
+            shown.add(eta == 0 ? mContext.getString(R.string.my_arrivals_now, route)
+                    : mContext.getString(R.string.my_arrivals_eta, route, eta));
+            if (shown.size() == MAX_SHOWN) {
+                break;
+            }
+        }
+        state.mSummary = shown.isEmpty() ? mContext.getString(R.string.my_arrivals_none)
+                : TextUtils.join(", ", shown);
+    }
+
+    //
+    // Requests the stops that are due, as long as there's room,
+    // and posts mRefresh for the next one that will be.
+    //
+    private void refreshDue() {
+        mHandler.removeCallbacks(mRefresh);
+        if (!mStarted) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        long next = Long.MAX_VALUE;
+        for (Map.Entry<String, StopState> entry : mStops.entrySet()) {
+            StopState state = entry.getValue();
+            if (state.mFetch != null) {
+                continue;
+            }
+            if (state.mDue > now) {
+                next = Math.min(next, state.mDue);
+            } else if (mRunning < MAX_REQUESTS) {
+                fetch(entry.getKey(), state);
+            }
+            // Otherwise it goes when one of the running requests finishes.
+        }
+        if (next != Long.MAX_VALUE) {
+            mHandler.postDelayed(mRefresh, next - now);
+        }
+    }
+
+    private void fetch(String stopId, StopState state) {
+        ObaArrivalInfoRequest request = ObaArrivalInfoRequest.newRequest(mContext, stopId);
+        Fetch fetch = new Fetch(stopId, state);
+        state.mFetch = fetch;
+        ++mRunning;
+        fetch.mFuture = RequestExecutor.execute(request, RequestExecutor.PRIORITY_NORMAL, fetch);
+    }
+
+    private void onFetched(String stopId, StopState state, ObaArrivalInfoResponse response) {
+        state.mFetch = null;
+        --mRunning;
+
+        long period;
+        if (response.getCode() == ObaApi.OBA_OK) {
+            state.mUnsaved = response;
+            state.mUnsavedTime = System.currentTimeMillis();
+            if (!state.mSaved) {
+                save(stopId, state);
+            }
+            ObaArrivalInfo[] arrivals = response.getArrivalInfo();
+            state.mArrivals = ArrivalInfo.convertObaArrivalInfo(mContext, arrivals, null);
+            state.mError = false;
+            period = ArrivalsRefreshPolicy.getPeriod(arrivals, null);
+        } else {
+            // Keep showing the last good arrivals, if there are any.
+            state.mError = true;
+            period = ArrivalsRefreshPolicy.DEFAULT_PERIOD;
+        }
+        state.mDue = SystemClock.elapsedRealtime() + period;
+        updateSummary(state);
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Got " + response.getCode() + ", refreshing in " + period / 1000 + "s");
+        }
+        mListener.onArrivalsChanged();
+        refreshDue();
+    }
+
+    private void save(String stopId, StopState state) {
+        if (state.mUnsaved != null) {
+            ArrivalsCache.putAsync(mContext, stopId, state.mUnsaved, state.mUnsavedTime);
+            state.mSaved = true;
+            state.mUnsaved = null;
+        }
+    }
+
+    private void cancel(StopState state) {
+        if (state.mFetch != null) {
+            state.mFetch.mFuture.cancel(false);
+            state.mFetch = null;
+            --mRunning;
+        }
+    }
+
+    private void scheduleTick() {
+        mHandler.removeCallbacks(mTick);
+        final long delay = TICK_PERIOD - ServerClock.now() % TICK_PERIOD;
+        // A little late, so we're sure to be in the next minute.
+        mHandler.postDelayed(mTick, delay + 100);
+    }
+}
@@ -200,6 +200,11 @@ public class TripService extends Service {
         context.startService(intent);
     }
 
+    /**
+     * Sets an alarm to poll. For a single alert URI this starts polling that
+     * alert; for TripAlerts.CONTENT_URI it runs the next cycle for all
+     * polling alerts. Setting it again for the same URI replaces the alarm.
+     */
     public static void pollTrip(Context context, Uri alertUri, long triggerTime) {
         Intent intent = new Intent(TripService.ACTION_POLL, alertUri,
                 context, AlarmReceiver.class);
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot.catalog;
+
+import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.elements.ObaAgencyWithCoverage;
+import com.joulespersecond.oba.elements.ObaRoute;
+import com.joulespersecond.oba.elements.ObaStop;
+import com.joulespersecond.oba.provider.ObaContract;
+import com.joulespersecond.oba.request.ObaAgenciesWithCoverageRequest;
+import com.joulespersecond.oba.request.ObaAgenciesWithCoverageResponse;
+import com.joulespersecond.oba.request.ObaRouteIdsForAgencyRequest;
+import com.joulespersecond.oba.request.ObaRouteIdsForAgencyResponse;
+import com.joulespersecond.oba.request.ObaStopIdsForAgencyRequest;
+import com.joulespersecond.oba.request.ObaStopIdsForAgencyResponse;
+import com.joulespersecond.oba.request.ObaStopRequest;
+import com.joulespersecond.oba.request.ObaStopResponse;
+import com.joulespersecond.oba.request.ObaStopsForRouteRequest;
+import com.joulespersecond.oba.request.ObaStopsForRouteResponse;
+import com.joulespersecond.oba.request.RequestExecutor;
+import com.joulespersecond.seattlebusbot.Application;
+import com.joulespersecond.seattlebusbot.BuildConfig;
+import com.joulespersecond.seattlebusbot.R;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.TrafficStats;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Downloads every route and stop of the agencies in a region into the
+ * local store, so they can be searched and shown on the map without the network.
+ *
+ * The route and stop IDs of each agency are compared with what's already
+ * stored, and only the missing ones are fetched: first the stops for each
+ * missing route, which brings most of the missing stops along with it,
+ * and then any stops that are left, one by one. Requests are spaced out by
+ * REQUEST_INTERVAL_MS. Because everything fetched is stored as it goes,
+ * an interrupted sync picks up where it left off the next time it runs.
+ *
+ * Progress is saved to the preferences every BATCH_SIZE items. All the
+ * requests are low priority, so they wait for anything the user is doing.
+ *
+ * Stops the server no longer knows about, and routes it sends back without
+ * the route itself, are skipped. Their IDs are saved with the progress so
+ * they aren't fetched again on the next run.
+ */
+public final class CatalogSyncTask implements Runnable {
+
+    private static final String TAG = "CatalogSyncTask";
+
+    private static final long REQUEST_INTERVAL_MS = 500;
+
+    private static final int BATCH_SIZE = 20;
+
+    private static final String SKIPPED_SEPARATOR = "\n";
+
+    private final Context mContext;
+
+    private final long mRegionId;
+
+    private final Runnable mOnComplete;
+
+    private final SharedPreferences mPrefs;
+
+    private long mStartBytes;
+
+    private long mLastRequest = 0;
+
+    private int mDone = 0;
+
+    private int mTotal = 0;
+
+    // IDs the server couldn't give us, for this region
+    private final HashSet<String> mSkipped = new HashSet<String>();
+
+    public CatalogSyncTask(Context context, long regionId, Runnable onComplete) {
+        mContext = context;
+        mRegionId = regionId;
+        mOnComplete = onComplete;
+        mPrefs = Application.getPrefs();
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (sync()) {
+                saveProgress(System.currentTimeMillis());
+            }
+        } catch (InterruptedException e) {
+            // Whatever was fetched is stored, the next sync continues from there.
+            saveProgress(0);
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Interrupted after " + mDone + " of " + mTotal);
+            }
+        } finally {
+            mOnComplete.run();
+        }
+    }
+
+    /**
+     * @return true if the catalog is complete.
+     */
+    private boolean sync() throws InterruptedException {
+        mStartBytes = getReceivedBytes();
+        loadSkipped();
+        saveProgress(0);
+
+        ObaAgenciesWithCoverageRequest agenciesRequest =
+                new ObaAgenciesWithCoverageRequest.Builder(mContext).build();
+        agenciesRequest.setPriority(RequestExecutor.PRIORITY_LOW);
+        ObaAgenciesWithCoverageResponse agencies = agenciesRequest.call();
+        if (agencies.getCode() != ObaApi.OBA_OK) {
+            return false;
+        }
+
+        final HashSet<String> knownRoutes = ObaContract.Routes.getIds(mContext, mRegionId);
+        final HashSet<String> knownStops = ObaContract.StopLocations.getIds(mContext, mRegionId);
+        final LinkedHashSet<String> routeIds = new LinkedHashSet<String>();
+        final LinkedHashSet<String> stopIds = new LinkedHashSet<String>();
+
+        for (ObaAgencyWithCoverage agency : agencies.getAgencies()) {
+            throttle();
+            ObaRouteIdsForAgencyRequest routesRequest =
+                    ObaRouteIdsForAgencyRequest.newRequest(mContext, agency.getId());
+            routesRequest.setPriority(RequestExecutor.PRIORITY_LOW);
+            ObaRouteIdsForAgencyResponse routes = routesRequest.call();
+            throttle();
+            ObaStopIdsForAgencyRequest stopsRequest =
+                    ObaStopIdsForAgencyRequest.newRequest(mContext, agency.getId());
+            stopsRequest.setPriority(RequestExecutor.PRIORITY_LOW);
+            ObaStopIdsForAgencyResponse stops = stopsRequest.call();
+            if (routes.getCode() != ObaApi.OBA_OK || stops.getCode() != ObaApi.OBA_OK) {
+                return false;
+            }
+            for (String id : routes.getRouteIds()) {
+                if (!knownRoutes.contains(id) && !mSkipped.contains(id)) {
+                    routeIds.add(id);
+                }
+            }
+            for (String id : stops.getStopIds()) {
+                if (!knownStops.contains(id) && !mSkipped.contains(id)) {
+                    stopIds.add(id);
+                }
+            }
+        }
+        mTotal = routeIds.size() + stopIds.size();
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Missing " + routeIds.size() + " routes, " + stopIds.size() + " stops, "
+                    + mSkipped.size() + " skipped");
+        }
+
+        for (String routeId : routeIds) {
+            throttle();
+            ObaStopsForRouteRequest request = new ObaStopsForRouteRequest.Builder(
+                    mContext, routeId)
+                    .setIncludeShapes(false)
+                    .build();
+            request.setPriority(RequestExecutor.PRIORITY_LOW);
+            ObaStopsForRouteResponse response = request.call();
+            if (response.getCode() != ObaApi.OBA_OK) {
+                return false;
+            }
+            ObaRoute route = response.getRoute(routeId);
+            if (route != null) {
+                saveRoute(route);
+            } else {
+                // Without the route there's nothing to store; its stops still are.
+                skip(routeId);
+            }
+            List<ObaStop> stops = response.getStops();
+            ObaContract.StopLocations.insert(mContext, mRegionId, stops);
+            for (ObaStop stop : stops) {
+                if (stopIds.remove(stop.getId())) {
+                    --mTotal;
+                }
+            }
+            onItemDone();
+        }
+
+        ArrayList<ObaStop> batch = new ArrayList<ObaStop>(BATCH_SIZE);
+        try {
+            for (String stopId : stopIds) {
+                throttle();
+                ObaStopRequest request = ObaStopRequest.newRequest(mContext, stopId);
+                request.setPriority(RequestExecutor.PRIORITY_LOW);
+                ObaStopResponse stop = request.call();
+                final int code = stop.getCode();
+                if (code == ObaApi.OBA_NOT_FOUND) {
+                    // Listed for the agency but gone; no point asking again.
+                    skip(stopId);
+                } else if (code != ObaApi.OBA_OK) {
+                    return false;
+                } else {
+                    batch.add(stop);
+                }
+                if (batch.size() == BATCH_SIZE) {
+                    ObaContract.StopLocations.insert(mContext, mRegionId, batch);
+                    batch.clear();
+                }
+                onItemDone();
+            }
+        } finally {
+            // However we leave, even when throttle() is interrupted,
+            // keep the stops we already have.
+            ObaContract.StopLocations.insert(mContext, mRegionId, batch);
+        }
+        return true;
+    }
+
+    private void saveRoute(ObaRoute route) {
+        ContentValues values = new ContentValues();
+        values.put(ObaContract.Routes.SHORTNAME,
+                route.getShortName() != null ? route.getShortName() : "");
+        values.put(ObaContract.Routes.LONGNAME, route.getLongName());
+        values.put(ObaContract.Routes.URL, route.getUrl());
+        values.put(ObaContract.Routes.REGION_ID, mRegionId);
+        // Not marked as used, so it doesn't show up in the recent routes.
+        ObaContract.Routes.insertOrUpdate(mContext, route.getId(), values, false);
+    }
+
+    private void skip(String id) {
+        mSkipped.add(id);
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Skipping " + id);
+        }
+    }
+
+    //
+    // The skipped IDs are only kept for the region they were found in.
+    //
+    private void loadSkipped() {
+        mSkipped.clear();
+        if (mPrefs.getLong(mContext.getString(R.string.preference_key_catalog_sync_region), -1)
+                != mRegionId) {
+            return;
+        }
+        final String skipped = mPrefs.getString(
+                mContext.getString(R.string.preference_key_catalog_sync_skipped), "");
+        for (String id : skipped.split(SKIPPED_SEPARATOR)) {
+            if (id.length() > 0) {
+                mSkipped.add(id);
+            }
+        }
+    }
+
+    private void onItemDone() {
+        ++mDone;
+        if (mDone % BATCH_SIZE == 0) {
+            saveProgress(0);
+        }
+    }
+
+    //
+    // Waits until the next request is allowed. Gives up if the
+    // thread is interrupted or we're no longer on an unmetered network.
+    //
+    private void throttle() throws InterruptedException {
+        final long wait = mLastRequest + REQUEST_INTERVAL_MS - SystemClock.elapsedRealtime();
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+        if (Thread.interrupted() || !canSync(mContext)) {
+            throw new InterruptedException();
+        }
+        mLastRequest = SystemClock.elapsedRealtime();
+    }
+
+    //
+    // Saves the progress, with the time it completed or 0 if it hasn't.
+    //
+    private void saveProgress(long completeTime) {
+        final long bytes = mStartBytes != TrafficStats.UNSUPPORTED
+                ? getReceivedBytes() - mStartBytes : -1;
+        mPrefs.edit()
+                .putLong(mContext.getString(R.string.preference_key_catalog_sync_region),
+                        mRegionId)
+                .putLong(mContext.getString(R.string.preference_key_catalog_sync_time),
+                        completeTime)
+                .putInt(mContext.getString(R.string.preference_key_catalog_sync_done), mDone)
+                .putInt(mContext.getString(R.string.preference_key_catalog_sync_total), mTotal)
+                .putLong(mContext.getString(R.string.preference_key_catalog_sync_bytes), bytes)
+                .putString(mContext.getString(R.string.preference_key_catalog_sync_skipped),
+                        TextUtils.join(SKIPPED_SEPARATOR, mSkipped))
+                .commit();
+    }
+
+    // The bytes received by the whole app, since there's nothing finer
+    // grained; other requests made during the sync are counted too.
+    private static long getReceivedBytes() {
+        return TrafficStats.getUidRxBytes(Process.myUid());
+    }
+
+    /**
+     * @return true if the user allows syncing and we're on Wi-Fi.
+     */
+    public static boolean canSync(Context context) {
+        if (!Application.getPrefs().getBoolean(
+                context.getString(R.string.preference_key_catalog_sync), false)) {
+            return false;
+        }
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.isConnected()
+                && info.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+}
@@ -97,6 +97,21 @@ public interface MapModeController {
 
         // Removes the route from the map
         void removeRouteOverlay();
+
+        // Sets the listener told about touches and redraws, or null to remove it
+        void setOnMapMotionListener(OnMapMotionListener listener);
+    }
+
+    /**
+     * Told when the user touches the map and when the map is redrawn,
+     * which is what happens whenever the map center or zoom moves.
+     * Used by MapWatcher to know when to look at the map, instead of polling it.
+     */
+    interface OnMapMotionListener {
+
+        void onMapTouch(boolean down);
+
+        void onMapRedraw();
     }
 
     String getMode();
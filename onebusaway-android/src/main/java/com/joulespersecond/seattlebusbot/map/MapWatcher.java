@@ -24,9 +24,15 @@ import com.joulespersecond.seattlebusbot.util.LocationHelp;
  * Because the map object doesn't seem to have callbacks when the map
  * center or zoom is changed, we have our own watcher for it.
  *
+ * Rather than polling, the watcher listens for touches and redraws of
+ * the map view. The "changing" events fire on the first frame that moves
+ * the map. Every frame of a pan, fling or zoom animation pushes back
+ * a single check, and the "changed" events fire once the map has been
+ * still for SETTLE_TIME. Nothing at all runs while the map is idle.
+ *
  * @author paulw
  */
-public class MapWatcher {
+public class MapWatcher implements MapModeController.OnMapMotionListener {
 
     public interface Listener {
 
@@ -39,9 +45,11 @@ public class MapWatcher {
         public void onMapZoomChanged();
     }
 
-    private static final int WAIT_TIME = 1000;
+    // How long the map must be still after the last frame before we look at it
+    private static final int SETTLE_TIME = 200;
 
-    private static final int POLL_TIME = 250;
+    // How long to wait after the finger lifts, to give a fling time to start
+    private static final int TOUCH_UP_TIME = 300;
 
     private final MapModeController.ObaMapView mObaMapView;
 
@@ -51,11 +59,14 @@ public class MapWatcher {
 
     private Location mCurrentCenter;
 
-    private long mCurrentCenterMillis;
-
     private float mCurrentZoom;
 
-    private long mCurrentZoomMillis;
+    private boolean mTouching = false;
+
+    // Whether the "changing" event has fired for the current motion
+    private boolean mCenterChanging = false;
+
+    private boolean mZoomChanging = false;
 
     private final Runnable mChecker = new Runnable() {
         @Override
@@ -66,24 +77,23 @@ public class MapWatcher {
             final boolean centerChanged = !LocationHelp.fuzzyEquals(newCenter, mCurrentCenter);
             final boolean zoomChanged = newZoom != mCurrentZoom;
 
-            final long now = System.currentTimeMillis();
             if (centerChanged) {
-                mCurrentCenterMillis = now;
-                mListener.onMapCenterChanging();
                 mCurrentCenter = newCenter;
-            } else if (mCurrentCenterMillis != 0 && (now - mCurrentCenterMillis) > WAIT_TIME) {
+                if (!mCenterChanging) {
+                    // Moved between frames we didn't see, or by checkNow().
+                    mListener.onMapCenterChanging();
+                }
                 mListener.onMapCenterChanged();
-                mCurrentCenterMillis = 0;
             }
             if (zoomChanged) {
-                mCurrentZoomMillis = now;
-                mListener.onMapZoomChanging();
                 mCurrentZoom = newZoom;
-            } else if (mCurrentZoomMillis != 0 && (now - mCurrentZoomMillis) > WAIT_TIME) {
+                if (!mZoomChanging) {
+                    mListener.onMapZoomChanging();
+                }
                 mListener.onMapZoomChanged();
-                mCurrentZoomMillis = 0;
             }
-            mHandler.postDelayed(mChecker, POLL_TIME);
+            mCenterChanging = false;
+            mZoomChanging = false;
         }
     };
 
@@ -99,13 +109,17 @@ public class MapWatcher {
     public void start() {
         mCurrentCenter = mObaMapView.getMapCenterAsLocation();
         mCurrentZoom = mObaMapView.getZoomLevelAsFloat();
-        mHandler.postDelayed(mChecker, POLL_TIME);
+        mTouching = false;
+        mCenterChanging = false;
+        mZoomChanging = false;
+        mObaMapView.setOnMapMotionListener(this);
     }
 
     /**
      * Stop watching.
      */
     public void stop() {
+        mObaMapView.setOnMapMotionListener(null);
         mHandler.removeCallbacks(mChecker);
     }
 
@@ -117,4 +131,43 @@ public class MapWatcher {
         mHandler.removeCallbacks(mChecker);
         mChecker.run();
     }
+
+    @Override
+    public void onMapTouch(boolean down) {
+        mTouching = down;
+        mHandler.removeCallbacks(mChecker);
+        if (!down) {
+            mHandler.postDelayed(mChecker, TOUCH_UP_TIME);
+        }
+    }
+
+    @Override
+    public void onMapRedraw() {
+        checkChanging();
+        if (mTouching) {
+            // We'll check when the finger lifts.
+            return;
+        }
+        mHandler.removeCallbacks(mChecker);
+        mHandler.postDelayed(mChecker, SETTLE_TIME);
+    }
+
+    /**
+     * Fires the "changing" events the first time a frame shows the map
+     * has moved. Once both have fired, this doesn't look at the map again
+     * until the motion settles.
+     */
+    private void checkChanging() {
+        if (!mCenterChanging) {
+            Location center = mObaMapView.getMapCenterAsLocation();
+            if (!LocationHelp.fuzzyEquals(center, mCurrentCenter)) {
+                mCenterChanging = true;
+                mListener.onMapCenterChanging();
+            }
+        }
+        if (!mZoomChanging && mObaMapView.getZoomLevelAsFloat() != mCurrentZoom) {
+            mZoomChanging = true;
+            mListener.onMapZoomChanging();
+        }
+    }
 }
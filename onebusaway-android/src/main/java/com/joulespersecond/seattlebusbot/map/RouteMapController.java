@@ -29,6 +29,7 @@ import android.widget.TextView;
 import com.joulespersecond.oba.ObaApi;
 import com.joulespersecond.oba.elements.ObaRoute;
 import com.joulespersecond.oba.elements.ObaStop;
+import com.joulespersecond.oba.provider.ObaContract;
 import com.joulespersecond.oba.request.ObaStopsForRouteRequest;
 import com.joulespersecond.oba.request.ObaStopsForRouteResponse;
 import com.joulespersecond.seattlebusbot.Application;
@@ -245,10 +246,15 @@ public class RouteMapController implements MapModeController,
                 return null;
             }
             //Make OBA REST API call to the server and return result
-            return new ObaStopsForRouteRequest.Builder(getContext(), mRouteId)
-                    .setIncludeShapes(true)
-                    .build()
-                    .call();
+            ObaStopsForRouteResponse response =
+                    new ObaStopsForRouteRequest.Builder(getContext(), mRouteId)
+                            .setIncludeShapes(true)
+                            .build()
+                            .call();
+            if (response.getCode() == ObaApi.OBA_OK) {
+                ObaContract.StopLocations.insert(getContext(), response.getStops());
+            }
+            return response;
         }
 
         @Override
@@ -27,16 +27,23 @@ import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.android.gms.location.LocationClient;
 import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.elements.ObaReferences;
+import com.joulespersecond.oba.elements.ObaRegion;
 import com.joulespersecond.oba.elements.ObaStop;
+import com.joulespersecond.oba.provider.ObaContract;
 import com.joulespersecond.oba.region.RegionUtils;
 import com.joulespersecond.oba.request.ObaStopsForLocationRequest;
 import com.joulespersecond.oba.request.ObaStopsForLocationResponse;
+import com.joulespersecond.oba.request.RequestExecutor;
+import com.joulespersecond.oba.request.RequestFuture;
 import com.joulespersecond.seattlebusbot.Application;
 import com.joulespersecond.seattlebusbot.BuildConfig;
 import com.joulespersecond.seattlebusbot.map.googlemapsv1.BaseMapActivity;
 import com.joulespersecond.seattlebusbot.util.LocationHelp;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 final class StopsRequest {
@@ -79,56 +86,119 @@ final class StopsResponse {
 
     private final ObaStopsForLocationResponse mResponse;
 
+    private final List<ObaStop> mStops;
+
+    private final ObaReferences mRefs;
+
+    private final boolean mFromTiles;
+
+    private boolean mNeedsRefresh = false;
+
     StopsResponse(StopsRequest req, ObaStopsForLocationResponse response) {
         mRequest = req;
         mResponse = response;
+        mFromTiles = false;
+        if (response != null) {
+            mStops = Arrays.asList(response.getStops());
+            mRefs = response;
+        } else {
+            mStops = null;
+            mRefs = null;
+        }
+    }
+
+    /**
+     * A response built from the tile cache. The response is the last network
+     * response that went into it, or null if it came entirely from the cache.
+     */
+    StopsResponse(StopsRequest req, ObaStopsForLocationResponse response,
+            StopTileCache.Merged merged) {
+        mRequest = req;
+        mResponse = response;
+        mStops = merged.getStopList();
+        mRefs = merged;
+        mFromTiles = true;
     }
 
     StopsRequest getRequest() {
         return mRequest;
     }
 
+    /**
+     * Marks this as coming only from local data, to be followed by a server request.
+     */
+    void setNeedsRefresh() {
+        mNeedsRefresh = true;
+    }
+
+    boolean needsRefresh() {
+        return mNeedsRefresh;
+    }
+
+    /**
+     * @return The network response, or null if there wasn't one.
+     */
     ObaStopsForLocationResponse getResponse() {
         return mResponse;
     }
 
+    /**
+     * @return The stops to show, or null if there are none to show.
+     */
+    List<ObaStop> getStops() {
+        return mStops;
+    }
+
+    ObaReferences getRefs() {
+        return mRefs;
+    }
+
     /**
      * Returns true if newReq also fulfills response.
+     * This is only used when the viewport is too big for the tile cache.
      */
     boolean fulfills(StopsRequest newReq) {
         if (mRequest.getCenter() == null) {
             //Log.d(TAG, "No center");
             return false;
         }
-        if (!mRequest.getCenter().equals(newReq.getCenter())) {
-            //Log.d(TAG, "Center not the same");
+        if (mResponse == null || mFromTiles) {
             return false;
         }
-        if (mResponse != null) {
-            if ((newReq.getZoomLevel() > mRequest.getZoomLevel()) &&
-                    mResponse.getLimitExceeded()) {
-                //Log.d(TAG, "Zooming in -- limit exceeded");
-                return false;
-            } else if (newReq.getZoomLevel() < mRequest.getZoomLevel()) {
-                //Log.d(TAG, "Zooming out");
-                return false;
-            }
+        if ((newReq.getZoomLevel() > mRequest.getZoomLevel()) &&
+                mResponse.getLimitExceeded()) {
+            //Log.d(TAG, "Zooming in -- limit exceeded");
+            return false;
         }
-        return true;
-
-        // Otherwise:
-
-        // If the new request's is zoomed in and the current
-        // response has limitExceeded, then no.
 
         // If the new request's lat/lon span is contained
         // entirely within the old one:
         //  Then the new request is fulfilled IFF the old request's
         //  limitExceeded == false.
+        // Otherwise it isn't.
+        if (!mRequest.getCenter().equals(newReq.getCenter())) {
+            if (!contains(newReq) || mResponse.getLimitExceeded()) {
+                //Log.d(TAG, "Center moved outside of the old span");
+                return false;
+            }
+        } else if (newReq.getZoomLevel() < mRequest.getZoomLevel()) {
+            //Log.d(TAG, "Zooming out");
+            return false;
+        }
+        return true;
+    }
 
-        // If the new request's lat/lon span is not contained
-        // entirely within the old one (fuzzy match)
-        //  FALSE
+    private boolean contains(StopsRequest newReq) {
+        final Location oldCenter = mRequest.getCenter();
+        final Location newCenter = newReq.getCenter();
+        final double oldHalfLat = mRequest.getLatSpan() / 2;
+        final double oldHalfLon = mRequest.getLonSpan() / 2;
+        final double newHalfLat = newReq.getLatSpan() / 2;
+        final double newHalfLon = newReq.getLonSpan() / 2;
+        return newCenter.getLatitude() - newHalfLat >= oldCenter.getLatitude() - oldHalfLat
+                && newCenter.getLatitude() + newHalfLat <= oldCenter.getLatitude() + oldHalfLat
+                && newCenter.getLongitude() - newHalfLon >= oldCenter.getLongitude() - oldHalfLon
+                && newCenter.getLongitude() + newHalfLon <= oldCenter.getLongitude() + oldHalfLon;
     }
 }
 
@@ -252,18 +322,22 @@ public class StopMapController implements MapModeController,
             StopsResponse _response) {
         mFragment.showProgress(false);
         final ObaStopsForLocationResponse response = _response.getResponse();
-        if (response == null) {
+        final List<ObaStop> stops = _response.getStops();
+        if (stops == null) {
             return;
         }
 
-        if (response.getCode() != ObaApi.OBA_OK) {
-            BaseMapActivity.showMapError(mFragment.getActivity(), response);
-            return;
-        }
+        // A response from the tile cache alone has already passed these checks.
+        if (response != null) {
+            if (response.getCode() != ObaApi.OBA_OK) {
+                BaseMapActivity.showMapError(mFragment.getActivity(), response);
+                return;
+            }
 
-        if (response.getOutOfRange()) {
-            mFragment.notifyOutOfRange();
-            return;
+            if (response.getOutOfRange()) {
+                mFragment.notifyOutOfRange();
+                return;
+            }
         }
 
         //Workaround for https://github.com/OneBusAway/onebusaway-application-modules/issues/59
@@ -283,7 +357,7 @@ public class StopMapController implements MapModeController,
                         + ", long = " + myLocation.getLongitude());
             }
 
-            if (!inRegion && Arrays.asList(response.getStops()).isEmpty()) {
+            if (!inRegion && stops.isEmpty()) {
                 if (BuildConfig.DEBUG) {
                     Log.d(TAG, "Device location is outside region range, notifying...");
                 }
@@ -292,8 +366,7 @@ public class StopMapController implements MapModeController,
             }
         }
 
-        List<ObaStop> stops = Arrays.asList(response.getStops());
-        mFragment.showStops(stops, response);
+        mFragment.showStops(stops, _response.getRefs());
     }
 
     @Override
@@ -339,12 +412,25 @@ public class StopMapController implements MapModeController,
     //
     private static class StopsLoader extends AsyncTaskLoader<StopsResponse> {
 
+        // With more tiles missing than this, one request for the area is quicker.
+        private static final int MAX_TILE_REQUESTS = 3;
+
         private final Callback mFragment;
 
+        private final StopTileCache mCache = StopTileCache.getInstance();
+
         private StopsRequest mRequest;
 
         private StopsResponse mResponse;
 
+        private Long mRegionId;
+
+        // The tile requests of the load in progress
+        private final ArrayList<RequestFuture<?>> mFutures = new ArrayList<RequestFuture<?>>();
+
+        // Counts the calls to cancelLoad(), guarded by mFutures
+        private int mCancelCount = 0;
+
         public StopsLoader(Callback fragment) {
             super(fragment.getActivity());
             mFragment = fragment;
@@ -352,6 +438,10 @@ public class StopMapController implements MapModeController,
 
         @Override
         public StopsResponse loadInBackground() {
+            final int cancelCount;
+            synchronized (mFutures) {
+                cancelCount = mCancelCount;
+            }
             StopsRequest req = mRequest;
             if (Application.get().getCurrentRegion() == null &&
                     TextUtils.isEmpty(Application.get().getCustomApiUrl())) {
@@ -362,20 +452,211 @@ public class StopMapController implements MapModeController,
                 }
                 return new StopsResponse(req, null);
             }
-            //Make OBA REST API call to the server and return result
-            ObaStopsForLocationResponse response =
-                    new ObaStopsForLocationRequest.Builder(getContext(),
-                            req.getCenter())
-                            .setSpan(req.getLatSpan(), req.getLonSpan())
-                            .build()
-                            .call();
-            return new StopsResponse(req, response);
+
+            long[] tiles = StopTileCache.getTiles(req);
+            if (tiles == null) {
+                //Zoomed out too far for tiles, so make OBA REST API call for the
+                //whole viewport and return result
+                List<RequestFuture<ObaStopsForLocationResponse>> futures = execute(cancelCount,
+                        Collections.singletonList(new ObaStopsForLocationRequest.Builder(
+                                getContext(), req.getCenter())
+                                .setSpan(req.getLatSpan(), req.getLonSpan())
+                                .build()));
+                ObaStopsForLocationResponse response = getResponse(futures, 0);
+                if (response == null) {
+                    // Cancelled
+                    return new StopsResponse(req, null);
+                }
+                if (response.getCode() == ObaApi.OBA_OK) {
+                    ObaContract.StopLocations.insert(getContext(),
+                            Arrays.asList(response.getStops()));
+                }
+                return new StopsResponse(req, response);
+            }
+
+            //Before going to the server, fill in tiles we've never seen with
+            //the stops we already know about, and show those first
+            if (seedFromStore(tiles)) {
+                StopsResponse seeded = new StopsResponse(req, null, mCache.merge(tiles));
+                seeded.setNeedsRefresh();
+                return seeded;
+            }
+
+            //Only ask the server for the tiles we don't already have
+            List<Long> missing = mCache.getMissingTiles(tiles);
+            if (missing.size() > MAX_TILE_REQUESTS) {
+                return loadArea(cancelCount, req, tiles, missing);
+            }
+            //A few at once
+            ArrayList<ObaStopsForLocationRequest> requests =
+                    new ArrayList<ObaStopsForLocationRequest>(missing.size());
+            for (long tile : missing) {
+                requests.add(new ObaStopsForLocationRequest.Builder(getContext(),
+                        LocationHelp.makeLocation(StopTileCache.getTileCenterLat(tile),
+                                StopTileCache.getTileCenterLon(tile)))
+                        .setSpan(StopTileCache.getTileLatSpan(tile),
+                                StopTileCache.getTileLonSpan())
+                        .build());
+            }
+            List<RequestFuture<ObaStopsForLocationResponse>> futures =
+                    execute(cancelCount, requests);
+            ObaStopsForLocationResponse response = null;
+            for (int i = 0; i < missing.size(); ++i) {
+                response = getResponse(futures, i);
+                if (response == null) {
+                    // Cancelled
+                    return new StopsResponse(req, null);
+                }
+                if (response.getCode() != ObaApi.OBA_OK || response.getOutOfRange()) {
+                    cancel(futures);
+                    return new StopsResponse(req, response);
+                }
+                ObaContract.StopLocations.insert(getContext(),
+                        Arrays.asList(response.getStops()));
+                // Like loadArea, don't trust a truncated response: it's shown,
+                // but the tile is fetched again next time.
+                if (response.getLimitExceeded()) {
+                    mCache.putStale(missing.get(i), response);
+                } else {
+                    mCache.put(missing.get(i), response);
+                }
+            }
+            StopTileCache.Merged merged = mCache.merge(tiles);
+            if (merged == null) {
+                return new StopsResponse(req, response);
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Showing " + merged.getStopList().size() + " stops from "
+                        + tiles.length + " tiles");
+            }
+            return new StopsResponse(req, response, merged);
+        }
+
+        //
+        // Gets the missing tiles with one request for the area they cover,
+        // which is quicker than many tile requests when the map is empty.
+        //
+        private StopsResponse loadArea(int cancelCount, StopsRequest req, long[] tiles,
+                List<Long> missing) {
+            double minLat = Double.MAX_VALUE;
+            double maxLat = -Double.MAX_VALUE;
+            double minLon = Double.MAX_VALUE;
+            double maxLon = -Double.MAX_VALUE;
+            for (long tile : missing) {
+                final double lat = StopTileCache.getTileCenterLat(tile);
+                final double lon = StopTileCache.getTileCenterLon(tile);
+                final double halfLat = StopTileCache.getTileLatSpan(tile) / 2;
+                final double halfLon = StopTileCache.getTileLonSpan() / 2;
+                minLat = Math.min(minLat, lat - halfLat);
+                maxLat = Math.max(maxLat, lat + halfLat);
+                minLon = Math.min(minLon, lon - halfLon);
+                maxLon = Math.max(maxLon, lon + halfLon);
+            }
+            List<RequestFuture<ObaStopsForLocationResponse>> futures = execute(cancelCount,
+                    Collections.singletonList(new ObaStopsForLocationRequest.Builder(
+                            getContext(), LocationHelp.makeLocation((minLat + maxLat) / 2,
+                            (minLon + maxLon) / 2))
+                            .setSpan(maxLat - minLat, maxLon - minLon)
+                            .build()));
+            ObaStopsForLocationResponse response = getResponse(futures, 0);
+            if (response == null) {
+                // Cancelled
+                return new StopsResponse(req, null);
+            }
+            if (response.getCode() != ObaApi.OBA_OK || response.getOutOfRange()) {
+                return new StopsResponse(req, response);
+            }
+            ObaContract.StopLocations.insert(getContext(), Arrays.asList(response.getStops()));
+            if (response.getLimitExceeded()) {
+                // Some stops were left out, so the tiles would be incomplete.
+                return new StopsResponse(req, response);
+            }
+            for (long tile : missing) {
+                mCache.put(tile, response);
+            }
+            StopTileCache.Merged merged = mCache.merge(tiles);
+            return merged != null ? new StopsResponse(req, response, merged)
+                    : new StopsResponse(req, response);
+        }
+
+        //
+        // Starts the requests at once, unless the load has been cancelled.
+        //
+        private List<RequestFuture<ObaStopsForLocationResponse>> execute(int cancelCount,
+                List<ObaStopsForLocationRequest> requests) {
+            ArrayList<RequestFuture<ObaStopsForLocationResponse>> futures =
+                    new ArrayList<RequestFuture<ObaStopsForLocationResponse>>(requests.size());
+            synchronized (mFutures) {
+                if (cancelCount != mCancelCount) {
+                    return futures;
+                }
+                for (ObaStopsForLocationRequest request : requests) {
+                    RequestFuture<ObaStopsForLocationResponse> future =
+                            RequestExecutor.execute(request, RequestExecutor.PRIORITY_NORMAL);
+                    futures.add(future);
+                    mFutures.add(future);
+                }
+            }
+            return futures;
+        }
+
+        //
+        // Waits for a response, and returns null if it was cancelled.
+        //
+        private ObaStopsForLocationResponse getResponse(
+                List<RequestFuture<ObaStopsForLocationResponse>> futures, int i) {
+            if (i >= futures.size()) {
+                return null;
+            }
+            RequestFuture<ObaStopsForLocationResponse> future = futures.get(i);
+            ObaStopsForLocationResponse response = future.getResponse();
+            synchronized (mFutures) {
+                mFutures.remove(future);
+            }
+            return response;
+        }
+
+        private void cancel(List<RequestFuture<ObaStopsForLocationResponse>> futures) {
+            synchronized (mFutures) {
+                for (RequestFuture<ObaStopsForLocationResponse> future : futures) {
+                    // Does nothing to the ones that are done.
+                    future.cancel(false);
+                }
+                mFutures.removeAll(futures);
+            }
+        }
+
+        /**
+         * @return true if any tiles were filled in from the local stop store.
+         */
+        private boolean seedFromStore(long[] tiles) {
+            boolean seeded = false;
+            for (long tile : tiles) {
+                if (mCache.contains(tile)) {
+                    continue;
+                }
+                final double lat = StopTileCache.getTileCenterLat(tile);
+                final double lon = StopTileCache.getTileCenterLon(tile);
+                final double halfLat = StopTileCache.getTileLatSpan(tile) / 2;
+                final double halfLon = StopTileCache.getTileLonSpan() / 2;
+                List<ObaStop> stops = ObaContract.StopLocations.getStops(getContext(),
+                        mRegionId, lat - halfLat, lat + halfLat, lon - halfLon, lon + halfLon);
+                if (!stops.isEmpty()) {
+                    mCache.putStale(tile, stops);
+                    seeded = true;
+                }
+            }
+            return seeded;
         }
 
         @Override
         public void deliverResult(StopsResponse data) {
             mResponse = data;
             super.deliverResult(data);
+            if (data != null && data.needsRefresh()) {
+                // That was from the local store, now go to the server.
+                onContentChanged();
+            }
         }
 
         @Override
@@ -391,10 +672,48 @@ public class StopMapController implements MapModeController,
             super.onForceLoad();
         }
 
+        /**
+         * Also stops the requests for the tiles, when the map has moved on
+         * or the map is going away.
+         */
+        @Override
+        public boolean cancelLoad() {
+            final boolean result = super.cancelLoad();
+            synchronized (mFutures) {
+                ++mCancelCount;
+                for (RequestFuture<?> future : mFutures) {
+                    future.cancel(false);
+                }
+                mFutures.clear();
+            }
+            return result;
+        }
+
         public void update(StopsRequest req) {
-            if (mResponse == null || !mResponse.fulfills(req)) {
+            ObaRegion region = Application.get().getCurrentRegion();
+            mCache.checkRegion(region != null ? region.getId() : -1);
+            mRegionId = region != null ? region.getId() : null;
+
+            long[] tiles = StopTileCache.getTiles(req);
+            if (tiles == null) {
+                if (mResponse == null || !mResponse.fulfills(req)) {
+                    mRequest = req;
+                    onContentChanged();
+                }
+                return;
+            }
+
+            // Show whatever we already have for this viewport right away,
+            // and only go to the server if some of it is missing or stale.
+            StopTileCache.Merged merged = mCache.merge(tiles);
+            if (merged != null && isStarted()) {
+                deliverResult(new StopsResponse(req, null, merged));
+            }
+            if (merged == null || !mCache.getMissingTiles(tiles).isEmpty()) {
                 mRequest = req;
                 onContentChanged();
+            } else {
+                mRequest = req;
             }
         }
     }
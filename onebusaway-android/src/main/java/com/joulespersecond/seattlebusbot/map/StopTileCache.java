@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot.map;
+
+import com.joulespersecond.oba.elements.ObaAgency;
+import com.joulespersecond.oba.elements.ObaReferences;
+import com.joulespersecond.oba.elements.ObaRoute;
+import com.joulespersecond.oba.elements.ObaSituation;
+import com.joulespersecond.oba.elements.ObaStop;
+import com.joulespersecond.oba.elements.ObaTrip;
+import com.joulespersecond.oba.request.ObaStopsForLocationResponse;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches stops-for-location results on a fixed grid of Web Mercator tiles,
+ * so panning the map only has to fetch the tiles that just came into view.
+ * Tiles expire after TILE_TTL_MS and the least recently used are evicted
+ * once there are more than MAX_TILES of them.
+ *
+ * A tile key packs the tile's x and y at TILE_ZOOM into a long.
+ */
+public final class StopTileCache {
+
+    // At zoom 15 a tile is roughly 1.2km across at the equator.
+    public static final int TILE_ZOOM = 15;
+
+    private static final int TILES_PER_SIDE = 1 << TILE_ZOOM;
+
+    // Above this many tiles, the map is zoomed out too far to make tiles worthwhile.
+    static final int MAX_VIEWPORT_TILES = 16;
+
+    public static final int MAX_TILES = 256;
+
+    private static final long TILE_TTL_MS = 10 * 60 * 1000;
+
+    private static final class Tile {
+
+        final ObaStop[] stops;
+
+        final List<ObaRoute> routes;
+
+        final boolean limitExceeded;
+
+        final long time;
+
+        Tile(ObaStop[] stops, List<ObaRoute> routes, boolean limitExceeded, long time) {
+            this.stops = stops;
+            this.routes = routes;
+            this.limitExceeded = limitExceeded;
+            this.time = time;
+        }
+    }
+
+    private static final StopTileCache mInstance = new StopTileCache();
+
+    private final LinkedHashMap<Long, Tile> mTiles =
+            new LinkedHashMap<Long, Tile>(MAX_TILES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+                    return size() > MAX_TILES;
+                }
+            };
+
+    private long mRegionId = Long.MIN_VALUE;
+
+    private StopTileCache() {
+    }
+
+    public static StopTileCache getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Drops everything if the region has changed since the last call.
+     */
+    synchronized void checkRegion(long regionId) {
+        if (regionId != mRegionId) {
+            mTiles.clear();
+            mRegionId = regionId;
+        }
+    }
+
+    public synchronized void clear() {
+        mTiles.clear();
+    }
+
+    /**
+     * Returns the keys of the tiles that cover the request's viewport,
+     * or null if it would take more than MAX_VIEWPORT_TILES tiles.
+     */
+    static long[] getTiles(StopsRequest req) {
+        if (req.getCenter() == null) {
+            return null;
+        }
+        final double lat = req.getCenter().getLatitude();
+        final double lon = req.getCenter().getLongitude();
+        final double halfLat = req.getLatSpan() / 2;
+        final double halfLon = req.getLonSpan() / 2;
+
+        final int minX = getTileX(lon - halfLon);
+        final int maxX = getTileX(lon + halfLon);
+        // y grows towards the south
+        final int minY = getTileY(lat + halfLat);
+        final int maxY = getTileY(lat - halfLat);
+
+        final int count = (maxX - minX + 1) * (maxY - minY + 1);
+        if (count <= 0 || count > MAX_VIEWPORT_TILES) {
+            return null;
+        }
+        long[] result = new long[count];
+        int i = 0;
+        for (int x = minX; x <= maxX; ++x) {
+            for (int y = minY; y <= maxY; ++y) {
+                result[i++] = makeKey(x, y);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The subset of tiles that aren't cached, or have expired.
+     */
+    public synchronized List<Long> getMissingTiles(long[] tiles) {
+        final long now = SystemClock.elapsedRealtime();
+        ArrayList<Long> result = new ArrayList<Long>();
+        for (long key : tiles) {
+            Tile tile = mTiles.get(key);
+            if (tile == null || now - tile.time > TILE_TTL_MS) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stores the stops of a response that fall inside the given tile.
+     */
+    public synchronized void put(long key, ObaStopsForLocationResponse response) {
+        put(key, response, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Stores the stops of a response that fall inside the given tile,
+     * as already expired. This is for responses that were truncated:
+     * they're shown, but the tile is fetched again next time.
+     */
+    public synchronized void putStale(long key, ObaStopsForLocationResponse response) {
+        put(key, response, SystemClock.elapsedRealtime() - TILE_TTL_MS - 1);
+    }
+
+    private void put(long key, ObaStopsForLocationResponse response, long time) {
+        ObaStop[] all = response.getStops();
+        ArrayList<ObaStop> stops = new ArrayList<ObaStop>(all.length);
+        HashMap<String, ObaRoute> routes = new HashMap<String, ObaRoute>();
+        for (ObaStop stop : all) {
+            if (getTileKey(stop.getLatitude(), stop.getLongitude()) != key) {
+                continue;
+            }
+            stops.add(stop);
+            for (ObaRoute route : response.getRoutes(stop.getRouteIds())) {
+                routes.put(route.getId(), route);
+            }
+        }
+        mTiles.put(key, new Tile(stops.toArray(new ObaStop[stops.size()]),
+                new ArrayList<ObaRoute>(routes.values()),
+                response.getLimitExceeded(),
+                time));
+    }
+
+    /**
+     * @return true if anything at all is cached for this tile, even if it's expired.
+     */
+    public synchronized boolean contains(long key) {
+        return mTiles.containsKey(key);
+    }
+
+    /**
+     * Stores stops from the local stop store for a tile. The tile is stored
+     * as already expired, so it's shown right away but still fetched.
+     */
+    public synchronized void putStale(long key, List<ObaStop> stops) {
+        mTiles.put(key, new Tile(stops.toArray(new ObaStop[stops.size()]),
+                new ArrayList<ObaRoute>(),
+                false,
+                SystemClock.elapsedRealtime() - TILE_TTL_MS - 1));
+    }
+
+    /**
+     * Merges whatever is cached for these tiles, whether or not it's expired.
+     *
+     * @return The merged stops and references, or null if none of the tiles are cached.
+     */
+    synchronized Merged merge(long[] tiles) {
+        Merged result = null;
+        for (long key : tiles) {
+            Tile tile = mTiles.get(key);
+            if (tile == null) {
+                continue;
+            }
+            if (result == null) {
+                result = new Merged();
+            }
+            Collections.addAll(result.mStops, tile.stops);
+            for (ObaStop stop : tile.stops) {
+                result.mStopMap.put(stop.getId(), stop);
+            }
+            for (ObaRoute route : tile.routes) {
+                result.mRouteMap.put(route.getId(), route);
+            }
+            result.mLimitExceeded |= tile.limitExceeded;
+        }
+        return result;
+    }
+
+    public static long getTileKey(double lat, double lon) {
+        return makeKey(getTileX(lon), getTileY(lat));
+    }
+
+    private static long makeKey(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    private static int getTileX(double lon) {
+        int x = (int) Math.floor((lon + 180.0) / 360.0 * TILES_PER_SIDE);
+        return Math.max(0, Math.min(TILES_PER_SIDE - 1, x));
+    }
+
+    private static int getTileY(double lat) {
+        final double sin = Math.sin(Math.toRadians(lat));
+        final double y = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+        return Math.max(0, Math.min(TILES_PER_SIDE - 1, (int) Math.floor(y * TILES_PER_SIDE)));
+    }
+
+    /**
+     * @return The latitude of the tile's center, in degrees.
+     */
+    public static double getTileCenterLat(long key) {
+        final int y = (int) key;
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * (y + 0.5) / TILES_PER_SIDE))));
+    }
+
+    /**
+     * @return The longitude of the tile's center, in degrees.
+     */
+    public static double getTileCenterLon(long key) {
+        final int x = (int) (key >>> 32);
+        return (x + 0.5) / TILES_PER_SIDE * 360.0 - 180.0;
+    }
+
+    /**
+     * @return The height of the tile, in degrees of latitude.
+     */
+    public static double getTileLatSpan(long key) {
+        final int y = (int) key;
+        final double north = Math.atan(Math.sinh(Math.PI * (1 - 2.0 * y / TILES_PER_SIDE)));
+        final double south = Math.atan(Math.sinh(Math.PI * (1 - 2.0 * (y + 1) / TILES_PER_SIDE)));
+        return Math.toDegrees(north - south);
+    }
+
+    /**
+     * @return The width of the tile, in degrees of longitude.
+     */
+    public static double getTileLonSpan() {
+        return 360.0 / TILES_PER_SIDE;
+    }
+
+    /**
+     * The stops of several tiles, along with just enough references
+     * to show the routes serving each stop.
+     */
+    static final class Merged implements ObaReferences {
+
+        private final ArrayList<ObaStop> mStops = new ArrayList<ObaStop>();
+
+        private final HashMap<String, ObaStop> mStopMap = new HashMap<String, ObaStop>();
+
+        private final HashMap<String, ObaRoute> mRouteMap = new HashMap<String, ObaRoute>();
+
+        private boolean mLimitExceeded = false;
+
+        List<ObaStop> getStopList() {
+            return mStops;
+        }
+
+        boolean getLimitExceeded() {
+            return mLimitExceeded;
+        }
+
+        @Override
+        public ObaStop getStop(String id) {
+            return mStopMap.get(id);
+        }
+
+        @Override
+        public List<ObaStop> getStops(String[] ids) {
+            return findList(mStopMap, ids);
+        }
+
+        @Override
+        public ObaRoute getRoute(String id) {
+            return mRouteMap.get(id);
+        }
+
+        @Override
+        public List<ObaRoute> getRoutes(String[] ids) {
+            return findList(mRouteMap, ids);
+        }
+
+        @Override
+        public ObaTrip getTrip(String id) {
+            return null;
+        }
+
+        @Override
+        public List<ObaTrip> getTrips(String[] ids) {
+            return new ArrayList<ObaTrip>();
+        }
+
+        @Override
+        public ObaAgency getAgency(String id) {
+            return null;
+        }
+
+        @Override
+        public List<ObaAgency> getAgencies(String[] ids) {
+            return new ArrayList<ObaAgency>();
+        }
+
+        @Override
+        public ObaSituation getSituation(String id) {
+            return null;
+        }
+
+        @Override
+        public List<ObaSituation> getSituations(String[] ids) {
+            return new ArrayList<ObaSituation>();
+        }
+
+        private static <T> List<T> findList(HashMap<String, T> map, String[] ids) {
+            ArrayList<T> result = new ArrayList<T>(ids.length);
+            for (String id : ids) {
+                T obj = map.get(id);
+                if (obj != null) {
+                    result.add(obj);
+                }
+            }
+            return result;
+        }
+    }
+}
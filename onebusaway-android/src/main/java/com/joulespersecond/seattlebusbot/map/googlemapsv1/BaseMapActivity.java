@@ -38,6 +38,7 @@ import com.joulespersecond.oba.region.RegionUtils;
 import com.joulespersecond.oba.request.ObaResponse;
 import com.joulespersecond.seattlebusbot.Application;
 import com.joulespersecond.seattlebusbot.BuildConfig;
+import com.joulespersecond.seattlebusbot.CatalogService;
 import com.joulespersecond.seattlebusbot.R;
 import com.joulespersecond.seattlebusbot.map.MapModeController;
 import com.joulespersecond.seattlebusbot.map.MapParams;
@@ -442,6 +443,9 @@ abstract public class BaseMapActivity extends SherlockMapActivity
             setMyLocation();
         }
 
+        // Now that we know the region, fill in the local catalog if it needs it.
+        CatalogService.sync(this);
+
         // If region changed and was auto-selected, show user what region we're using
         if (currentRegionChanged
                 && Application.getPrefs()
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot.map.googlemapsv1;
+
+import com.joulespersecond.oba.elements.ObaPolyline;
+
+/**
+ * Works out, for every point of a line, the lowest zoom level at which
+ * the point needs to be drawn. At low zoom levels a long route collapses
+ * to a handful of points; at street level every point is kept.
+ *
+ * If the shape comes with encoded levels those are used: the encoders
+ * behind the OBA shapes step about ZOOMS_PER_LEVEL zoom levels per level,
+ * and every point is drawn by LEVEL_MAX_ZOOM, so even the lowest level shows
+ * up at street zooms. Otherwise the points are ranked by Douglas-Peucker:
+ * each point is kept once the zoom level is high enough that dropping it
+ * would move the line by more than TOLERANCE_PX pixels.
+ */
+public final class LineSimplifier {
+
+    public static final int MIN_ZOOM = 1;
+
+    public static final int MAX_ZOOM = 21;
+
+    static final int ZOOMS_PER_LEVEL = 4;
+
+    static final int LEVEL_MAX_ZOOM = 16;
+
+    private static final double TOLERANCE_PX = 1.0;
+
+    private LineSimplifier() {
+    }
+
+    /**
+     * @param line The decoded line.
+     * @param x    The Mercator x coordinates of the points (see MapHelp.mercatorX()).
+     * @param y    The Mercator y coordinates of the points (see MapHelp.mercatorY()).
+     * @return The minimum zoom level at which each point should be drawn.
+     */
+    public static byte[] getMinZoomLevels(ObaPolyline line, double[] x, double[] y) {
+        final int len = x.length;
+        byte[] result = new byte[len];
+        if (len <= 2) {
+            fill(result, MIN_ZOOM);
+            return result;
+        }
+        if (line.hasLevels() && fromLevels(line, result)) {
+            return result;
+        }
+        fromDistances(x, y, result);
+        return result;
+    }
+
+    private static boolean fromLevels(ObaPolyline line, byte[] result) {
+        final int len = result.length;
+        int minLevel = Integer.MAX_VALUE;
+        int maxLevel = 0;
+        for (int i = 0; i < len; ++i) {
+            minLevel = Math.min(minLevel, line.getLevel(i));
+            maxLevel = Math.max(maxLevel, line.getLevel(i));
+        }
+        if (minLevel >= maxLevel) {
+            // Every point has the same level, so they tell us nothing.
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            final int level = Math.max(line.getLevel(i), 0);
+            result[i] = (byte) Math.min(LEVEL_MAX_ZOOM,
+                    MIN_ZOOM + (maxLevel - level) * ZOOMS_PER_LEVEL);
+        }
+        result[0] = MIN_ZOOM;
+        result[len - 1] = MIN_ZOOM;
+        return true;
+    }
+
+    private static void fromDistances(double[] x, double[] y, byte[] result) {
+        final int len = x.length;
+        // The distance at which each point stops being redundant.
+        // A point can never matter more than the segment it splits.
+        double[] significance = new double[len];
+        significance[0] = Double.MAX_VALUE;
+        significance[len - 1] = Double.MAX_VALUE;
+
+        // Explicit stack of [first, last] ranges, so long lines can't overflow the call stack.
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = len - 1;
+        double[] parentStack = new double[32];
+        parentStack[0] = Double.MAX_VALUE;
+
+        while (top > 0) {
+            final int last = stack[--top];
+            final int first = stack[--top];
+            final double parent = parentStack[top / 2];
+            if (last - first < 2) {
+                continue;
+            }
+
+            int index = first + 1;
+            double maxDist = -1;
+            for (int i = first + 1; i < last; ++i) {
+                final double d = distanceToSegment(x[i], y[i], x[first], y[first],
+                        x[last], y[last]);
+                if (d > maxDist) {
+                    maxDist = d;
+                    index = i;
+                }
+            }
+            final double sig = Math.min(maxDist, parent);
+            significance[index] = sig;
+
+            if (top + 4 > stack.length) {
+                int[] newStack = new int[stack.length * 2];
+                System.arraycopy(stack, 0, newStack, 0, top);
+                stack = newStack;
+                double[] newParents = new double[stack.length / 2];
+                System.arraycopy(parentStack, 0, newParents, 0, parentStack.length);
+                parentStack = newParents;
+            }
+            parentStack[top / 2] = sig;
+            stack[top++] = first;
+            stack[top++] = index;
+            parentStack[top / 2] = sig;
+            stack[top++] = index;
+            stack[top++] = last;
+        }
+
+        // A point matters at zoom z when significance * worldSize(z) >= TOLERANCE_PX,
+        // and worldSize(z) = 128 * 2^z pixels.
+        for (int i = 0; i < len; ++i) {
+            final double sig = significance[i];
+            int zoom;
+            if (sig >= Double.MAX_VALUE) {
+                zoom = MIN_ZOOM;
+            } else if (sig <= 0) {
+                zoom = MAX_ZOOM;
+            } else {
+                zoom = (int) Math.ceil(Math.log(TOLERANCE_PX / (128 * sig)) / Math.log(2));
+            }
+            result[i] = (byte) Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+        }
+    }
+
+    private static double distanceToSegment(double px, double py,
+            double ax, double ay, double bx, double by) {
+        final double dx = bx - ax;
+        final double dy = by - ay;
+        final double lenSq = dx * dx + dy * dy;
+        double t = 0;
+        if (lenSq > 0) {
+            t = ((px - ax) * dx + (py - ay) * dy) / lenSq;
+            t = Math.max(0, Math.min(1, t));
+        }
+        final double ex = px - (ax + t * dx);
+        final double ey = py - (ay + t * dy);
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+    private static void fill(byte[] array, int value) {
+        for (int i = 0; i < array.length; ++i) {
+            array[i] = (byte) value;
+        }
+    }
+}
@@ -59,4 +59,38 @@ public class MapHelp {
         l.setLongitude(p.getLongitudeE6() / 1E6);
         return l;
     }
+
+    /**
+     * Converts a longitude to a Mercator x coordinate, where the whole world
+     * is 1.0 wide and 0.0 is at longitude -180.
+     *
+     * @param lonE6 The longitude, in degrees * 1E6.
+     * @return The Mercator x coordinate.
+     */
+    public static final double mercatorX(int lonE6) {
+        return lonE6 / 1E6 / 360.0 + 0.5;
+    }
+
+    /**
+     * Converts a latitude to a Mercator y coordinate, where the whole world
+     * is 1.0 high and 0.0 is at the top.
+     *
+     * @param latE6 The latitude, in degrees * 1E6.
+     * @return The Mercator y coordinate.
+     */
+    public static final double mercatorY(int latE6) {
+        final double sin = Math.sin(Math.toRadians(latE6 / 1E6));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    /**
+     * Returns the width in pixels of the whole world at a zoom level.
+     * In Maps API v1, the equator is 256 * 2^(zoomLevel - 1) pixels long.
+     *
+     * @param zoomLevel The zoom level, as returned by MapView.getZoomLevel().
+     * @return The width of the world, in pixels.
+     */
+    public static final double getWorldSize(int zoomLevel) {
+        return 128.0 * (1L << zoomLevel);
+    }
 }
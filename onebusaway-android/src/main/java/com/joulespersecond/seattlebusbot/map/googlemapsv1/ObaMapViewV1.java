@@ -23,13 +23,15 @@ import android.graphics.Path;
 import android.graphics.Point;
 import android.location.Location;
 import android.os.Build;
+import android.util.SparseArray;
+import android.view.MotionEvent;
 import android.view.View;
 
 import com.google.android.maps.GeoPoint;
 import com.google.android.maps.MapController;
 import com.google.android.maps.MapView;
 import com.google.android.maps.Overlay;
-import com.google.android.maps.Projection;
+import com.joulespersecond.oba.elements.ObaPolyline;
 import com.joulespersecond.oba.elements.ObaShape;
 import com.joulespersecond.seattlebusbot.map.MapModeController;
 
@@ -44,6 +46,8 @@ public class ObaMapViewV1 extends com.google.android.maps.MapView
 
     private LineOverlay mLineOverlay;
 
+    private MapModeController.OnMapMotionListener mMotionListener;
+
     // We have to convert from GeoPoint to Location, so hold references to both
     private GeoPoint mCenter;
     private Location mCenterLocation;
@@ -91,6 +95,35 @@ public class ObaMapViewV1 extends com.google.android.maps.MapView
         return super.getZoomLevel();
     }
 
+    @Override
+    public void setOnMapMotionListener(MapModeController.OnMapMotionListener listener) {
+        mMotionListener = listener;
+    }
+
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent ev) {
+        final MapModeController.OnMapMotionListener listener = mMotionListener;
+        if (listener != null) {
+            final int action = ev.getAction() & MotionEvent.ACTION_MASK;
+            if (action == MotionEvent.ACTION_DOWN) {
+                listener.onMapTouch(true);
+            } else if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+                listener.onMapTouch(false);
+            }
+        }
+        return super.dispatchTouchEvent(ev);
+    }
+
+    @Override
+    protected void dispatchDraw(Canvas canvas) {
+        super.dispatchDraw(canvas);
+        // Pans, flings and zooms all end up here, frame by frame.
+        final MapModeController.OnMapMotionListener listener = mMotionListener;
+        if (listener != null) {
+            listener.onMapRedraw();
+        }
+    }
+
     //
     // See this bug: http://code.google.com/p/android/issues/detail?id=24023
     // Large paths and HW acceleration don't mix, so we can disable it
@@ -140,12 +173,33 @@ public class ObaMapViewV1 extends com.google.android.maps.MapView
 
         public static final class Line {
 
-            private final List<GeoPoint> mPoints;
+            private final ObaPolyline mPolyline;
+
+            // Mercator coordinates of each point, where the world is 1.0 across,
+            // so drawing is just a scale and a translate.
+            private final double[] mX;
+
+            private final double[] mY;
+
+            // The lowest zoom level at which each point is drawn.
+            private final byte[] mMinZoom;
+
+            // Paths in pixels relative to the first point, per zoom level.
+            // Panning only moves the origin; zooming builds one new path.
+            private final SparseArray<Path> mPaths = new SparseArray<Path>();
 
             private final Paint mPaint;
 
-            public Line(int color, List<GeoPoint> points) {
-                mPoints = points;
+            public Line(int color, ObaPolyline polyline) {
+                mPolyline = polyline;
+                final int len = polyline.size();
+                mX = new double[len];
+                mY = new double[len];
+                for (int i = 0; i < len; ++i) {
+                    mX[i] = MapHelp.mercatorX(polyline.getLongitudeE6(i));
+                    mY[i] = MapHelp.mercatorY(polyline.getLatitudeE6(i));
+                }
+                mMinZoom = LineSimplifier.getMinZoomLevels(polyline, mX, mY);
                 mPaint = new Paint();
                 mPaint.setColor(color);
                 mPaint.setAlpha(128);
@@ -155,30 +209,58 @@ public class ObaMapViewV1 extends com.google.android.maps.MapView
                 mPaint.setStyle(Paint.Style.STROKE);
             }
 
-            public List<GeoPoint> getPoints() {
-                return mPoints;
+            public ObaPolyline getPolyline() {
+                return mPolyline;
             }
 
             public Paint getPaint() {
                 return mPaint;
             }
+
+            Path getPath(int zoomLevel) {
+                Path path = mPaths.get(zoomLevel);
+                if (path == null) {
+                    path = buildPath(zoomLevel);
+                    mPaths.put(zoomLevel, path);
+                }
+                return path;
+            }
+
+            private Path buildPath(int zoomLevel) {
+                final double worldSize = MapHelp.getWorldSize(zoomLevel);
+                final double[] x = mX;
+                final double[] y = mY;
+                final byte[] minZoom = mMinZoom;
+                final double originX = x[0];
+                final double originY = y[0];
+                final int numPts = x.length;
+
+                Path path = new Path();
+                path.moveTo(0, 0);
+                for (int j = 1; j < numPts; ++j) {
+                    if (minZoom[j] <= zoomLevel) {
+                        path.lineTo((float) ((x[j] - originX) * worldSize),
+                                (float) ((y[j] - originY) * worldSize));
+                    }
+                }
+                return path;
+            }
         }
 
         private ArrayList<Line> mLines = new ArrayList<Line>();
 
-        public void addLine(int color, List<GeoPoint> points) {
+        private final Point mCenterPt = new Point();
+
+        public void addLine(int color, ObaPolyline points) {
+            if (points.size() == 0) {
+                return;
+            }
             mLines.add(new Line(color, points));
             // TODO: Invalidate
         }
 
         public void addLine(int color, ObaShape line) {
-            List<Location> points = line.getPoints();
-            List<GeoPoint> geoPoints = new ArrayList<GeoPoint>();
-            for (Location p : points) {
-                geoPoints.add(MapHelp.makeGeoPoint(p));
-            }
-            mLines.add(new Line(color, geoPoints));
-            // TODO: Invalidate
+            addLine(color, line.getPolyline());
         }
 
         public void addLines(int color, ObaShape[] lines) {
@@ -203,28 +285,26 @@ public class ObaMapViewV1 extends com.google.android.maps.MapView
                 super.draw(canvas, mapView, shadow);
                 return;
             }
-            final Projection projection = mapView.getProjection();
-            Point pt = new Point();
+            final int zoomLevel = mapView.getZoomLevel();
+            final double worldSize = MapHelp.getWorldSize(zoomLevel);
+            // Project the center once, then place every line relative to it.
+            final GeoPoint center = mapView.getMapCenter();
+            mapView.getProjection().toPixels(center, mCenterPt);
+            final double offsetX = mCenterPt.x
+                    - MapHelp.mercatorX(center.getLongitudeE6()) * worldSize;
+            final double offsetY = mCenterPt.y
+                    - MapHelp.mercatorY(center.getLatitudeE6()) * worldSize;
 
-            // Convert points to coords and then call drawLines()
             final int len = mLines.size();
             // Log.d(TAG, String.format("Drawing %d line(s)", len));
 
-            Path path = new Path();
             for (int i = 0; i < len; ++i) {
                 final Line line = mLines.get(i);
-                final List<GeoPoint> geoPoints = line.getPoints();
-                int numPts = geoPoints.size();
-                projection.toPixels(geoPoints.get(0), pt);
-                path.moveTo(pt.x, pt.y);
-
-                int j = 1;
-                for (; j < numPts; ++j) {
-                    projection.toPixels(geoPoints.get(j), pt);
-                    path.lineTo(pt.x, pt.y);
-                }
-                canvas.drawPath(path, line.getPaint());
-                path.rewind();
+                final int save = canvas.save();
+                canvas.translate((float) (line.mX[0] * worldSize + offsetX),
+                        (float) (line.mY[0] * worldSize + offsetY));
+                canvas.drawPath(line.getPath(zoomLevel), line.getPaint());
+                canvas.restoreToCount(save);
             }
         }
 
@@ -239,9 +319,11 @@ public class ObaMapViewV1 extends com.google.android.maps.MapView
             int maxLon = Integer.MIN_VALUE;
 
             for (Line line : mLines) {
-                for (GeoPoint item : line.mPoints) {
-                    int lat = (int) (item.getLatitudeE6());
-                    int lon = (int) (item.getLongitudeE6());
+                final ObaPolyline polyline = line.getPolyline();
+                final int numPts = polyline.size();
+                for (int i = 0; i < numPts; ++i) {
+                    int lat = polyline.getLatitudeE6(i);
+                    int lon = polyline.getLongitudeE6(i);
 
                     maxLat = Math.max(lat, maxLat);
                     minLat = Math.min(lat, minLat);
@@ -15,11 +15,12 @@
  */
 package com.joulespersecond.seattlebusbot.tripservice;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.util.Log;
 
 import com.joulespersecond.oba.ObaApi;
 import com.joulespersecond.oba.elements.ObaArrivalInfo;
@@ -28,20 +29,51 @@ import com.joulespersecond.oba.provider.ObaContract.TripAlerts;
 import com.joulespersecond.oba.provider.ObaContract.Trips;
 import com.joulespersecond.oba.request.ObaArrivalInfoRequest;
 import com.joulespersecond.oba.request.ObaArrivalInfoResponse;
+import com.joulespersecond.oba.request.RequestExecutor;
+import com.joulespersecond.seattlebusbot.BuildConfig;
 import com.joulespersecond.seattlebusbot.TripService;
 import com.joulespersecond.seattlebusbot.util.UIHelp;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Polls the arrivals for every trip alert that is currently polling.
+ *
+ * When an alert's own alarm goes off (the URI is a single alert), it moves
+ * that alert into the polling state. Either way, it then polls all polling
+ * alerts together: alerts are grouped by stop, each stop is fetched once,
+ * and every alert at that stop is checked against the shared response.
+ * A single alarm on the TripAlerts directory URI drives the next cycle,
+ * however many alerts are active.
+ *
+ * The next cycle is scheduled for whichever alert needs it soonest (see
+ * getPollDelay()): sparsely while the bus is still far from the reminder
+ * threshold, every minute once the reminder is showing, and backing off
+ * while a stop keeps failing with an I/O error.
+ */
 public final class PollerTask implements Runnable {
-    //private static final String TAG = "PollerTask";
+    private static final String TAG = "PollerTask";
 
     private static final long ONE_MINUTE = 60 * 1000;
 
+    public static final long MIN_POLL_DELAY_MS = 30 * 1000;
+
+    public static final long MAX_POLL_DELAY_MS = 5 * ONE_MINUTE;
+
+    private static int mTotalRequests = 0;
+
+    private static int mCycles = 0;
+
     private static final String[] ALERT_PROJECTION = {
             ObaContract.TripAlerts._ID,
             ObaContract.TripAlerts.TRIP_ID,
             ObaContract.TripAlerts.STOP_ID,
             ObaContract.TripAlerts.START_TIME,
             ObaContract.TripAlerts.STATE,
+            ObaContract.TripAlerts.FAILURES,
+            ObaContract.TripAlerts.REQUEST_COUNT,
     };
 
     private static final int COL_ID = 0;
@@ -54,6 +86,37 @@ public final class PollerTask implements Runnable {
 
     private static final int COL_STATE = 4;
 
+    private static final int COL_FAILURES = 5;
+
+    private static final int COL_REQUEST_COUNT = 6;
+
+    private static final String POLLING_SELECTION =
+            ObaContract.TripAlerts.STATE + " IN (" + TripAlerts.STATE_POLLING + ","
+                    + TripAlerts.STATE_NOTIFY + ")";
+
+    private static final class Alert {
+
+        final Uri uri;
+
+        final String tripId;
+
+        final String stopId;
+
+        // These are kept in the alert's row, since each poll
+        // can be in a new process.
+        final int failures;
+
+        final int requestCount;
+
+        Alert(Uri uri, String tripId, String stopId, int failures, int requestCount) {
+            this.uri = uri;
+            this.tripId = tripId;
+            this.stopId = stopId;
+            this.failures = failures;
+            this.requestCount = requestCount;
+        }
+    }
+
     private final Context mContext;
 
     private final ContentResolver mCR;
@@ -71,71 +134,216 @@ public final class PollerTask implements Runnable {
 
     @Override
     public void run() {
-        Cursor c = mCR.query(mUri, ALERT_PROJECTION, null, null, null);
+        try {
+            // If this is a single alert's start alarm, it joins the polling set.
+            if (!TripAlerts.CONTENT_URI.equals(mUri)) {
+                startPolling();
+            }
+            pollAll();
+        } finally {
+            mTaskContext.taskComplete();
+        }
+    }
 
+    private void startPolling() {
+        Cursor c = mCR.query(mUri, ALERT_PROJECTION, null, null, null);
         try {
-            if (c != null) {
-                while (c.moveToNext()) {
-                    poll1(c);
+            while (c != null && c.moveToNext()) {
+                if (c.getInt(COL_STATE) == TripAlerts.STATE_SCHEDULED) {
+                    TripAlerts.setState(mContext, TripAlerts.buildUri(c.getInt(COL_ID)),
+                            TripAlerts.STATE_POLLING);
                 }
             }
         } finally {
             if (c != null) {
                 c.close();
             }
-            mTaskContext.taskComplete();
         }
     }
 
-    private void poll1(Cursor c) {
-        final Uri alertUri = TripAlerts.buildUri(c.getInt(COL_ID));
-        final int state = c.getInt(COL_STATE);
-        if (state == TripAlerts.STATE_CANCELLED) {
-            return;
-        }
-        long now = System.currentTimeMillis();
+    private void pollAll() {
+        // Group the active alerts by stop.
+        HashMap<String, ArrayList<Alert>> byStop = new HashMap<String, ArrayList<Alert>>();
+        final long now = System.currentTimeMillis();
+        boolean expired = false;
 
-        final long startTime = c.getLong(COL_START_TIME);
-        // After a half-hour we can completely give up.
-        if (startTime < (now - ONE_MINUTE * 30)) {
-            ContentValues values = new ContentValues();
-            values.put(TripAlerts.STATE, TripAlerts.STATE_CANCELLED);
-            mCR.update(alertUri, values, null, null);
+        Cursor c = mCR.query(TripAlerts.CONTENT_URI, ALERT_PROJECTION,
+                POLLING_SELECTION, null, null);
+        try {
+            while (c != null && c.moveToNext()) {
+                final Uri alertUri = TripAlerts.buildUri(c.getInt(COL_ID));
+                final long startTime = c.getLong(COL_START_TIME);
+                // After a half-hour we can completely give up.
+                if (startTime < (now - ONE_MINUTE * 30)) {
+                    TripAlerts.setState(mCR, alertUri, TripAlerts.STATE_CANCELLED);
+                    expired = true;
+                    continue;
+                }
+                final String stopId = c.getString(COL_STOP_ID);
+                ArrayList<Alert> alerts = byStop.get(stopId);
+                if (alerts == null) {
+                    alerts = new ArrayList<Alert>();
+                    byStop.put(stopId, alerts);
+                }
+                alerts.add(new Alert(alertUri, c.getString(COL_TRIP_ID), stopId,
+                        c.getInt(COL_FAILURES), c.getInt(COL_REQUEST_COUNT)));
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
 
+        if (expired) {
+            // Schedule the next occurrence of recurring trips.
             TripService.scheduleAll(mContext);
+        }
+
+        if (byStop.isEmpty()) {
             return;
         }
 
-        // Before we do anything else, schedule another poll in a minute.
+        // Before we do anything else, schedule the next cycle.
         // That way we know the polling will continue even if we're killed.
-        TripService.pollTrip(mContext, alertUri, now + ONE_MINUTE);
-
-        // If this is just scheduled, mark it as polling.
-        if (state == TripAlerts.STATE_SCHEDULED) {
-            TripAlerts.setState(mContext, alertUri, TripAlerts.STATE_POLLING);
+        TripService.pollTrip(mContext, TripAlerts.CONTENT_URI, now + ONE_MINUTE);
+        synchronized (PollerTask.class) {
+            mCycles++;
         }
 
-        final String tripId = c.getString(COL_TRIP_ID);
-        final String stopId = c.getString(COL_STOP_ID);
-        final long reminderMS = getReminderMS(tripId, stopId);
+        long delay = MAX_POLL_DELAY_MS;
+        for (Map.Entry<String, ArrayList<Alert>> entry : byStop.entrySet()) {
+            delay = Math.min(delay, pollStop(entry.getKey(), entry.getValue()));
+        }
+        // Now that we know how far away the buses are, replace the fallback.
+        if (delay != ONE_MINUTE) {
+            TripService.pollTrip(mContext, TripAlerts.CONTENT_URI,
+                    System.currentTimeMillis() + delay);
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Cycle " + getCycleCount() + ": polled " + byStop.size()
+                    + " stops, " + getTotalRequests() + " requests in all, next in "
+                    + (delay / 1000) + "s");
+        }
+    }
 
-        ObaArrivalInfoResponse response = ObaArrivalInfoRequest
-                .newRequest(mContext, stopId).call();
+    /**
+     * @return The delay until this stop should be polled again.
+     */
+    private long pollStop(String stopId, ArrayList<Alert> alerts) {
+        ObaArrivalInfoRequest request = ObaArrivalInfoRequest.newRequest(mContext, stopId);
+        request.setPriority(RequestExecutor.PRIORITY_LOW);
+        ObaArrivalInfoResponse response = request.call();
 
-        Long departMS = null;
-        if (response.getCode() == ObaApi.OBA_OK) {
-            departMS = checkArrivals(response, c);
+        final int code = response.getCode();
+        int failures = 0;
+        if (code == ObaApi.OBA_IO_EXCEPTION) {
+            for (Alert alert : alerts) {
+                failures = Math.max(failures, alert.failures + 1);
+            }
+        }
+        saveRequest(alerts, failures);
+        if (failures > 0) {
+            return getPollDelay(null, 0, failures);
+        }
+        if (code != ObaApi.OBA_OK) {
+            return ONE_MINUTE;
         }
 
-        if (departMS != null) {
+        long delay = MAX_POLL_DELAY_MS;
+        for (Alert alert : alerts) {
+            Long departMS = checkArrivals(response, alert.tripId);
+            final long reminderMS = getReminderMS(alert.tripId, stopId);
+            delay = Math.min(delay, getPollDelay(departMS, reminderMS, 0));
+            if (departMS == null) {
+                continue;
+            }
             final long diffTime = departMS - System.currentTimeMillis();
             if (diffTime <= reminderMS) {
                 // Bus is within the reminder interval (or it possibly has left!)
                 // Send off a notification.
-                //Log.d(TAG, "Notify for trip: " + alertUri);
-                TripService.notifyTrip(mContext, mUri, diffTime);
+                //Log.d(TAG, "Notify for trip: " + alert.uri);
+                TripService.notifyTrip(mContext, alert.uri, diffTime);
             }
         }
+        return delay;
+    }
+
+    /**
+     * Returns how long to wait before polling an alert again.
+     *
+     * @param departMS   The last predicted (or scheduled) departure time,
+     *                   or null if it isn't known.
+     * @param reminderMS How long before departure the user wants to be reminded.
+     * @param failures   The number of consecutive I/O failures for the stop.
+     * @return The delay in milliseconds.
+     */
+    public static long getPollDelay(Long departMS, long reminderMS, int failures) {
+        if (failures > 0) {
+            // One, two, four minutes... up to the maximum.
+            final long backoff = ONE_MINUTE << Math.min(failures - 1, 8);
+            return Math.min(backoff, MAX_POLL_DELAY_MS);
+        }
+        if (departMS == null) {
+            // The trip isn't in the arrivals yet.
+            return ONE_MINUTE;
+        }
+        final long untilNotify = departMS - reminderMS - System.currentTimeMillis();
+        if (untilNotify <= 0) {
+            // The reminder is showing, keep it up to date.
+            return ONE_MINUTE;
+        }
+        // Check again halfway to the threshold, so we can't overshoot it by much.
+        return Math.max(MIN_POLL_DELAY_MS, Math.min(MAX_POLL_DELAY_MS, untilNotify / 2));
+    }
+
+    //
+    // Counts the request against each alert at the stop, and saves
+    // the stop's failure count with them, all in one batch.
+    //
+    private void saveRequest(ArrayList<Alert> alerts, int failures) {
+        synchronized (PollerTask.class) {
+            mTotalRequests++;
+        }
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(alerts.size());
+        for (Alert alert : alerts) {
+            ops.add(ContentProviderOperation.newUpdate(alert.uri)
+                    .withValue(TripAlerts.FAILURES, failures)
+                    .withValue(TripAlerts.REQUEST_COUNT, alert.requestCount + 1)
+                    .build());
+        }
+        ObaContract.applyBatch(mCR, ops);
+    }
+
+    /**
+     * @return The number of arrivals requests made on behalf of an alert.
+     * A request shared by several alerts at the same stop counts once
+     * for each of them.
+     */
+    public static int getRequestCount(Context context, Uri alertUri) {
+        Integer count = UIHelp.intForQuery(context, alertUri, TripAlerts.REQUEST_COUNT);
+        return (count != null) ? count : 0;
+    }
+
+    /**
+     * @return The number of arrivals requests made in this process
+     * since the stats were last reset.
+     */
+    public static synchronized int getTotalRequests() {
+        return mTotalRequests;
+    }
+
+    /**
+     * @return The number of poll cycles (alarm wakeups) in this process
+     * since the stats were last reset.
+     */
+    public static synchronized int getCycleCount() {
+        return mCycles;
+    }
+
+    public static synchronized void resetStats() {
+        mTotalRequests = 0;
+        mCycles = 0;
     }
 
     private long getReminderMS(String tripId, String stopId) {
@@ -147,8 +355,7 @@ public final class PollerTask implements Runnable {
     // Return the difference between now and the predicted/scheduled
     // arrival time, or null if the arrival can't be found.
     //
-    private Long checkArrivals(ObaArrivalInfoResponse response, Cursor c) {
-        final String tripId = c.getString(COL_TRIP_ID);
+    private Long checkArrivals(ObaArrivalInfoResponse response, String tripId) {
         final ObaArrivalInfo[] arrivals = response.getArrivalInfo();
         final int length = arrivals.length;
         for (int i = 0; i < length; ++i) {
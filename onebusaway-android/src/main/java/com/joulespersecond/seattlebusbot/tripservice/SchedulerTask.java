@@ -19,17 +19,25 @@ import com.joulespersecond.oba.provider.ObaContract;
 import com.joulespersecond.oba.provider.ObaContract.TripAlerts;
 import com.joulespersecond.seattlebusbot.TripService;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.text.format.Time;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 /**
  * This is the runnable that implements scheduling of trips.
  * It can schedule one or many trips, depending on the URI.
  *
+ * All the existing trip alerts are loaded in one query up front, and any
+ * new alerts (and expired one-off trips) are written in a single batch,
+ * so rescheduling many reminders doesn't cost a round trip per day per trip.
+ *
  * @author paulw
  */
 public final class SchedulerTask implements Runnable {
@@ -57,6 +65,14 @@ public final class SchedulerTask implements Runnable {
 
     private static final int COL_DAYS = 4;
 
+    private static final String[] ALERT_PROJECTION = {
+            TripAlerts._ID,
+            TripAlerts.TRIP_ID,
+            TripAlerts.STOP_ID,
+            TripAlerts.START_TIME,
+            TripAlerts.STATE
+    };
+
     private final Context mContext;
 
     private final ContentResolver mCR;
@@ -65,6 +81,20 @@ public final class SchedulerTask implements Runnable {
 
     private final Uri mUri;
 
+    private static final int ALERT_CANCELLED = -1;
+
+    private static final int ALERT_PENDING = -2;
+
+    // (trip, stop, start time) -> existing alert ID, ALERT_CANCELLED,
+    // or ALERT_PENDING if it's going to be inserted by this batch.
+    private final HashMap<String, Integer> mAlerts = new HashMap<String, Integer>();
+
+    private final ArrayList<ContentProviderOperation> mOps =
+            new ArrayList<ContentProviderOperation>();
+
+    // The trigger time of each insert in mOps, or null for the other operations.
+    private final ArrayList<Long> mOpTriggerTimes = new ArrayList<Long>();
+
     public SchedulerTask(Context context, TaskContext taskContext, Uri uri) {
         mContext = context;
         mCR = mContext.getContentResolver();
@@ -74,10 +104,12 @@ public final class SchedulerTask implements Runnable {
 
     @Override
     public void run() {
-        cleanupOldAlerts();
-        Cursor c = mCR.query(mUri, PROJECTION, null, null, null);
-
+        Cursor c = null;
         try {
+            cleanupOldAlerts();
+            loadAlerts();
+
+            c = mCR.query(mUri, PROJECTION, null, null, null);
             Time tNow = new Time();
             tNow.setToNow();
             final long now = tNow.toMillis(false);
@@ -87,6 +119,7 @@ public final class SchedulerTask implements Runnable {
                     schedule1(c, tNow, now);
                 }
             }
+            applyBatch();
         } finally {
             if (c != null) {
                 c.close();
@@ -116,11 +149,11 @@ public final class SchedulerTask implements Runnable {
             long remindTime = tmp.toMillis(false) - reminderMS;
             long triggerTime = remindTime - LOOKAHEAD_DURATION_MS;
 
-            if (!scheduleAlert(tripUri, tripId, stopId, triggerTime)) {
+            if (!scheduleAlert(tripId, stopId, triggerTime)) {
                 // If we failed to schedule a one-off alert, then it's
                 // probably been cancelled or in the past and we should
                 // just delete it.
-                mCR.delete(tripUri, null, null);
+                addOperation(ContentProviderOperation.newDelete(tripUri).build(), null);
             }
         } else {
             final int currentWeekDay = tNow.weekDay;
@@ -135,7 +168,7 @@ public final class SchedulerTask implements Runnable {
                     long remindTime = tmp.toMillis(false) - reminderMS;
                     long triggerTime = remindTime - LOOKAHEAD_DURATION_MS;
 
-                    if (scheduleAlert(tripUri, tripId, stopId, triggerTime)) {
+                    if (scheduleAlert(tripId, stopId, triggerTime)) {
                         return;
                     }
                 }
@@ -143,54 +176,86 @@ public final class SchedulerTask implements Runnable {
         }
     }
 
-    private boolean scheduleAlert(Uri uri,
-            String tripId,
+    private boolean scheduleAlert(String tripId,
             String stopId,
             long triggerTime) {
 
-        Time tmp = new Time();
-        tmp.set(triggerTime);
-        //Log.d(TAG, "Scheduling poll: " + uri.toString() + "  "
+        //Time tmp = new Time();
+        //tmp.set(triggerTime);
+        //Log.d(TAG, "Scheduling poll: " + tripId + "  "
         //        + tmp.format2445());
 
         // Check to see if this alert has already been cancelled.
-        Uri alertUri = null;
-
-        Cursor cAlert = mCR.query(TripAlerts.CONTENT_URI,
-                new String[]{TripAlerts._ID, TripAlerts.STATE},
-                String.format("%s=? AND %s=? AND %s=?",
-                        TripAlerts.TRIP_ID,
-                        TripAlerts.STOP_ID,
-                        TripAlerts.START_TIME),
-                new String[]{tripId, stopId, String.valueOf(triggerTime)},
-                null);
+        final String key = getKey(tripId, stopId, triggerTime);
+        final Integer id = mAlerts.get(key);
+        if (id != null) {
+            if (id == ALERT_CANCELLED) {
+                return false;
+            } else if (id == ALERT_PENDING) {
+                return true;
+            }
+            // Should we schedule it in every case here??? What about when it's
+            // already polling???
+            TripService.pollTrip(mContext, TripAlerts.buildUri(id), triggerTime);
+            return true;
+        }
 
-        if (cAlert != null) {
-            try {
-                if (cAlert.moveToNext()) {
-                    if (cAlert.getInt(1) == TripAlerts.STATE_CANCELLED) {
-                        return false;
-                    }
-                    alertUri = TripAlerts.buildUri(cAlert.getInt(0));
+        // Insert a new trip alert; its alarm is set once the batch has been applied.
+        addOperation(ContentProviderOperation.newInsert(TripAlerts.CONTENT_URI)
+                .withValue(TripAlerts.TRIP_ID, tripId)
+                .withValue(TripAlerts.STOP_ID, stopId)
+                .withValue(TripAlerts.START_TIME, triggerTime)
+                .build(), triggerTime);
+        // Don't insert it twice if the same trip shows up again.
+        mAlerts.put(key, ALERT_PENDING);
+        return true;
+    }
 
-                }
-            } finally {
-                cAlert.close();
+    private void addOperation(ContentProviderOperation op, Long triggerTime) {
+        mOps.add(op);
+        mOpTriggerTimes.add(triggerTime);
+    }
+
+    private void applyBatch() {
+        if (mOps.isEmpty()) {
+            return;
+        }
+        ContentProviderResult[] results = ObaContract.applyBatch(mCR, mOps);
+        if (results == null) {
+            return;
+        }
+        for (int i = 0; i < results.length; ++i) {
+            final Long triggerTime = mOpTriggerTimes.get(i);
+            if (triggerTime != null && results[i].uri != null) {
+                TripService.pollTrip(mContext, results[i].uri, triggerTime);
             }
         }
-        if (alertUri == null) {
-            // Insert a new trip alert.
-            ContentValues values = new ContentValues();
-            values.put(TripAlerts.TRIP_ID, tripId);
-            values.put(TripAlerts.STOP_ID, stopId);
-            values.put(TripAlerts.START_TIME, triggerTime);
-            alertUri = mCR.insert(TripAlerts.CONTENT_URI, values);
+    }
+
+    /**
+     * Loads every trip alert into mAlerts in one query.
+     */
+    private void loadAlerts() {
+        Cursor c = mCR.query(TripAlerts.CONTENT_URI, ALERT_PROJECTION, null, null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                final String key = getKey(c.getString(1), c.getString(2), c.getLong(3));
+                final boolean cancelled = c.getInt(4) == TripAlerts.STATE_CANCELLED;
+                // If there are duplicates, the first one wins, as before.
+                if (!mAlerts.containsKey(key)) {
+                    mAlerts.put(key, cancelled ? ALERT_CANCELLED : c.getInt(0));
+                }
+            }
+        } finally {
+            c.close();
         }
+    }
 
-        // Should we schedule it in every case here??? What about when it's
-        // already polling???
-        TripService.pollTrip(mContext, alertUri, triggerTime);
-        return true;
+    private static String getKey(String tripId, String stopId, long startTime) {
+        return tripId + '\n' + stopId + '\n' + startTime;
     }
 
     /**
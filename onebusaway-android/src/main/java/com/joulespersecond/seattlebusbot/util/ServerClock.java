@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 University of South Florida and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot.util;
+
+import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.request.ObaCurrentTimeRequest;
+import com.joulespersecond.oba.request.ObaCurrentTimeResponse;
+import com.joulespersecond.oba.request.RequestExecutor;
+import com.joulespersecond.seattlebusbot.BuildConfig;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The time according to the OBA server. The arrival times in responses
+ * are server times, so counting down to them with a device clock that's
+ * a few minutes off shows the wrong ETAs.
+ */
+public final class ServerClock {
+
+    private static final String TAG = "ServerClock";
+
+    // How often to check the offset again.
+    private static final long SYNC_INTERVAL = 30 * 60 * 1000;
+
+    // Measurements that took longer than this are too uncertain to use.
+    private static final long MAX_ROUND_TRIP = 10 * 1000;
+
+    // Server time minus device time.
+    private static volatile long mOffset = 0;
+
+    // When the offset was measured, in elapsedRealtime(), or 0 if it hasn't been.
+    private static volatile long mSyncTime = 0;
+
+    private static final AtomicBoolean mSyncing = new AtomicBoolean(false);
+
+    private ServerClock() {
+    }
+
+    /**
+     * @return The current server time, in milliseconds since the epoch.
+     */
+    public static long now() {
+        return System.currentTimeMillis() + mOffset;
+    }
+
+    /**
+     * @return How far the server clock is ahead of the device clock, in milliseconds.
+     */
+    public static long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Forgets the offset, when we switch to another server.
+     */
+    public static void reset() {
+        mOffset = 0;
+        mSyncTime = 0;
+    }
+
+    /**
+     * Measures the offset in the background, if it hasn't been measured recently.
+     */
+    public static void syncIfNeeded(final Context context) {
+        if (mSyncTime != 0 && SystemClock.elapsedRealtime() - mSyncTime < SYNC_INTERVAL) {
+            return;
+        }
+        if (!mSyncing.compareAndSet(false, true)) {
+            return;
+        }
+        // Only the request itself runs on the executor.
+        final ObaCurrentTimeRequest request = ObaCurrentTimeRequest.newRequest(context);
+        RequestExecutor.execute(request, RequestExecutor.PRIORITY_HIGH,
+                new RequestExecutor.Callback<ObaCurrentTimeResponse>() {
+                    @Override
+                    public void onResponse(ObaCurrentTimeResponse response) {
+                        update(request, response);
+                        mSyncing.set(false);
+                    }
+                });
+    }
+
+    /**
+     * Measures the offset with the current time request. This blocks.
+     *
+     * @return true if the offset was updated.
+     */
+    public static boolean sync(Context context) {
+        ObaCurrentTimeRequest request = ObaCurrentTimeRequest.newRequest(context);
+        // The ETAs on the screen depend on it.
+        request.setPriority(RequestExecutor.PRIORITY_HIGH);
+        return update(request, request.call());
+    }
+
+    //
+    // The round trip is timed around the HTTP exchange itself, by the
+    // request, so the time it waited for its turn doesn't count.
+    //
+    private static boolean update(ObaCurrentTimeRequest request,
+            ObaCurrentTimeResponse response) {
+        final long start = request.getExchangeStartTime();
+        final long end = request.getExchangeEndTime();
+        final long roundTrip = end - start;
+        if (response.getCode() != ObaApi.OBA_OK || response.getTime() <= 0
+                || start == 0 || end == 0 || roundTrip > MAX_ROUND_TRIP) {
+            return false;
+        }
+        // Assume the server read its clock halfway through.
+        final long now = SystemClock.elapsedRealtime();
+        final long deviceTime = System.currentTimeMillis() - (now - (start + roundTrip / 2));
+        mOffset = response.getTime() - deviceTime;
+        mSyncTime = now;
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Offset: " + mOffset + "ms, round trip: " + roundTrip + "ms");
+        }
+        return true;
+    }
+}